@@ -0,0 +1,144 @@
+/*
+ * benchmarks, the JMH benchmarks for the echonetwork.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.benchmarks;
+
+import nl.dannyvanheumen.echonetwork.protocol.EchoProtocol;
+import nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.Message;
+import nl.dannyvanheumen.echonetwork.protocol.FrameCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * EchoProtocolBenchmark measures encoding and decoding of a single message, for the stream-based methods of
+ * {@link EchoProtocol} and the buffer-based {@link FrameCodec}.
+ * <p>
+ * Run with {@code -prof gc} to report the allocation rate next to the throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EchoProtocolBenchmark {
+
+    private static final String ADDRESS = "127.0.0.1:54321";
+
+    /**
+     * The size in bytes of the encoded content.
+     */
+    @Param({"16", "256", "4096", "65536", "1048576"})
+    public int size;
+
+    /**
+     * The kind of content.
+     */
+    @Param({Payloads.ASCII, Payloads.MULTIBYTE})
+    public String content;
+
+    private Message message;
+
+    private byte[] frame;
+
+    private ByteArrayOutputStream out;
+
+    private ByteArrayInputStream in;
+
+    private FrameCodec codec;
+
+    private ByteBuffer source;
+
+    private ByteBuffer address;
+
+    private ByteBuffer encodedContent;
+
+    private ByteBuffer destination;
+
+    /**
+     * Prepare the message and its encoded frame.
+     *
+     * @throws IOException In case of failure to encode the frame.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        this.message = new Message(ADDRESS, Payloads.content(this.content, this.size));
+        this.out = new ByteArrayOutputStream(this.size + 2 * FrameCodec.LENGTH_SIZE + ADDRESS.length());
+        EchoProtocol.sendMessage(this.out, this.message);
+        this.frame = this.out.toByteArray();
+        this.in = new ByteArrayInputStream(this.frame);
+        this.codec = new FrameCodec(null);
+        this.source = ByteBuffer.wrap(this.frame);
+        this.address = ByteBuffer.wrap(ADDRESS.getBytes(UTF_8));
+        this.encodedContent = ByteBuffer.wrap(this.message.content.getBytes(UTF_8));
+        this.destination = ByteBuffer.allocate(this.frame.length);
+    }
+
+    /**
+     * Encode and write a message: UTF-8 encoding of address and content, and assembly of the frame.
+     *
+     * @return Returns the output, for the blackhole.
+     * @throws IOException In case of failure to write.
+     */
+    @Benchmark
+    public ByteArrayOutputStream sendMessage() throws IOException {
+        this.out.reset();
+        EchoProtocol.sendMessage(this.out, this.message);
+        return this.out;
+    }
+
+    /**
+     * Read and decode a message: reading the length-prefixed fields, and UTF-8 decoding of address and content.
+     *
+     * @return Returns the message, for the blackhole.
+     * @throws IOException In case of failure to read.
+     */
+    @Benchmark
+    public Message receiveMessage() throws IOException {
+        this.in.reset();
+        return EchoProtocol.receiveMessage(this.in);
+    }
+
+    /**
+     * Decode a frame in place, without copying or transcoding: the baseline for the stream-based methods.
+     *
+     * @param blackhole the blackhole
+     * @throws IOException In case of an invalid frame.
+     */
+    @Benchmark
+    public void decodeFrame(final Blackhole blackhole) throws IOException {
+        blackhole.consume(this.codec.decode(this.source));
+        blackhole.consume(this.codec.contentLength());
+    }
+
+    /**
+     * Encode a frame of already encoded address and content into a buffer.
+     *
+     * @return Returns the buffer, for the blackhole.
+     */
+    @Benchmark
+    public ByteBuffer encodeFrame() {
+        this.destination.clear();
+        FrameCodec.encode(this.destination, this.address, this.encodedContent, false);
+        return this.destination;
+    }
+}
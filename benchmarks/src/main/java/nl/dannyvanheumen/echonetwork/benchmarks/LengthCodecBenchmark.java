@@ -0,0 +1,122 @@
+/*
+ * benchmarks, the JMH benchmarks for the echonetwork.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.benchmarks;
+
+import nl.dannyvanheumen.echonetwork.protocol.Varint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LengthCodecBenchmark measures encoding and decoding of a single length: the 4-byte big-endian prefix of the original
+ * protocol, and the variable-length integer of the compact protocol.
+ * <p>
+ * Run with {@code -prof gc} to report the allocation rate next to the throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LengthCodecBenchmark {
+
+    /**
+     * The length to encode and decode, i.e. the size in bytes of the value that it prefixes.
+     */
+    @Param({"16", "256", "4096", "65536", "1048576"})
+    public int size;
+
+    private ByteBuffer buffer;
+
+    private ByteBuffer prefix;
+
+    private ByteBuffer varint;
+
+    private ByteArrayInputStream varintStream;
+
+    /**
+     * Prepare the encoded lengths.
+     */
+    @Setup
+    public void setUp() {
+        this.buffer = ByteBuffer.allocate(Varint.MAX_SIZE);
+        this.prefix = ByteBuffer.allocate(Integer.BYTES).putInt(0, this.size);
+        final ByteBuffer encoded = ByteBuffer.allocate(Varint.MAX_SIZE);
+        Varint.put(encoded, this.size);
+        encoded.flip();
+        this.varint = encoded;
+        this.varintStream = new ByteArrayInputStream(encoded.array(), 0, encoded.limit());
+    }
+
+    /**
+     * Encode the length as 4-byte prefix.
+     *
+     * @return Returns the buffer, for the blackhole.
+     */
+    @Benchmark
+    public ByteBuffer encodePrefix() {
+        this.buffer.clear();
+        return this.buffer.putInt(this.size);
+    }
+
+    /**
+     * Decode the length from a 4-byte prefix.
+     *
+     * @return Returns the length.
+     */
+    @Benchmark
+    public int decodePrefix() {
+        return this.prefix.getInt(0);
+    }
+
+    /**
+     * Encode the length as variable-length integer.
+     *
+     * @return Returns the buffer, for the blackhole.
+     */
+    @Benchmark
+    public ByteBuffer encodeVarint() {
+        this.buffer.clear();
+        Varint.put(this.buffer, this.size);
+        return this.buffer;
+    }
+
+    /**
+     * Decode the length from a variable-length integer in a buffer.
+     *
+     * @return Returns the length.
+     * @throws IOException In case of an invalid encoding.
+     */
+    @Benchmark
+    public int decodeVarint() throws IOException {
+        return Varint.get(this.varint, 0);
+    }
+
+    /**
+     * Read the length as variable-length integer from an inputstream.
+     *
+     * @return Returns the length.
+     * @throws IOException In case of failure to read.
+     */
+    @Benchmark
+    public int readVarint() throws IOException {
+        this.varintStream.reset();
+        return Varint.read(this.varintStream);
+    }
+}
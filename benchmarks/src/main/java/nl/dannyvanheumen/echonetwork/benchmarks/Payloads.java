@@ -0,0 +1,70 @@
+/*
+ * benchmarks, the JMH benchmarks for the echonetwork.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.benchmarks;
+
+import javax.annotation.Nonnull;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Payloads produces message content of a given encoded size, in plain ASCII or in multibyte UTF-8.
+ */
+final class Payloads {
+
+    /**
+     * The ASCII content, repeated: one byte per character.
+     */
+    static final String ASCII = "ascii";
+
+    /**
+     * The multibyte content, repeated: two, three and four bytes per code point, with ASCII in between.
+     */
+    static final String MULTIBYTE = "multibyte";
+
+    private static final String ASCII_UNIT = "The quick brown fox jumps over the lazy dog. ";
+
+    private static final String MULTIBYTE_UNIT = "Grüße, 你好, 👋! ";
+
+    private Payloads() {
+        // No need to instantiate utility class.
+    }
+
+    /**
+     * Produce content that encodes to exactly the requested number of UTF-8 bytes.
+     *
+     * @param kind the kind of content, {@value #ASCII} or {@value #MULTIBYTE}
+     * @param size the size in bytes of the UTF-8-encoded content
+     * @return Returns the content.
+     */
+    @Nonnull
+    static String content(@Nonnull final String kind, final int size) {
+        final String unit;
+        switch (kind) {
+        case ASCII:
+            unit = ASCII_UNIT;
+            break;
+        case MULTIBYTE:
+            unit = MULTIBYTE_UNIT;
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown kind of content: " + kind);
+        }
+        final StringBuilder content = new StringBuilder(size);
+        int length = 0;
+        for (int i = 0; length < size; i = unit.offsetByCodePoints(i, 1) % unit.length()) {
+            final int codepoint = unit.codePointAt(i);
+            final int encoded = new String(Character.toChars(codepoint)).getBytes(UTF_8).length;
+            // Pad with ASCII when the code point would not fit, such that the size is exact.
+            if (length + encoded > size) {
+                content.append('.');
+                length++;
+            } else {
+                content.appendCodePoint(codepoint);
+                length += encoded;
+            }
+        }
+        return content.toString();
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * benchmarks, the JMH benchmarks for the echonetwork.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.benchmarks;
+
+import nl.dannyvanheumen.echonetwork.protocol.AsyncEchoConnection;
+import nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.Message;
+import nl.dannyvanheumen.echonetwork.server.EchoServer;
+import nl.dannyvanheumen.echonetwork.utils.Histogram;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * RelayBenchmark measures how many messages per second an {@link EchoServer} relays, and at what latency, end-to-end
+ * over loopback.
+ * <p>
+ * For every combination of server mode, number of connection pairs and message size, the benchmark starts a server
+ * in-process on an ephemeral port and connects the pairs of sender and receiver. Every sender keeps a fixed window of
+ * messages in flight to its receiver: the receiver records the latency of every message, i.e. the time from sending to
+ * receiving, and the sender then sends the next message. After the warm-up, messages are counted and latencies are
+ * recorded for the duration of the measurement. The results are printed as CSV, one line per combination.
+ * <p>
+ * Options, in the form {@code --name=value}:
+ * <ul>
+ * <li>{@code --modes=<mode>,...} the server modes. (Defaults to {@code threads,nio}.)</li>
+ * <li>{@code --connections=<n>,...} the numbers of connection pairs. (Defaults to {@code 1,10,100}.)</li>
+ * <li>{@code --sizes=<bytes>,...} the message sizes, at least 16. (Defaults to {@code 16,1024,65536}.)</li>
+ * <li>{@code --window=<n>} the number of messages in flight per pair. A window of 1 measures the latency of an idle
+ * server. (Defaults to 16.)</li>
+ * <li>{@code --warmup=<seconds>} the duration of the warm-up. (Defaults to 5.)</li>
+ * <li>{@code --duration=<seconds>} the duration of the measurement. (Defaults to 10.)</li>
+ * <li>{@code --client-threads=<n>} the number of threads of the clients. (Defaults to the number of processors.)</li>
+ * <li>{@code --output=<file>} the file for the results. (Defaults to standard output.)</li>
+ * </ul>
+ * The clients run in the same process as the server, so they share its processors. Compare results of the same
+ * machine only.
+ */
+@SuppressWarnings({"PMD.SystemPrintln", "SystemOut"})
+public final class RelayBenchmark {
+
+    /**
+     * The logger of the server, which is restricted to warnings, as it logs every session.
+     */
+    private static final Logger SERVER_LOGGER = Logger.getLogger("nl.dannyvanheumen.echonetwork.server");
+
+    private static final String HEADER = "mode,connections,size,window,seconds,messages,messages_per_second,"
+            + "megabytes_per_second,p50_us,p99_us,p999_us,max_us";
+
+    private static final String PREFIX = "--";
+
+    private static final int TIMESTAMP_LENGTH = 16;
+
+    private static final int HEX = 16;
+
+    private static final String ZEROS = "0".repeat(TIMESTAMP_LENGTH);
+
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final double NANOS_PER_MICRO = 1_000;
+
+    private static final double BYTES_PER_MEGABYTE = 1 << 20;
+
+    private RelayBenchmark() {
+        // No need to instantiate.
+    }
+
+    /**
+     * Main function for the relay benchmark.
+     *
+     * @param args the options
+     * @throws IOException          In case of failure to start the server or to connect.
+     * @throws InterruptedException In case the benchmark is interrupted.
+     * @throws ExecutionException   In case of failure to connect.
+     */
+    public static void main(@Nonnull final String[] args)
+            throws IOException, InterruptedException, ExecutionException {
+        final Map<String, String> options = parse(args);
+        final String output = options.getOrDefault("output", "");
+        final Settings settings = new Settings(options);
+        final OutputStream stream = output.isEmpty() ? System.out : Files.newOutputStream(Paths.get(output));
+        try (PrintStream out = new PrintStream(stream, true, UTF_8)) {
+            out.println(HEADER);
+            for (final String mode : options.getOrDefault("modes", "threads,nio").split(",")) {
+                for (final int connections : integers(options.getOrDefault("connections", "1,10,100"))) {
+                    for (final int size : integers(options.getOrDefault("sizes", "16,1024,65536"))) {
+                        System.err.printf(Locale.ROOT, "Running mode=%s, connections=%d, size=%d ...%n", mode,
+                                connections, size);
+                        out.println(run(settings, mode, connections, size));
+                    }
+                }
+            }
+        }
+    }
+
+    @Nonnull
+    private static String run(@Nonnull final Settings settings, @Nonnull final String mode, final int connections,
+            final int size) throws IOException, InterruptedException, ExecutionException {
+        if (size < TIMESTAMP_LENGTH) {
+            throw new IllegalArgumentException("Message size must be at least " + TIMESTAMP_LENGTH + ": " + size);
+        }
+        final AsynchronousChannelGroup group = AsynchronousChannelGroup.withFixedThreadPool(settings.clientThreads,
+                Executors.defaultThreadFactory());
+        try (EchoServer server = EchoServer.start("--mode=" + mode, "--port=0")) {
+            SERVER_LOGGER.setLevel(Level.WARNING);
+            final InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.port());
+            final String padding = "x".repeat(size - TIMESTAMP_LENGTH);
+            final List<Pair> pairs = new ArrayList<>(connections);
+            for (int i = 0; i < connections; i++) {
+                pairs.add(new Pair(AsyncEchoConnection.connect(address, group).get(),
+                        AsyncEchoConnection.connect(address, group).get(), padding));
+            }
+            for (final Pair pair : pairs) {
+                pair.start(settings.window);
+            }
+            TimeUnit.SECONDS.sleep(settings.warmup);
+            for (final Pair pair : pairs) {
+                pair.measuring = true;
+            }
+            final long start = System.nanoTime();
+            TimeUnit.SECONDS.sleep(settings.duration);
+            for (final Pair pair : pairs) {
+                pair.measuring = false;
+            }
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            final Histogram latency = new Histogram();
+            long messages = 0;
+            for (final Pair pair : pairs) {
+                latency.add(pair.latency);
+                messages += pair.received.get();
+                pair.running = false;
+            }
+            drain(pairs);
+            for (final Pair pair : pairs) {
+                pair.close();
+            }
+            return String.format(Locale.ROOT, "%s,%d,%d,%d,%.3f,%d,%.1f,%.3f,%.1f,%.1f,%.1f,%.1f", mode, connections,
+                    size, settings.window, seconds, messages, messages / seconds,
+                    messages * (double) size / BYTES_PER_MEGABYTE / seconds, micros(latency.percentile(50)),
+                    micros(latency.percentile(99)), micros(latency.percentile(99.9)), micros(latency.max()));
+        } finally {
+            group.shutdownNow();
+        }
+    }
+
+    /**
+     * Wait until the messages in flight are received, such that closing the connections does not disturb the server.
+     *
+     * @param pairs the pairs
+     * @throws InterruptedException In case of interruption.
+     */
+    private static void drain(@Nonnull final List<Pair> pairs) throws InterruptedException {
+        final long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+        for (final Pair pair : pairs) {
+            while (pair.inflight.get() > 0 && deadline - System.nanoTime() > 0) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+        }
+    }
+
+    private static double micros(final long nanos) {
+        return nanos / NANOS_PER_MICRO;
+    }
+
+    @Nonnull
+    private static Map<String, String> parse(@Nonnull final String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (final String arg : args) {
+            final int separator = arg.indexOf('=');
+            if (!arg.startsWith(PREFIX) || separator < 0) {
+                throw new IllegalArgumentException("Invalid option, expected --name=value: " + arg);
+            }
+            options.put(arg.substring(PREFIX.length(), separator), arg.substring(separator + 1));
+        }
+        return options;
+    }
+
+    @Nonnull
+    private static int[] integers(@Nonnull final String values) {
+        final String[] parts = values.split(",");
+        final int[] integers = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            integers[i] = Integer.parseInt(parts[i].trim());
+        }
+        return integers;
+    }
+
+    /**
+     * Settings are the options that apply to every run.
+     */
+    private static final class Settings {
+
+        private final int window;
+        private final int warmup;
+        private final int duration;
+        private final int clientThreads;
+
+        private Settings(@Nonnull final Map<String, String> options) {
+            this.window = Integer.parseInt(options.getOrDefault("window", "16"));
+            this.warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+            this.duration = Integer.parseInt(options.getOrDefault("duration", "10"));
+            this.clientThreads = Integer.parseInt(options.getOrDefault("client-threads",
+                    Integer.toString(Runtime.getRuntime().availableProcessors())));
+        }
+    }
+
+    /**
+     * Pair is a sender and receiver. Every message carries its sending time, in hexadecimal, followed by padding.
+     */
+    private static final class Pair {
+
+        private final AsyncEchoConnection sender;
+        private final AsyncEchoConnection receiver;
+        private final String destination;
+        private final String padding;
+        private final Histogram latency = new Histogram();
+        private final AtomicLong received = new AtomicLong();
+        private final AtomicLong inflight = new AtomicLong();
+        private volatile boolean running = true;
+        private volatile boolean measuring;
+
+        private Pair(@Nonnull final AsyncEchoConnection sender, @Nonnull final AsyncEchoConnection receiver,
+                @Nonnull final String padding) {
+            this.sender = requireNonNull(sender);
+            this.receiver = requireNonNull(receiver);
+            this.destination = receiver.localID();
+            this.padding = requireNonNull(padding);
+        }
+
+        private void start(final int window) {
+            this.receiver.receive(this::receive).whenComplete((v, e) -> {
+                if (this.running) {
+                    System.err.println("Receiver failed: " + e);
+                }
+            });
+            for (int i = 0; i < window; i++) {
+                send();
+            }
+        }
+
+        private void send() {
+            this.inflight.incrementAndGet();
+            final String timestamp = Long.toHexString(System.nanoTime());
+            this.sender.send(this.destination, ZEROS.substring(timestamp.length()) + timestamp + this.padding);
+        }
+
+        private void receive(@Nonnull final Message message) {
+            final long now = System.nanoTime();
+            final long sent = Long.parseUnsignedLong(message.content, 0, TIMESTAMP_LENGTH, HEX);
+            this.inflight.decrementAndGet();
+            if (this.measuring) {
+                this.latency.record(now - sent);
+                this.received.incrementAndGet();
+            }
+            if (this.running) {
+                send();
+            }
+        }
+
+        private void close() throws IOException {
+            this.sender.close();
+            this.receiver.close();
+        }
+    }
+}
@@ -0,0 +1,11 @@
+/*
+ * benchmarks, the JMH benchmarks for the echonetwork.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+/**
+ * JMH benchmarks for the echonetwork protocol.
+ */
+@ParametersAreNonnullByDefault
+package nl.dannyvanheumen.echonetwork.benchmarks;
+
+import javax.annotation.ParametersAreNonnullByDefault;
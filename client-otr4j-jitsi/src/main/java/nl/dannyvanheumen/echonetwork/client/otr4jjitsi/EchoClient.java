@@ -24,9 +24,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.DEFAULT_PORT;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.connect;
 import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.generateLocalID;
-import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.receiveMessage;
-import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.sendMessage;
 
 /**
  * EchoClient.
@@ -52,18 +51,26 @@ public final class EchoClient {
     @SuppressWarnings({"PMD.AssignmentInOperand", "InfiniteLoopStatement"})
     public static void main(@Nonnull final String[] args) throws IOException {
         Logger.getLogger("").setLevel(Level.FINEST);
-        try (Socket connection = new Socket(InetAddress.getLocalHost(), DEFAULT_PORT);
+        try (Socket connection = connect(InetAddress.getLocalHost(), DEFAULT_PORT);
              InputStream in = connection.getInputStream(); OutputStream out = connection.getOutputStream()) {
             LOGGER.log(Level.INFO, "Client started on address {0}:{1}",
                 new Object[]{connection.getLocalAddress().getHostAddress(), connection.getLocalPort()});
             final Host host = new Host(out, new OtrPolicyImpl(OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3 | OtrPolicy.ERROR_START_AKE | OtrPolicy.WHITESPACE_START_AKE));
             final OtrSessionManager manager = new OtrSessionManagerImpl(host);
+            host.negotiate();
             final String localID = generateLocalID(connection);
             LOGGER.log(Level.INFO, "Local ID: {0}", new Object[]{localID});
             Message raw;
             while (true) {
                 LOGGER.log(Level.FINE, "Waiting to receive next message from connection…");
-                raw = receiveMessage(in);
+                raw = host.receive(in);
+                if (raw.isControl()) {
+                    if (raw.isPing()) {
+                        final Message pong = raw.pong();
+                        host.send(pong.address, pong.content);
+                    }
+                    continue;
+                }
                 try {
                     final SessionID sessionID = new SessionID(localID, raw.address, "echo");
                     final Session session = manager.getSession(sessionID);
@@ -73,7 +80,7 @@ public final class EchoClient {
                     }
                     LOGGER.log(Level.INFO, "Echoing: {0}", new Object[]{message});
                     final String[] parts = session.transformSending(message);
-                    sendMessage(out, raw.address, parts);
+                    host.send(raw.address, parts);
                 } catch (final OtrException e) {
                     LOGGER.log(Level.INFO, "Failed to process content.", e);
                 }
@@ -11,17 +11,26 @@ import net.java.otr4j.crypto.OtrCryptoEngineImpl;
 import net.java.otr4j.session.FragmenterInstructions;
 import net.java.otr4j.session.InstanceTag;
 import net.java.otr4j.session.SessionID;
+import nl.dannyvanheumen.echonetwork.protocol.CompactProtocol;
+import nl.dannyvanheumen.echonetwork.protocol.Compression;
+import nl.dannyvanheumen.echonetwork.protocol.EchoProtocol;
+import nl.dannyvanheumen.echonetwork.protocol.MessageWriter;
+import nl.dannyvanheumen.echonetwork.protocol.Peers;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.Nullable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.KeyPair;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static java.util.Objects.requireNonNull;
-import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.sendMessage;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.COMPACT_PROPERTY;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.COMPRESSION_PROPERTY;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.CONTROL_ADDRESS;
 
 final class Host implements OtrEngineHost {
 
@@ -31,18 +40,70 @@ final class Host implements OtrEngineHost {
 
     private final OtrPolicy policy;
 
-    private final OutputStream out;
+    private final Compression compression = new Compression(Compression.DEFAULT_THRESHOLD);
+
+    /**
+     * The state of the compact protocol, if enabled with system property
+     * {@value nl.dannyvanheumen.echonetwork.protocol.EchoProtocol#COMPACT_PROPERTY}.
+     */
+    @Nullable
+    private final Peers peers = Boolean.getBoolean(COMPACT_PROPERTY) ? new Peers() : null;
+
+    private final MessageWriter out;
 
     Host(@Nonnull final OutputStream out, @Nonnull final OtrPolicy policy) {
         this.keypair = new OtrCryptoEngineImpl().generateDSAKeyPair();
-        this.out = requireNonNull(out);
+        this.out = this.peers == null ? new MessageWriter(out, this.compression)
+                : new MessageWriter(out, this.compression, this.peers);
         this.policy = requireNonNull(policy);
     }
 
+    /**
+     * Send messages to the network. Messages may be sent concurrently, by the OTR session (injected messages) and by
+     * the user. The message-writer takes care of mutual exclusion, and coalesces messages sent in quick succession.
+     *
+     * @param address  the destination address
+     * @param messages the messages
+     * @throws IOException In case of failure to write to the network.
+     */
+    void send(@Nonnull final String address, @Nonnull final String... messages) throws IOException {
+        this.out.sendMessage(address, messages);
+    }
+
+    /**
+     * Negotiate with the server: the compact protocol, if enabled with system property
+     * {@value nl.dannyvanheumen.echonetwork.protocol.EchoProtocol#COMPACT_PROPERTY}, and compression, if enabled with
+     * system property {@value nl.dannyvanheumen.echonetwork.protocol.EchoProtocol#COMPRESSION_PROPERTY}. Must be
+     * called before sending any messages.
+     *
+     * @throws IOException In case of failure to write to the network.
+     */
+    void negotiate() throws IOException {
+        if (this.peers != null) {
+            this.out.hello();
+        }
+        if (Boolean.getBoolean(COMPRESSION_PROPERTY)) {
+            send(CONTROL_ADDRESS, Compression.COMMAND);
+        }
+    }
+
+    /**
+     * Receive a message from the network, decompressing it if needed.
+     *
+     * @param in the network's inputstream
+     * @return Returns the message.
+     * @throws IOException In case of failure to read from the network.
+     */
+    @Nonnull
+    EchoProtocol.Message receive(@Nonnull final InputStream in) throws IOException {
+        return this.peers == null ? EchoProtocol.receiveMessage(in, this.compression)
+                : CompactProtocol.receiveMessage(in, this.peers, this.compression);
+    }
+
     @Override
     public void injectMessage(@Nonnull final SessionID sessionID, @Nonnull final String msg) {
         try {
-            sendMessage(this.out, sessionID.getUserID(), msg);
+            send(sessionID.getUserID(), msg);
         } catch (final IOException e) {
             throw new IllegalStateException("Failed to inject message in network.", e);
         }
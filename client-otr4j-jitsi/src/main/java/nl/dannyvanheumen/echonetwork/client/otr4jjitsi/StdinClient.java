@@ -53,17 +53,25 @@ public final class StdinClient {
      */
     @SuppressWarnings({"PMD.DoNotUseThreads", "PMD.AssignmentInOperand"})
     public static void main(@Nonnull final String[] args) throws IOException, OtrException {
-        try (Socket client = new Socket(InetAddress.getLocalHost(), EchoProtocol.DEFAULT_PORT);
+        try (Socket client = EchoProtocol.connect(InetAddress.getLocalHost(), EchoProtocol.DEFAULT_PORT);
                 OutputStream out = client.getOutputStream();
                 InputStream in = client.getInputStream()) {
             final String localID = EchoProtocol.generateLocalID(client);
             final Host host = new Host(out, new OtrPolicyImpl(OtrPolicy.OTRL_POLICY_MANUAL));
             final OtrSessionManager manager = new OtrSessionManagerImpl(host);
+            host.negotiate();
             new Thread(() -> {
                 EchoProtocol.Message m;
                 try {
                     while (true) {
-                        m = EchoProtocol.receiveMessage(in);
+                        m = host.receive(in);
+                        if (m.isControl()) {
+                            if (m.isPing()) {
+                                final EchoProtocol.Message pong = m.pong();
+                                host.send(pong.address, pong.content);
+                            }
+                            continue;
+                        }
                         final SessionID sessionID = new SessionID(localID, m.address, "echo");
                         final Session session = manager.getSession(sessionID);
                         try {
@@ -83,7 +91,7 @@ public final class StdinClient {
                     final SessionID sessionID = new SessionID(localID, message.address, "echo");
                     final Session session = manager.getSession(sessionID);
                     final String[] parts = session.transformSending(message.content);
-                    EchoProtocol.sendMessage(out, message.address, parts);
+                    host.send(message.address, parts);
                 }
             }
         }
@@ -27,9 +27,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.DEFAULT_PORT;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.connect;
 import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.generateLocalID;
-import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.receiveMessage;
-import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.sendMessage;
 
 /**
  * EchoClient.
@@ -55,7 +54,7 @@ public final class EchoClient implements Client {
     @SuppressWarnings({"PMD.AssignmentInOperand", "InfiniteLoopStatement"})
     public static void main(@Nonnull final String[] args) throws IOException {
         final InstanceTag tag = InstanceTag.random(new SecureRandom());
-        try (Socket connection = new Socket(InetAddress.getLocalHost(), DEFAULT_PORT);
+        try (Socket connection = connect(InetAddress.getLocalHost(), DEFAULT_PORT);
              InputStream in = connection.getInputStream(); OutputStream out = connection.getOutputStream()) {
             LOGGER.log(Level.INFO, "Client started on address {0}:{1}",
                 new Object[]{connection.getLocalAddress().getHostAddress(), connection.getLocalPort()});
@@ -63,18 +62,26 @@ public final class EchoClient implements Client {
             Thread.currentThread().setName("EchoClient:" + localID);
             final Host host = new Host(out, tag, new OtrPolicy(OtrPolicy.REACTIVE));
             final OtrSessionManager manager = new OtrSessionManager(host);
+            host.negotiate();
             LOGGER.log(Level.INFO, "Local ID: {0}", new Object[]{localID});
             while (true) {
                 processActions(host, manager);
                 LOGGER.log(Level.FINE, "Waiting to receive next message from connection…");
-                final Message raw = receiveMessage(in);
+                final Message raw = host.receive(in);
+                if (raw.isControl()) {
+                    if (raw.isPing()) {
+                        final Message pong = raw.pong();
+                        host.send(pong.address, pong.content);
+                    }
+                    continue;
+                }
                 final Session session = manager.getSession(new SessionID(localID, raw.address, DEFAULT_PROTOCOL_NAME));
-                processMessage(raw, out, session);
+                processMessage(raw, host, session);
             }
         }
     }
 
-    private static void processMessage(final Message raw, final OutputStream out, final Session session)
+    private static void processMessage(final Message raw, final Host host, final Session session)
         throws IOException {
         try {
             final Session.Result message = session.transformReceiving(raw.content);
@@ -87,7 +94,7 @@ public final class EchoClient implements Client {
             if (instance == null) {
                 return;
             }
-            sendMessage(out, raw.address, instance.transformSending(message.content));
+            host.send(raw.address, instance.transformSending(message.content));
         } catch (final OtrException e) {
             LOGGER.log(Level.INFO, "Failed to process content.", e);
         }
@@ -0,0 +1,642 @@
+/*
+ * client-otr4j, the echonetwork client for otr4j.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.client.otr4j;
+
+import net.java.otr4j.api.Instance;
+import net.java.otr4j.api.InstanceTag;
+import net.java.otr4j.api.OtrException;
+import net.java.otr4j.api.OtrPolicy;
+import net.java.otr4j.api.Session;
+import net.java.otr4j.api.SessionID;
+import net.java.otr4j.api.SessionStatus;
+import net.java.otr4j.session.OtrSessionManager;
+import nl.dannyvanheumen.echonetwork.protocol.Client;
+import nl.dannyvanheumen.echonetwork.protocol.EchoProtocol;
+import nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.Message;
+import nl.dannyvanheumen.echonetwork.protocol.MessageWriter;
+import nl.dannyvanheumen.echonetwork.utils.Histogram;
+import nl.dannyvanheumen.echonetwork.utils.LogManagers;
+import nl.dannyvanheumen.echonetwork.utils.Strings;
+import nl.dannyvanheumen.echonetwork.utils.Threads;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.DEFAULT_PORT;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.connect;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.generateLocalID;
+
+/**
+ * LoadGenerator simulates many clients that exchange messages through an echonetwork server, for capacity planning.
+ * <p>
+ * Clients connect in pairs, evenly spread over the ramp-up, and every client sends messages to its partner at a
+ * constant rate. Scheduling is open-loop: every message has an intended sending time on a fixed schedule, independent of
+ * the responses, and latency is measured from the intended time until the partner receives the message. If the
+ * generator falls behind its schedule, e.g. because a write blocks, the delay is therefore included in the latency,
+ * instead of silently lowering the load (coordinated omission). The lag behind the schedule is reported, such that a
+ * saturated generator is recognized.
+ * <p>
+ * In {@code plain} mode, messages are relayed as is, which exercises only the server. In {@code otr} mode, every pair
+ * establishes an OTR session first, with the same otr4j stack as {@link EchoClient}, and messages are encrypted and
+ * decrypted. The system properties of the Java clients, e.g. for the compact protocol or compression, apply to the
+ * {@code otr} mode.
+ * <p>
+ * Every interval, a line is written in CSV format: the elapsed time, the phase ({@code ramp} or {@code steady}), the
+ * number of connected and ready clients, the number of messages sent and received and their rates, the latency
+ * percentiles and maximum, the maximum lag behind the schedule, and the number of errors. Latencies are in
+ * milliseconds.
+ * <p>
+ * Options, in the form {@code --name=value}:
+ * <ul>
+ * <li>{@code --host=<host>} the server's host. (Defaults to the local host.)</li>
+ * <li>{@code --port=<n>} the server's port. (Defaults to 8080.)</li>
+ * <li>{@code --mode=<mode>} {@code plain} or {@code otr}. (Defaults to {@code plain}.)</li>
+ * <li>{@code --clients=<n>} the number of clients, rounded down to an even number. (Defaults to 1000.)</li>
+ * <li>{@code --rate=<n>} the total number of messages per second, once all clients are connected. (Defaults to
+ * 10000.)</li>
+ * <li>{@code --size=<bytes>} the size of the (plaintext) message, at least 16. (Defaults to 256.)</li>
+ * <li>{@code --ramp=<seconds>} the duration of connecting the clients. (Defaults to 30.)</li>
+ * <li>{@code --duration=<seconds>} the duration of the steady state, after the ramp-up. (Defaults to 60.)</li>
+ * <li>{@code --interval=<seconds>} the reporting interval. (Defaults to 1.)</li>
+ * <li>{@code --senders=<n>} the number of threads that send on schedule. (Defaults to 1.)</li>
+ * <li>{@code --virtual=true} receive on virtual threads instead of platform threads. (Requires Java 21 or
+ * later.)</li>
+ * <li>{@code --output=<file>} the file for the report. (Defaults to standard output.)</li>
+ * </ul>
+ */
+@SuppressWarnings("PMD.DoNotUseThreads")
+public final class LoadGenerator implements Client {
+
+    static {
+        LogManagers.readResourceConfig("/load-logging.properties");
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LoadGenerator.class.getName());
+
+    private static final String HEADER = "time_s,phase,connected,ready,sent,received,sent_per_second,"
+            + "received_per_second,p50_ms,p90_ms,p99_ms,p999_ms,max_ms,lag_ms,errors";
+
+    private static final String PREFIX = "--";
+
+    /**
+     * The query message that starts the OTR session, for protocol versions 3 and 4.
+     */
+    private static final String QUERY = "?OTRv34?";
+
+    private static final int TIMESTAMP_LENGTH = 16;
+
+    private static final int HEX = 16;
+
+    private static final String ZEROS = "0".repeat(TIMESTAMP_LENGTH);
+
+    /**
+     * The number of histograms that receivers record in, to limit contention.
+     */
+    private static final int STRIPES = 16;
+
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Settings settings;
+
+    private final AtomicReferenceArray<LoadClient> clients;
+
+    private final Histogram[] latencies = new Histogram[STRIPES];
+
+    private final Histogram steady = new Histogram();
+
+    private final AtomicInteger connected = new AtomicInteger();
+
+    private final AtomicInteger ready = new AtomicInteger();
+
+    private final LongAdder sent = new LongAdder();
+
+    private final LongAdder received = new LongAdder();
+
+    private final LongAdder errors = new LongAdder();
+
+    private final AtomicLong lag = new AtomicLong();
+
+    private final String padding;
+
+    private volatile boolean running = true;
+
+    private volatile boolean steadyState;
+
+    private LoadGenerator(@Nonnull final Settings settings) {
+        this.settings = requireNonNull(settings);
+        this.clients = new AtomicReferenceArray<>(settings.clients);
+        for (int i = 0; i < STRIPES; i++) {
+            this.latencies[i] = new Histogram();
+        }
+        this.padding = "x".repeat(settings.size - TIMESTAMP_LENGTH);
+    }
+
+    /**
+     * Main function for starting the load generator.
+     *
+     * @param args the options
+     * @throws IOException          In case of failure to connect, or to write the report.
+     * @throws InterruptedException In case the load generator is interrupted.
+     */
+    public static void main(@Nonnull final String[] args) throws IOException, InterruptedException {
+        final Settings settings = new Settings(parse(args));
+        final OutputStream stream = settings.output.isEmpty() ? System.out
+                : Files.newOutputStream(Paths.get(settings.output));
+        try (PrintStream out = new PrintStream(stream, true, UTF_8)) {
+            new LoadGenerator(settings).run(out);
+        }
+    }
+
+    private void run(@Nonnull final PrintStream out) throws IOException, InterruptedException {
+        final ExecutorService receivers = this.settings.virtual ? Threads.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool(task -> {
+                    final Thread thread = new Thread(task);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        final long start = System.nanoTime();
+        final List<Thread> senders = new ArrayList<>(this.settings.senders);
+        for (int i = 0; i < this.settings.senders; i++) {
+            final int index = i;
+            senders.add(Threads.startDaemon("LoadGenerator-sender-" + i, () -> send(index, start),
+                    Threads.createLoggingHandler(LOGGER)));
+        }
+        out.println(HEADER);
+        final Thread reporter = Threads.startDaemon("LoadGenerator-reporter", () -> report(out, start),
+                Threads.createLoggingHandler(LOGGER));
+        LOGGER.log(Level.INFO, "Ramping up {0} clients in {1} mode.",
+                new Object[]{this.settings.clients, this.settings.mode});
+        try {
+            ramp(receivers, start);
+            this.steadyState = true;
+            LOGGER.log(Level.INFO, "Steady state with {0} of {1} clients ready.",
+                    new Object[]{this.ready.get(), this.settings.clients});
+            TimeUnit.SECONDS.sleep(this.settings.duration);
+        } finally {
+            this.running = false;
+            for (final Thread sender : senders) {
+                sender.join();
+            }
+            reporter.interrupt();
+            reporter.join();
+            close();
+            receivers.shutdownNow();
+        }
+        LOGGER.log(Level.INFO, "Steady state: {0} messages, p50 {1} ms, p99 {2} ms, p99.9 {3} ms, max {4} ms",
+                new Object[]{this.steady.count(), millis(this.steady.percentile(50)),
+                    millis(this.steady.percentile(99)), millis(this.steady.percentile(99.9)),
+                    millis(this.steady.max())});
+    }
+
+    /**
+     * Connect the clients, evenly spread over the ramp-up. Every second client completes a pair.
+     *
+     * @param receivers the executor for the receiving loops
+     * @param start     the start time
+     * @throws IOException          In case of failure to connect.
+     * @throws InterruptedException In case of interruption.
+     */
+    private void ramp(@Nonnull final ExecutorService receivers, final long start)
+            throws IOException, InterruptedException {
+        final long spacing = TimeUnit.SECONDS.toNanos(this.settings.ramp) / this.settings.clients;
+        final InetAddress host = this.settings.host.isEmpty() ? InetAddress.getLocalHost()
+                : InetAddress.getByName(this.settings.host);
+        for (int i = 0; i < this.settings.clients; i++) {
+            final long delay = start + i * spacing - System.nanoTime();
+            if (delay > 0) {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+            final Socket socket = connect(host, this.settings.port);
+            final LoadClient client = "otr".equals(this.settings.mode) ? new OtrClient(this, i, socket)
+                    : new PlainClient(this, i, socket);
+            this.clients.set(i, client);
+            this.connected.incrementAndGet();
+            receivers.execute(client::receive);
+            if (i % 2 == 1) {
+                final LoadClient partner = this.clients.get(i - 1);
+                partner.pair(client.id);
+                client.pair(partner.id);
+                partner.initiate();
+            }
+        }
+    }
+
+    /**
+     * Send messages on schedule, for the clients {@code index}, {@code index + senders}, etc. Clients that are not
+     * ready, skip their turn.
+     *
+     * @param index the index of the sender
+     * @param start the start of the schedule
+     */
+    private void send(final int index, final long start) {
+        final long interval = (long) (NANOS_PER_SECOND * this.settings.senders / this.settings.rate);
+        long next = start;
+        int cursor = index;
+        while (this.running) {
+            final long now = System.nanoTime();
+            if (next - now > 0) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            final LoadClient client = this.clients.get(cursor);
+            if (client != null && client.ready()) {
+                this.lag.accumulateAndGet(now - next, Math::max);
+                final String timestamp = Long.toHexString(next);
+                try {
+                    if (client.send(ZEROS.substring(timestamp.length()) + timestamp + this.padding)) {
+                        this.sent.increment();
+                    }
+                } catch (final IOException | OtrException e) {
+                    this.errors.increment();
+                    LOGGER.log(Level.FINE, "Failed to send message: {0}", new Object[]{e.getMessage()});
+                }
+            }
+            next += interval;
+            cursor += this.settings.senders;
+            if (cursor >= this.settings.clients) {
+                cursor = index;
+            }
+        }
+    }
+
+    /**
+     * Record a message received by a client.
+     *
+     * @param client  the index of the receiving client
+     * @param content the (plaintext) content
+     */
+    private void received(final int client, @Nonnull final String content) {
+        final long now = System.nanoTime();
+        final long intended;
+        try {
+            intended = Long.parseUnsignedLong(content, 0, TIMESTAMP_LENGTH, HEX);
+        } catch (final NumberFormatException | IndexOutOfBoundsException e) {
+            LOGGER.log(Level.FINE, "Ignoring message without timestamp: {0}", new Object[]{content});
+            return;
+        }
+        this.latencies[client % STRIPES].record(now - intended);
+        this.received.increment();
+    }
+
+    private void report(@Nonnull final PrintStream out, final long start) {
+        final long interval = TimeUnit.SECONDS.toNanos(this.settings.interval);
+        long next = start + interval;
+        long previous = start;
+        while (this.running) {
+            final long delay = next - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+                continue;
+            }
+            final long now = System.nanoTime();
+            final Histogram latency = new Histogram();
+            for (final Histogram stripe : this.latencies) {
+                latency.add(stripe.drain());
+            }
+            if (this.steadyState) {
+                this.steady.add(latency);
+            }
+            final double seconds = (now - previous) / NANOS_PER_SECOND;
+            final long sentCount = this.sent.sumThenReset();
+            final long receivedCount = this.received.sumThenReset();
+            out.println(String.format(Locale.ROOT, "%.3f,%s,%d,%d,%d,%d,%.1f,%.1f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%d",
+                    (now - start) / NANOS_PER_SECOND, this.steadyState ? "steady" : "ramp", this.connected.get(),
+                    this.ready.get(), sentCount, receivedCount, sentCount / seconds, receivedCount / seconds,
+                    millis(latency.percentile(50)), millis(latency.percentile(90)), millis(latency.percentile(99)),
+                    millis(latency.percentile(99.9)), millis(latency.max()), millis(this.lag.getAndSet(0)),
+                    this.errors.sumThenReset()));
+            previous = now;
+            next += interval;
+        }
+    }
+
+    private void close() {
+        for (int i = 0; i < this.clients.length(); i++) {
+            final LoadClient client = this.clients.get(i);
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / NANOS_PER_MILLI;
+    }
+
+    @Nonnull
+    private static Map<String, String> parse(@Nonnull final String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (final String arg : args) {
+            if (!arg.startsWith(PREFIX) || arg.length() == PREFIX.length()) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            final String[] parts = Strings.cut(arg.substring(PREFIX.length()), '=');
+            options.put(parts[0], parts[1] == null ? "true" : parts[1]);
+        }
+        return options;
+    }
+
+    /**
+     * Settings of the load generator, from the command-line options.
+     */
+    private static final class Settings {
+
+        private final String host;
+        private final int port;
+        private final String mode;
+        private final int clients;
+        private final double rate;
+        private final int size;
+        private final int ramp;
+        private final int duration;
+        private final int interval;
+        private final int senders;
+        private final boolean virtual;
+        private final String output;
+
+        private Settings(@Nonnull final Map<String, String> options) {
+            this.host = options.getOrDefault("host", "");
+            this.port = Integer.parseInt(options.getOrDefault("port", Integer.toString(DEFAULT_PORT)));
+            this.mode = options.getOrDefault("mode", "plain");
+            if (!"plain".equals(this.mode) && !"otr".equals(this.mode)) {
+                throw new IllegalArgumentException("Unknown mode: " + this.mode);
+            }
+            this.clients = Integer.parseInt(options.getOrDefault("clients", "1000")) & ~1;
+            this.rate = Double.parseDouble(options.getOrDefault("rate", "10000"));
+            this.size = Integer.parseInt(options.getOrDefault("size", "256"));
+            this.ramp = Integer.parseInt(options.getOrDefault("ramp", "30"));
+            this.duration = Integer.parseInt(options.getOrDefault("duration", "60"));
+            this.interval = Integer.parseInt(options.getOrDefault("interval", "1"));
+            this.senders = Integer.parseInt(options.getOrDefault("senders", "1"));
+            this.virtual = Boolean.parseBoolean(options.getOrDefault("virtual", "false"));
+            this.output = options.getOrDefault("output", "");
+            if (this.clients < 2 || this.rate <= 0 || this.size < TIMESTAMP_LENGTH || this.interval < 1
+                    || this.senders < 1 || this.senders > this.clients) {
+                throw new IllegalArgumentException("Invalid options: at least 2 clients, a positive rate, a size of at "
+                        + "least " + TIMESTAMP_LENGTH + ", an interval of at least 1 second, and 1 to clients senders.");
+            }
+        }
+    }
+
+    /**
+     * LoadClient is a simulated client: a connection, on which it sends to its partner on schedule, and from which it
+     * receives on a thread of its own.
+     */
+    private abstract static class LoadClient implements Closeable {
+
+        final LoadGenerator generator;
+        final int index;
+        final Socket socket;
+        final String id;
+        @Nullable
+        volatile String partner;
+
+        LoadClient(@Nonnull final LoadGenerator generator, final int index, @Nonnull final Socket socket) {
+            this.generator = requireNonNull(generator);
+            this.index = index;
+            this.socket = requireNonNull(socket);
+            this.id = generateLocalID(socket);
+        }
+
+        /**
+         * Set the partner, to which the client sends messages.
+         *
+         * @param partner the partner's address
+         */
+        void pair(@Nonnull final String partner) {
+            this.partner = requireNonNull(partner);
+        }
+
+        /**
+         * Initiate the pair's session, if needed. Called for one client of the pair, once both are paired.
+         *
+         * @throws IOException In case of failure to send.
+         */
+        abstract void initiate() throws IOException;
+
+        /**
+         * Indicates whether the client is ready to send messages.
+         *
+         * @return Returns true iff ready.
+         */
+        abstract boolean ready();
+
+        /**
+         * Send a message to the partner.
+         *
+         * @param content the content
+         * @return Returns true if sent, or false if the session is not available.
+         * @throws IOException  In case of failure to send.
+         * @throws OtrException In case of failure to encrypt.
+         */
+        abstract boolean send(@Nonnull String content) throws IOException, OtrException;
+
+        /**
+         * Receive the next message and determine its content.
+         *
+         * @return Returns the message, with its plaintext content, or null if the message carries no content for the
+         * application, e.g. a message of the OTR protocol itself.
+         * @throws IOException  In case of failure to receive.
+         * @throws OtrException In case of failure to process the message.
+         */
+        @Nullable
+        abstract Message receiveMessage() throws IOException, OtrException;
+
+        /**
+         * Answer a keepalive ping.
+         *
+         * @param pong the answer
+         * @throws IOException In case of failure to send.
+         */
+        abstract void pong(@Nonnull Message pong) throws IOException;
+
+        /**
+         * Receive messages until the connection closes.
+         */
+        @SuppressWarnings("InfiniteLoopStatement")
+        void receive() {
+            try {
+                while (true) {
+                    final Message message = receiveMessage();
+                    if (message == null) {
+                        continue;
+                    }
+                    if (message.isPing()) {
+                        pong(message.pong());
+                    } else if (!message.isControl()) {
+                        this.generator.received(this.index, message.content);
+                    }
+                }
+            } catch (final IOException | OtrException e) {
+                if (this.generator.running) {
+                    this.generator.errors.increment();
+                    LOGGER.log(Level.WARNING, "Client {0} failed: {1}", new Object[]{this.id, e.getMessage()});
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                this.socket.close();
+            } catch (final IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close connection: {0}", new Object[]{e.getMessage()});
+            }
+        }
+    }
+
+    /**
+     * PlainClient sends and receives messages as is.
+     */
+    private static final class PlainClient extends LoadClient {
+
+        private final InputStream in;
+        private final MessageWriter out;
+
+        private PlainClient(@Nonnull final LoadGenerator generator, final int index, @Nonnull final Socket socket)
+                throws IOException {
+            super(generator, index, socket);
+            this.in = socket.getInputStream();
+            this.out = new MessageWriter(socket.getOutputStream());
+        }
+
+        @Override
+        void pair(@Nonnull final String partner) {
+            super.pair(partner);
+            this.generator.ready.incrementAndGet();
+        }
+
+        @Override
+        void initiate() {
+            // No session to initiate.
+        }
+
+        @Override
+        boolean ready() {
+            return this.partner != null;
+        }
+
+        @Override
+        boolean send(@Nonnull final String content) throws IOException {
+            this.out.sendMessage(requireNonNull(this.partner), content);
+            return true;
+        }
+
+        @Nonnull
+        @Override
+        Message receiveMessage() throws IOException {
+            return EchoProtocol.receiveMessage(this.in);
+        }
+
+        @Override
+        void pong(@Nonnull final Message pong) throws IOException {
+            this.out.sendMessage(pong.address, pong.content);
+        }
+    }
+
+    /**
+     * OtrClient exchanges messages in an OTR session with its partner, with the same host and session manager as
+     * {@link EchoClient}. The session is ready once it is encrypted. Sending and receiving is serialized on the client,
+     * as the OTR session is used by the sending and the receiving thread.
+     */
+    private static final class OtrClient extends LoadClient {
+
+        private final InputStream in;
+        private final Host host;
+        private final OtrSessionManager manager;
+        @Nullable
+        private volatile InstanceTag remote;
+
+        private OtrClient(@Nonnull final LoadGenerator generator, final int index, @Nonnull final Socket socket)
+                throws IOException {
+            super(generator, index, socket);
+            this.in = socket.getInputStream();
+            this.host = new Host(socket.getOutputStream(), InstanceTag.random(RANDOM),
+                    new OtrPolicy(OtrPolicy.REACTIVE));
+            this.manager = new OtrSessionManager(this.host);
+            this.host.negotiate();
+        }
+
+        @Override
+        void initiate() throws IOException {
+            this.host.send(requireNonNull(this.partner), QUERY);
+        }
+
+        @Override
+        boolean ready() {
+            return this.remote != null;
+        }
+
+        @Override
+        synchronized boolean send(@Nonnull final String content) throws IOException, OtrException {
+            final String address = requireNonNull(this.partner);
+            final Instance instance = session(address).getInstance(requireNonNull(this.remote));
+            if (instance == null) {
+                return false;
+            }
+            this.host.send(address, instance.transformSending(content));
+            return true;
+        }
+
+        @Nullable
+        @Override
+        Message receiveMessage() throws IOException, OtrException {
+            final Message raw = this.host.receive(this.in);
+            if (raw.isControl()) {
+                return raw;
+            }
+            final Session.Result result;
+            synchronized (this) {
+                result = session(raw.address).transformReceiving(raw.content);
+            }
+            if (this.remote == null && result.status == SessionStatus.ENCRYPTED) {
+                this.remote = result.tag;
+                this.generator.ready.incrementAndGet();
+            }
+            return result.content == null ? null : new Message(raw.address, result.content);
+        }
+
+        @Override
+        void pong(@Nonnull final Message pong) throws IOException {
+            this.host.send(pong.address, pong.content);
+        }
+
+        @Nonnull
+        private Session session(@Nonnull final String address) {
+            return this.manager.getSession(new SessionID(this.id, address, DEFAULT_PROTOCOL_NAME));
+        }
+    }
+}
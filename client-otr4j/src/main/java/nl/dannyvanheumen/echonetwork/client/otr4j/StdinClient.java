@@ -32,9 +32,8 @@ import static java.util.Objects.requireNonNull;
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
 import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.DEFAULT_PORT;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.connect;
 import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.generateLocalID;
-import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.receiveMessage;
-import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.sendMessage;
 
 /**
  * EchoClient.
@@ -61,17 +60,25 @@ public final class StdinClient implements Client {
     @SuppressWarnings({"PMD.DoNotUseThreads", "PMD.AssignmentInOperand", "InfiniteLoopStatement"})
     public static void main(@Nonnull final String[] args) throws IOException, OtrException {
         final InstanceTag tag = InstanceTag.random(new SecureRandom());
-        try (Socket client = new Socket(InetAddress.getLocalHost(), DEFAULT_PORT);
+        try (Socket client = connect(InetAddress.getLocalHost(), DEFAULT_PORT);
              OutputStream out = client.getOutputStream(); InputStream in = client.getInputStream()) {
             final String localID = generateLocalID(client);
             final Host host = new Host(out, tag, new OtrPolicy(OtrPolicy.OTRL_POLICY_MANUAL));
             final OtrSessionManager manager = new OtrSessionManager(host);
+            host.negotiate();
             // Network communications thread.
             Threads.startDaemon("StdinClient:" + localID, () -> {
                 try {
                     EchoProtocol.Message m;
                     while (true) {
-                        m = receiveMessage(in);
+                        m = host.receive(in);
+                        if (m.isControl()) {
+                            if (m.isPing()) {
+                                final EchoProtocol.Message pong = m.pong();
+                                host.send(pong.address, pong.content);
+                            }
+                            continue;
+                        }
                         final SessionID sessionID = new SessionID(localID, m.address, DEFAULT_PROTOCOL_NAME);
                         final Session session = manager.getSession(sessionID);
                         try {
@@ -96,7 +103,7 @@ public final class StdinClient implements Client {
                         LOGGER.log(INFO, "Non-existant instance tag specified. Ignoring. ({0})", message.tag);
                         continue;
                     }
-                    sendMessage(out, message.address, instance.transformSending(message.content));
+                    host.send(message.address, instance.transformSending(message.content));
                 }
             }
         }
@@ -27,6 +27,10 @@ fn main() {
     loop {
         eprintln!("Waiting to receive message…");
         let msg = protocol::read_message(&mut stream).expect("Failed to read message from stream.");
+        if let Some(pong) = protocol::pong(&msg.0, &msg.1) {
+            write_message(&mut stream, &msg.0, &pong).expect("Failed to transmit pong.");
+            continue;
+        }
         eprintln!("Processing incoming message…");
         let result = account.session(&msg.0).receive(&msg.1);
         if let Err(err) = result {
@@ -5,7 +5,8 @@ pub fn write_message(dest: &mut dyn Write, address: &[u8], content: &[u8]) -> Re
     let mut buffer = Vec::new();
     write_value(&mut buffer, address);
     write_value(&mut buffer, content);
-    dest.write(&buffer)
+    dest.write_all(&buffer)?;
+    Ok(buffer.len())
 }
 
 /// read_message reads a message from the provided buffer.
@@ -15,6 +16,16 @@ pub fn read_message(src: &mut dyn std::io::Read) -> Result<(Vec<u8>, Vec<u8>), E
     Ok((address,content))
 }
 
+/// pong returns the answer to a keepalive ping from the server, or `None` if the message is not a ping.
+pub fn pong(address: &[u8], content: &[u8]) -> Option<Vec<u8>> {
+    if !address.is_empty() || !content.starts_with(b"ping ") {
+        return None;
+    }
+    let mut pong = b"pong ".to_vec();
+    pong.extend_from_slice(&content[5..]);
+    Some(pong)
+}
+
 fn write_value(buffer: &mut Vec<u8>, value: &[u8]) {
     buffer.extend_from_slice(&(value.len() as u32).to_be_bytes());
     buffer.extend_from_slice(value);
@@ -7,7 +7,7 @@ use std::{
 };
 
 use otrr::{instancetag::InstanceTag, Policy, UserMessage};
-use protocol::read_message;
+use protocol::{pong, read_message};
 
 use crate::protocol::write_message;
 
@@ -42,6 +42,13 @@ fn main() {
             continue;
         }
         let data = data.unwrap();
+        if let Some(pong) = pong(&data.0, &data.1) {
+            // Only the main loop writes to the connection, such that messages do not interleave.
+            interop_sender
+                .send(InteropMessage::Pong((data.0, pong)))
+                .expect("Interop-channel unexpectedly closed.");
+            continue;
+        }
         interop_sender
             .send(InteropMessage::Receive(data))
             .expect("Interop-channel unexpectedly closed.");
@@ -71,6 +78,9 @@ fn main() {
                     write_message(&mut conn, &msg.0, &part).unwrap();
                 }
             }
+            InteropMessage::Pong(msg) => {
+                write_message(&mut conn, &msg.0, &msg.1).expect("Failed to transmit pong.");
+            }
         }
     }
 }
@@ -78,6 +88,7 @@ fn main() {
 enum InteropMessage {
     Send((Vec<u8>, InstanceTag, Vec<u8>)),
     Receive((Vec<u8>, Vec<u8>)),
+    Pong((Vec<u8>, Vec<u8>)),
 }
 
 fn handle(msg: UserMessage) -> Option<(InstanceTag, Vec<u8>)> {
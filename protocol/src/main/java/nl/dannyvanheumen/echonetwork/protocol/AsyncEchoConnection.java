@@ -0,0 +1,504 @@
+/*
+ * protocol, the protocol (convenience) logic for the echonetwork.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.protocol;
+
+import nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.Message;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * AsyncEchoConnection is a client connection in the original protocol, on an {@link AsynchronousSocketChannel}. No
+ * thread blocks on the connection: reads and writes complete on the threads of the channel group, so a handful of
+ * threads drive any number of connections.
+ * <p>
+ * {@link #send(String, String...)} completes when the frame is written to the socket. Frames are written in the order in
+ * which they are sent. While a write is in progress, subsequent frames are queued, and written together in a single
+ * gathering write. {@link #receive()} completes with the next message, and {@link #receive(Consumer)} delivers every
+ * message to a callback. {@link #publisher()} offers the messages as a {@link Flow.Publisher}, with backpressure.
+ * Frames are decoded with a {@link FrameCodec}, so any partial read is retried until the frame is
+ * complete. Messages are not interpreted: in particular, the application answers keepalive pings, see
+ * {@link Message#pong()}.
+ * <p>
+ * Content is compressed once compression is negotiated, see {@link #requestCompression()}, except for control messages.
+ * The connection does not support TLS or the {@link CompactProtocol}.
+ * <p>
+ * AsyncEchoConnection is thread-safe. Callbacks of the returned futures run on the thread that completes them, i.e.
+ * usually a thread of the channel group, and should not block.
+ */
+public final class AsyncEchoConnection implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The maximum number of queued frames that are written in a single gathering write.
+     */
+    private static final int MAX_GATHER = 64;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final AsynchronousSocketChannel channel;
+
+    private final String localID;
+
+    private final Compression compression = new Compression(Compression.DEFAULT_THRESHOLD);
+
+    private final FrameCodec codec = new FrameCodec(this.compression);
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Frames that are waiting for the write in progress to complete. (Guarded by lock.)
+     */
+    private final ArrayDeque<Write> queued = new ArrayDeque<>();
+
+    /**
+     * Frames of the write in progress. Accessed only by the writer, i.e. the thread that started or completed the last
+     * write.
+     */
+    private final ArrayDeque<Write> writing = new ArrayDeque<>();
+
+    private final CompletionHandler<Long, Void> written = new Written();
+
+    private final CompletionHandler<Integer, Void> read = new Read();
+
+    private final MessagePublisher publisher = new MessagePublisher(this);
+
+    /**
+     * Indicates that a write is in progress. (Guarded by lock.)
+     */
+    private boolean busy;
+
+    /**
+     * The pending receive. (Guarded by lock.)
+     */
+    @Nullable
+    private CompletableFuture<Message> receiving;
+
+    /**
+     * The receive buffer, in "read" mode. Accessed only by the pending receive.
+     */
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).flip();
+
+    /**
+     * Indicates that the stream ended between frames.
+     */
+    private volatile boolean ended;
+
+    private AsyncEchoConnection(@Nonnull final AsynchronousSocketChannel channel) throws IOException {
+        this.channel = requireNonNull(channel);
+        final InetSocketAddress local = (InetSocketAddress) channel.getLocalAddress();
+        this.localID = local.getAddress().getHostAddress() + ":" + local.getPort();
+    }
+
+    /**
+     * Connect to the server.
+     *
+     * @param address the server's address
+     * @param group   the channel group whose threads drive the connection, or null for the default group
+     * @return Returns the future connection. The future fails in case of failure to connect, or if TLS is enabled with
+     * system property {@value EchoProtocol#TLS_PROPERTY}, as TLS is not supported.
+     */
+    @Nonnull
+    public static CompletableFuture<AsyncEchoConnection> connect(@Nonnull final InetSocketAddress address,
+            @Nullable final AsynchronousChannelGroup group) {
+        if (Boolean.getBoolean(EchoProtocol.TLS_PROPERTY)) {
+            return CompletableFuture.failedFuture(
+                    new IOException("TLS is not supported for asynchronous connections."));
+        }
+        final AsynchronousSocketChannel channel;
+        try {
+            channel = AsynchronousSocketChannel.open(group);
+        } catch (final IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        final CompletableFuture<AsyncEchoConnection> future = new CompletableFuture<>();
+        channel.connect(requireNonNull(address), null, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(final Void result, final Void attachment) {
+                try {
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    future.complete(new AsyncEchoConnection(channel));
+                } catch (final IOException e) {
+                    failed(e, attachment);
+                }
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                closeQuietly(channel);
+                future.completeExceptionally(exc);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * The local ID, in the form `ip-address:port`, i.e. the client's address as known to the server.
+     *
+     * @return Returns the ID.
+     */
+    @Nonnull
+    public String localID() {
+        return this.localID;
+    }
+
+    /**
+     * Request compression. The server's acknowledgement is a control message, which is received as any other message.
+     * Content is compressed once the acknowledgement is received. Compressed content is accepted from the moment of
+     * the request.
+     *
+     * @return Returns the future that completes when the request is written.
+     */
+    @Nonnull
+    public CompletableFuture<Void> requestCompression() {
+        this.compression.request();
+        return send(EchoProtocol.CONTROL_ADDRESS, Compression.COMMAND);
+    }
+
+    /**
+     * Send messages to an address.
+     *
+     * @param address  the address
+     * @param messages the messages
+     * @return Returns the future that completes when the messages are written, or fails in case of failure to write.
+     * After a failure to write, the connection is closed.
+     */
+    @Nonnull
+    public CompletableFuture<Void> send(@Nonnull final String address, @Nonnull final String... messages) {
+        final byte[] encodedAddress = address.getBytes(UTF_8);
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        this.lock.lock();
+        try {
+            this.queued.add(new Write(encode(encodedAddress, messages, !address.isEmpty()), future));
+            if (this.busy) {
+                return future;
+            }
+            this.busy = true;
+        } finally {
+            this.lock.unlock();
+        }
+        flush();
+        return future;
+    }
+
+    /**
+     * Encode the frames. Content is compressed under the lock, as the deflater is not thread-safe.
+     */
+    @Nonnull
+    private ByteBuffer encode(@Nonnull final byte[] address, @Nonnull final String[] messages,
+            final boolean compressible) {
+        final boolean compress = compressible && this.compression.accepted();
+        final byte[][] contents = new byte[messages.length][];
+        final boolean[] compressed = new boolean[messages.length];
+        long size = 0;
+        for (int i = 0; i < messages.length; i++) {
+            final byte[] content = messages[i].getBytes(UTF_8);
+            final byte[] packed = compress ? this.compression.compress(content, 0, content.length) : EMPTY;
+            compressed[i] = packed.length > 0;
+            contents[i] = compressed[i] ? packed : content;
+            size += FrameCodec.encodedSize(address.length, contents[i].length);
+        }
+        final ByteBuffer frames = ByteBuffer.allocate(Math.toIntExact(size));
+        for (int i = 0; i < contents.length; i++) {
+            FrameCodec.encode(frames, ByteBuffer.wrap(address), ByteBuffer.wrap(contents[i]), compressed[i]);
+        }
+        return frames.flip();
+    }
+
+    /**
+     * Write the queued frames, or mark the connection idle if none are queued.
+     */
+    private void flush() {
+        this.lock.lock();
+        try {
+            if (this.queued.isEmpty()) {
+                this.busy = false;
+                return;
+            }
+            while (!this.queued.isEmpty() && this.writing.size() < MAX_GATHER) {
+                this.writing.add(this.queued.poll());
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        write();
+    }
+
+    private void write() {
+        final ByteBuffer[] frames = new ByteBuffer[this.writing.size()];
+        int i = 0;
+        for (final Write w : this.writing) {
+            frames[i++] = w.frame;
+        }
+        try {
+            this.channel.write(frames, 0, frames.length, 0L, TimeUnit.MILLISECONDS, null, this.written);
+        } catch (final IllegalStateException e) {
+            this.written.failed(e, null);
+        }
+    }
+
+    /**
+     * Receive the next message.
+     * <p>
+     * At most one receive is pending at a time, including a receive by {@link #receive(Consumer)}.
+     *
+     * @return Returns the future message. The future fails in case of failure to read, end of stream, illegal length
+     * values or invalid compressed content. In case of illegal length values, the connection is closed, as the end of
+     * the message is unknown. In case of invalid compressed content, the message is read completely, so subsequent
+     * messages can still be received.
+     */
+    @Nonnull
+    public CompletableFuture<Message> receive() {
+        final CompletableFuture<Message> future = new CompletableFuture<>();
+        this.lock.lock();
+        try {
+            if (this.receiving != null) {
+                return CompletableFuture.failedFuture(new IllegalStateException("A receive is already pending."));
+            }
+            this.receiving = future;
+        } finally {
+            this.lock.unlock();
+        }
+        proceed();
+        return future;
+    }
+
+    /**
+     * Receive messages continuously, delivering each message to the handler, until the connection fails or the
+     * returned future is cancelled. The handler is called by one thread at a time, in order of arrival.
+     *
+     * @param handler the handler
+     * @return Returns the future that fails with the cause of the end of receiving, such as end of stream or an
+     * exception thrown by the handler.
+     */
+    @Nonnull
+    public CompletableFuture<Void> receive(@Nonnull final Consumer<? super Message> handler) {
+        requireNonNull(handler);
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        next(handler, done);
+        return done;
+    }
+
+    /**
+     * The messages that the connection receives, as a publisher. Messages are received only as far as the subscriber
+     * requests them, so a slow subscriber holds back reading from the socket instead of buffering messages. The
+     * publisher accepts a single subscriber. The stream completes at end of stream, and fails in case of failure to
+     * read or to decode a message.
+     * <p>
+     * While subscribed, the subscription owns receiving, so {@link #receive()} must not be used.
+     *
+     * @return Returns the publisher.
+     */
+    @Nonnull
+    public Flow.Publisher<Message> publisher() {
+        return this.publisher;
+    }
+
+    /**
+     * Indicates whether the stream ended between frames, i.e. the server closed the connection orderly.
+     *
+     * @return Returns true iff ended.
+     */
+    boolean ended() {
+        return this.ended;
+    }
+
+    /**
+     * Deliver the received messages to the handler. Messages that are already received, i.e. decoded from the receive
+     * buffer, are delivered in a loop rather than by recursion.
+     */
+    private void next(@Nonnull final Consumer<? super Message> handler, @Nonnull final CompletableFuture<Void> done) {
+        CompletableFuture<Message> next = receive();
+        while (next.isDone()) {
+            if (!deliver(next, handler, done)) {
+                return;
+            }
+            next = receive();
+        }
+        final CompletableFuture<Message> pending = next;
+        pending.whenComplete((message, error) -> {
+            if (deliver(pending, handler, done)) {
+                next(handler, done);
+            }
+        });
+    }
+
+    @SuppressWarnings("PMD.AvoidCatchingGenericException")
+    private static boolean deliver(@Nonnull final CompletableFuture<Message> received,
+            @Nonnull final Consumer<? super Message> handler, @Nonnull final CompletableFuture<Void> done) {
+        try {
+            handler.accept(received.join());
+        } catch (final CompletionException | CancellationException e) {
+            done.completeExceptionally(e.getCause() == null ? e : e.getCause());
+        } catch (final RuntimeException e) {
+            done.completeExceptionally(e);
+        }
+        return !done.isDone();
+    }
+
+    /**
+     * Complete the pending receive with the next frame in the receive buffer, or read more data if the frame is
+     * incomplete.
+     */
+    private void proceed() {
+        final boolean decoded;
+        try {
+            decoded = this.codec.decode(this.buffer);
+        } catch (final ProtocolException e) {
+            // The frame cannot be delimited, so no further frames can be received.
+            closeQuietly(this.channel);
+            complete(null, e);
+            return;
+        }
+        try {
+            if (!decoded) {
+                this.buffer = this.codec.reserve(this.buffer);
+                final ByteBuffer target = this.buffer.duplicate();
+                target.position(this.buffer.limit()).limit(this.buffer.capacity());
+                this.channel.read(target, null, this.read);
+                return;
+            }
+            final Events.MessageReceived event = Events.messageReceived();
+            final String address = UTF_8.decode(this.codec.address()).toString();
+            final byte[] content = new byte[this.codec.contentLength()];
+            this.codec.content().get(content);
+            this.codec.skip(this.buffer);
+            complete(EchoProtocol.message(event, address, content, this.codec.compressed(), this.compression), null);
+        } catch (final ProtocolException | IllegalStateException e) {
+            complete(null, e);
+        }
+    }
+
+    private void complete(@Nullable final Message message, @Nullable final Throwable error) {
+        final CompletableFuture<Message> future;
+        this.lock.lock();
+        try {
+            future = requireNonNull(this.receiving);
+            this.receiving = null;
+        } finally {
+            this.lock.unlock();
+        }
+        if (error == null) {
+            future.complete(message);
+        } else {
+            future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Close the connection. Pending sends and the pending receive fail.
+     *
+     * @throws IOException In case of failure to close the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    private static void closeQuietly(@Nonnull final AsynchronousSocketChannel channel) {
+        try {
+            channel.close();
+        } catch (final IOException ignored) {
+            // Closing is best-effort, the original failure is reported.
+        }
+    }
+
+    /**
+     * Completion of the write in progress.
+     */
+    private final class Written implements CompletionHandler<Long, Void> {
+
+        @Override
+        public void completed(final Long result, final Void attachment) {
+            while (!writing.isEmpty() && !writing.peek().frame.hasRemaining()) {
+                writing.poll().future.complete(null);
+            }
+            if (writing.isEmpty()) {
+                flush();
+            } else {
+                write();
+            }
+        }
+
+        @Override
+        public void failed(final Throwable exc, final Void attachment) {
+            closeQuietly(channel);
+            final List<Write> failed = new ArrayList<>(writing);
+            writing.clear();
+            lock.lock();
+            try {
+                failed.addAll(queued);
+                queued.clear();
+                busy = false;
+            } finally {
+                lock.unlock();
+            }
+            for (final Write w : failed) {
+                w.future.completeExceptionally(exc);
+            }
+        }
+    }
+
+    /**
+     * Completion of the read for the pending receive.
+     */
+    private final class Read implements CompletionHandler<Integer, Void> {
+
+        @Override
+        public void completed(final Integer result, final Void attachment) {
+            if (result < 0) {
+                ended = !buffer.hasRemaining();
+                complete(null, new EOFException(buffer.hasRemaining() ? "End of stream inside frame."
+                        : "End of stream."));
+                return;
+            }
+            buffer.limit(buffer.limit() + result);
+            proceed();
+        }
+
+        @Override
+        public void failed(final Throwable exc, final Void attachment) {
+            complete(null, exc);
+        }
+    }
+
+    /**
+     * A frame and the future that completes when it is written.
+     */
+    private static final class Write {
+
+        private final ByteBuffer frame;
+
+        private final CompletableFuture<Void> future;
+
+        private Write(@Nonnull final ByteBuffer frame, @Nonnull final CompletableFuture<Void> future) {
+            this.frame = requireNonNull(frame);
+            this.future = requireNonNull(future);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * protocol, the protocol (convenience) logic for the echonetwork.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.protocol;
+
+import nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.Message;
+
+import javax.annotation.Nonnull;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * CompactProtocol is version 2 of the echonetwork protocol, with a smaller header per message.
+ * <p>
+ * A client negotiates the compact protocol by sending the hello, {@link #MAGIC} followed by the highest version it
+ * supports, as the first 4 bytes on the connection. As a length-prefix of the original protocol, the hello is negative,
+ * so the server recognizes it and original clients keep working unchanged. Afterwards, the client sends frames:
+ * <ul>
+ * <li>{@link #MESSAGE}: {@code [type][varint address-length][address][varint content-length][content]}</li>
+ * <li>{@link #ADDRESSED}: {@code [type][varint handle][varint content-length][content]}</li>
+ * <li>{@link #BATCH}: {@code [type][varint length][frames]}, i.e. any number of the above frames, for one or more
+ * destinations, as a single unit</li>
+ * </ul>
+ * The server answers with its hello, i.e. {@link #MAGIC} followed by the negotiated version, the client's handle and the
+ * client's address: {@code [hello][varint handle][varint address-length][address]}. Frames that the server wrote before
+ * its hello are in the original format, subsequent frames are in the compact format. The server sends the same frame
+ * types, with the sender instead of the destination, and {@link #HANDLE} to announce a peer's handle before the
+ * first message addressed by that handle: {@code [type][varint handle][varint address-length][address]}. Lengths and
+ * handles are {@link Varint}s, lengths are at most {@link #MAX_LENGTH}. Control messages are messages with the empty
+ * address.
+ * <p>
+ * The {@link #COMPRESSED} flag of the type marks compressed content, once compression is negotiated.
+ */
+public final class CompactProtocol {
+
+    /**
+     * VERSION is the version of the compact protocol.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * MAGIC is the 3-byte marker of the hello.
+     */
+    public static final int MAGIC = 0xEC_4E_57;
+
+    /**
+     * MESSAGE is the type of frames with the peer's full address.
+     */
+    public static final int MESSAGE = 0x01;
+
+    /**
+     * ADDRESSED is the type of frames with the peer's handle.
+     */
+    public static final int ADDRESSED = 0x02;
+
+    /**
+     * HANDLE is the type of frames that announce a peer's handle. (Server to client only.)
+     */
+    public static final int HANDLE = 0x03;
+
+    /**
+     * BATCH is the type of frames that carry several messages. (Client to server only.)
+     */
+    public static final int BATCH = 0x04;
+
+    /**
+     * COMPRESSED is the flag of the type that marks compressed content.
+     */
+    public static final int COMPRESSED = 0x80;
+
+    /**
+     * TYPE_MASK selects the type without flags.
+     */
+    public static final int TYPE_MASK = 0x7F;
+
+    /**
+     * MAX_LENGTH is the maximum length of an address, of content, and of the frames of a batch.
+     */
+    public static final int MAX_LENGTH = Compression.MAX_SIZE;
+
+    private static final int VERSION_BITS = 8;
+
+    private static final int VERSION_MASK = 0xFF;
+
+    private CompactProtocol() {
+        // No need to instantiate utility class.
+    }
+
+    /**
+     * Encode the hello for a version.
+     *
+     * @param version the version
+     * @return Returns the hello, i.e. the magic followed by the version.
+     */
+    public static int hello(final int version) {
+        return MAGIC << VERSION_BITS | version & VERSION_MASK;
+    }
+
+    /**
+     * Indicates whether the first 4 bytes on a connection are a hello.
+     *
+     * @param prefix the first 4 bytes
+     * @return Returns true iff the prefix is a hello.
+     */
+    public static boolean isHello(final int prefix) {
+        return prefix >>> VERSION_BITS == MAGIC;
+    }
+
+    /**
+     * The version of a hello.
+     *
+     * @param hello the hello
+     * @return Returns the version.
+     */
+    public static int version(final int hello) {
+        return hello & VERSION_MASK;
+    }
+
+    /**
+     * Send the client's hello. The hello must be the first data sent on the connection.
+     *
+     * @param out the outputstream
+     * @throws IOException In case of failure to write.
+     */
+    public static void hello(@Nonnull final OutputStream out) throws IOException {
+        out.write(ByteBuffer.allocate(Integer.BYTES).putInt(hello(VERSION)).array());
+        out.flush();
+    }
+
+    /**
+     * Receive a message on a connection that negotiates the compact protocol. Until the server's hello arrives,
+     * messages are in the original format. Announced handles and the server's hello are recorded in the peers.
+     * <p>
+     * Messages are expected to be received by a single thread per inputstream. The inputstream is not locked.
+     *
+     * @param in          the inputstream
+     * @param peers       the connection's peers
+     * @param compression the connection's compression
+     * @return Returns the read Message
+     * @throws IOException thrown if failing to read message, or if the compressed content is invalid. In the latter
+     *                     case, the message is read completely, so subsequent messages can still be read.
+     */
+    @Nonnull
+    public static Message receiveMessage(@Nonnull final InputStream in, @Nonnull final Peers peers,
+            @Nonnull final Compression compression) throws IOException {
+        while (!peers.negotiated()) {
+            final int prefix = ByteBuffer.wrap(EchoProtocol.readBytes(in, Integer.BYTES)).getInt();
+            if (!isHello(prefix)) {
+                return EchoProtocol.receiveMessage(in, prefix, compression);
+            }
+            final int handle = Varint.read(in);
+            peers.negotiated(version(prefix), handle, readString(in));
+        }
+        while (true) {
+            final int type = in.read();
+            switch (type & TYPE_MASK) {
+            case HANDLE:
+                peers.bind(Varint.read(in), readString(in));
+                break;
+            case MESSAGE:
+                return receiveContent(in, type, readString(in), compression);
+            case ADDRESSED:
+                return receiveContent(in, type, address(peers, Varint.read(in)), compression);
+            default:
+                if (type < 0) {
+                    throw new EOFException("End of stream.");
+                }
+                throw new ProtocolException("Unknown frame type: " + type);
+            }
+        }
+    }
+
+    private static Message receiveContent(@Nonnull final InputStream in, final int type, @Nonnull final String address,
+            @Nonnull final Compression compression) throws IOException {
+        final Events.MessageReceived event = Events.messageReceived();
+        final byte[] content = EchoProtocol.readBytes(in, Varint.read(in));
+        return EchoProtocol.message(event, address, content, (type & COMPRESSED) != 0, compression);
+    }
+
+    private static String address(@Nonnull final Peers peers, final int handle) throws ProtocolException {
+        final String address = peers.address(handle);
+        if (address == null) {
+            throw new ProtocolException("Unknown handle: " + handle);
+        }
+        return address;
+    }
+
+    private static String readString(@Nonnull final InputStream in) throws IOException {
+        return new String(EchoProtocol.readBytes(in, Varint.read(in)), UTF_8);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * protocol, the protocol (convenience) logic for the echonetwork.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.protocol;
+
+import javax.annotation.Nonnull;
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static nl.dannyvanheumen.echonetwork.utils.Integers.requireAtLeast;
+
+/**
+ * Compression is the negotiated, per-connection compression of message content.
+ * <p>
+ * A client requests compression by sending {@link #COMMAND} to the control address. The server acknowledges with the
+ * same command. From then on, both sides may send compressed content. Compressed content is marked by the
+ * {@link #COMPRESSED} bit in its length-prefix, so compressed and uncompressed content mix freely.
+ * <p>
+ * Every content is compressed on its own: raw deflate, primed with a preset dictionary of common OTR message prefixes
+ * that both sides share. The server therefore relays compressed content as-is between two clients that both negotiated
+ * compression. Content smaller than the threshold is not compressed, nor is content that does not shrink, nor are
+ * control messages.
+ * <p>
+ * Compressing and decompressing are independent. Each must be performed by at most one thread at a time, e.g.
+ * compressing by the writing thread and decompressing by the reading thread.
+ */
+public final class Compression {
+
+    /**
+     * COMMAND is the control command that requests, resp. acknowledges, compression.
+     */
+    public static final String COMMAND = "compress deflate";
+
+    /**
+     * COMPRESSED is the bit in the content's length-prefix that marks compressed content.
+     */
+    public static final int COMPRESSED = 0x8000_0000;
+
+    /**
+     * DEFAULT_THRESHOLD is the default size (in bytes) from which content is compressed.
+     */
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    /**
+     * MAX_SIZE is the maximum size of decompressed content.
+     */
+    public static final int MAX_SIZE = 1 << 24;
+
+    private static final int INITIAL_SIZE = 64;
+
+    private static final byte[] NONE = new byte[0];
+
+    /**
+     * The preset dictionary. Deflate favors matches at the end of the dictionary, so the most common strings go last.
+     */
+    private static final byte[] DICTIONARY = ("?OTR Error: ?OTRv234? ?OTRv34? ?OTRv3? ?OTR|?OTR,?OTR:AAQD?OTR:AAMD"
+            + "?OTR:AAQ?OTR:AAM?OTR:AA").getBytes(US_ASCII);
+
+    private final int threshold;
+
+    private volatile boolean accepted;
+
+    private volatile boolean requested;
+
+    private Deflater deflater;
+
+    private Inflater inflater;
+
+    /**
+     * Constructor for Compression.
+     *
+     * @param threshold the size (in bytes) from which content is compressed
+     */
+    public Compression(final int threshold) {
+        this.threshold = requireAtLeast(1, threshold);
+    }
+
+    /**
+     * Indicates whether the length-prefix marks compressed content.
+     *
+     * @param prefix the length-prefix
+     * @return Returns true iff the content is compressed.
+     */
+    public static boolean isCompressed(final int prefix) {
+        return (prefix & COMPRESSED) != 0;
+    }
+
+    /**
+     * Indicates whether compression is negotiated. (Thread-safe)
+     *
+     * @return Returns true iff negotiated.
+     */
+    public boolean accepted() {
+        return this.accepted;
+    }
+
+    /**
+     * Record that compression is negotiated. (Thread-safe)
+     */
+    public void accept() {
+        this.accepted = true;
+    }
+
+    /**
+     * Indicates whether compressed content may be received, i.e. compression is requested or negotiated. The peer may
+     * compress as soon as it acknowledged, so content that arrives before the acknowledgement is processed may already
+     * be compressed. (Thread-safe)
+     *
+     * @return Returns true iff compressed content may be received.
+     */
+    public boolean requested() {
+        return this.requested || this.accepted;
+    }
+
+    /**
+     * Record that compression is requested from the peer. (Thread-safe)
+     */
+    public void request() {
+        this.requested = true;
+    }
+
+    /**
+     * Compress content, if worthwhile.
+     *
+     * @param content the content
+     * @param offset  the offset of the content
+     * @param length  the length of the content
+     * @return Returns the compressed content, or an empty array if the content is smaller than the threshold or does not
+     * shrink.
+     */
+    @Nonnull
+    public byte[] compress(final byte[] content, final int offset, final int length) {
+        if (length < this.threshold) {
+            return NONE;
+        }
+        if (this.deflater == null) {
+            this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        this.deflater.reset();
+        this.deflater.setDictionary(DICTIONARY);
+        this.deflater.setInput(content, offset, length);
+        this.deflater.finish();
+        final byte[] compressed = new byte[length];
+        int size = 0;
+        while (!this.deflater.finished() && size < compressed.length) {
+            size += this.deflater.deflate(compressed, size, compressed.length - size);
+        }
+        return this.deflater.finished() ? Arrays.copyOf(compressed, size) : NONE;
+    }
+
+    /**
+     * Decompress content.
+     *
+     * @param compressed the compressed content
+     * @param offset     the offset of the compressed content
+     * @param length     the length of the compressed content
+     * @return Returns the decompressed content.
+     * @throws ProtocolException In case the content is invalid, or exceeds {@link #MAX_SIZE} when decompressed.
+     */
+    public byte[] decompress(final byte[] compressed, final int offset, final int length) throws ProtocolException {
+        if (this.inflater == null) {
+            this.inflater = new Inflater(true);
+        }
+        this.inflater.reset();
+        this.inflater.setDictionary(DICTIONARY);
+        this.inflater.setInput(compressed, offset, length);
+        byte[] content = new byte[(int) Math.min(MAX_SIZE, Math.max(INITIAL_SIZE, 4L * length))];
+        int size = 0;
+        try {
+            while (!this.inflater.finished()) {
+                if (size == content.length) {
+                    if (size == MAX_SIZE) {
+                        throw new ProtocolException("Decompressed content exceeds maximum size.");
+                    }
+                    content = Arrays.copyOf(content, (int) Math.min(MAX_SIZE, 2L * size));
+                }
+                final int n = this.inflater.inflate(content, size, content.length - size);
+                if (n == 0 && this.inflater.needsInput()) {
+                    throw new ProtocolException("Compressed content is incomplete.");
+                }
+                size += n;
+            }
+        } catch (final DataFormatException e) {
+            throw new ProtocolException("Invalid compressed content: " + e.getMessage());
+        }
+        return size == content.length ? content : Arrays.copyOf(content, size);
+    }
+
+    /**
+     * Release the native resources of the deflater and inflater. Compression must not be used afterwards.
+     */
+    public void end() {
+        if (this.deflater != null) {
+            this.deflater.end();
+        }
+        if (this.inflater != null) {
+            this.inflater.end();
+        }
+    }
+}
@@ -5,18 +5,26 @@
 package nl.dannyvanheumen.echonetwork.protocol;
 
 import javax.annotation.Nonnull;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.math.BigInteger;
+import java.net.InetAddress;
 import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Objects.requireNonNull;
 
 /**
  * Utilities for reading/writing messages in the length-value format.
+ * <p>
+ * Messages are read completely, however the data arrives: partial reads are retried until the message is complete or
+ * the stream ends. For reading from buffers, e.g. non-blocking channels, see {@link FrameCodec}.
  */
 public final class EchoProtocol {
 
@@ -25,25 +33,154 @@ public final class EchoProtocol {
      */
     public static final int DEFAULT_PORT = 8080;
 
+    /**
+     * CONTROL_ADDRESS is the (empty) address for control messages between client and server: {@code join <group>},
+     * {@code leave <group>}, {@code attach <name>}, {@code detach <name>}, and keepalive pings and pongs.
+     */
+    public static final String CONTROL_ADDRESS = "";
+
+    /**
+     * PING is the prefix of a keepalive ping from the server, followed by a token. Clients must answer with
+     * {@link #PONG} and the same token, see {@link Message#pong()}.
+     */
+    public static final String PING = "ping ";
+
+    /**
+     * PONG is the prefix of the answer to a keepalive ping.
+     */
+    public static final String PONG = "pong ";
+
+    /**
+     * GROUP_PREFIX is the prefix of group addresses. A message sent to a group address is delivered to every member of
+     * the group.
+     */
+    public static final String GROUP_PREFIX = "group:";
+
+    /**
+     * ATTACH is the prefix of the control command that attaches a logical endpoint to the connection, followed by the
+     * endpoint's name. The endpoint's address is the connection's address, {@link #ENDPOINT_SEPARATOR} and the name.
+     * {@link #DETACH} detaches the endpoint again. See {@link Multiplexer}.
+     */
+    public static final String ATTACH = "attach ";
+
+    /**
+     * DETACH is the prefix of the control command that detaches a logical endpoint, followed by the endpoint's name.
+     */
+    public static final String DETACH = "detach ";
+
+    /**
+     * ENDPOINT_SEPARATOR separates the connection's address and an endpoint's name in the endpoint's address.
+     */
+    public static final char ENDPOINT_SEPARATOR = '/';
+
+    /**
+     * ROUTE_SEPARATOR separates an endpoint's name and the peer's address in the address of a frame for an endpoint:
+     * {@code <name> <address>}. From the client, the frame is sent by the endpoint to the address. From the server, the
+     * frame is sent by the address to the endpoint. Endpoint names contain neither separator.
+     */
+    public static final char ROUTE_SEPARATOR = ' ';
+
+    /**
+     * TLS_PROPERTY is the system property that enables TLS for client connections, see
+     * {@link #connect(InetAddress, int)}.
+     */
+    public static final String TLS_PROPERTY = "echonetwork.tls";
+
+    /**
+     * COMPRESSION_PROPERTY is the system property that makes clients request compression, see {@link Compression}.
+     */
+    public static final String COMPRESSION_PROPERTY = "echonetwork.compression";
+
+    /**
+     * COMPACT_PROPERTY is the system property that makes clients negotiate the {@link CompactProtocol}.
+     */
+    public static final String COMPACT_PROPERTY = "echonetwork.compact";
+
+    private static final int LENGTH_SIZE = 4;
+
     private EchoProtocol() {
         // No need to instantiate utility class.
     }
 
     /**
      * Receive a message from the provided inputstream.
+     * <p>
+     * Messages are expected to be received by a single thread per inputstream. The inputstream is not locked.
      *
      * @param in the inputstream
      * @return Returns the read Message
      * @throws IOException thrown if failing to read message.
      */
-    @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
     @Nonnull
     public static Message receiveMessage(@Nonnull final InputStream in) throws IOException {
-        synchronized (in) {
-            final byte[] address = readValue(in);
-            final byte[] message = readValue(in);
-            return new Message(new String(address, UTF_8), new String(message, UTF_8));
+        final Events.MessageReceived event = Events.messageReceived();
+        final byte[] address = readValue(in);
+        final byte[] message = readValue(in);
+        final Message result = new Message(new String(address, UTF_8), new String(message, UTF_8));
+        event.complete(result.address, message.length);
+        return result;
+    }
+
+    /**
+     * Receive a message from the provided inputstream, on a connection that may negotiate compression.
+     * <p>
+     * Compressed content is decompressed. The server's acknowledgement of compression, {@link Compression#COMMAND}
+     * from the control address, is recorded in the compression and returned as any other message.
+     *
+     * @param in          the inputstream
+     * @param compression the connection's compression
+     * @return Returns the read Message
+     * @throws IOException thrown if failing to read message, or if the compressed content is invalid. In the latter
+     *                     case, the message is read completely, so subsequent messages can still be read.
+     */
+    @Nonnull
+    public static Message receiveMessage(@Nonnull final InputStream in, @Nonnull final Compression compression)
+            throws IOException {
+        return receiveMessage(in, readLength(in), compression);
+    }
+
+    /**
+     * Receive the remainder of a message, of which the length of the address is already read.
+     *
+     * @param in            the inputstream
+     * @param addressLength the length of the address
+     * @param compression   the connection's compression
+     * @return Returns the read Message
+     * @throws IOException thrown if failing to read message, or if the compressed content is invalid.
+     */
+    @Nonnull
+    static Message receiveMessage(@Nonnull final InputStream in, final int addressLength,
+            @Nonnull final Compression compression) throws IOException {
+        final Events.MessageReceived event = Events.messageReceived();
+        final byte[] address = readBytes(in, addressLength);
+        final int length = readLength(in);
+        final byte[] content = readBytes(in, length & ~Compression.COMPRESSED);
+        return message(event, new String(address, UTF_8), content, Compression.isCompressed(length), compression);
+    }
+
+    /**
+     * Complete a received message: decompress its content if needed, and record the server's acknowledgement of
+     * compression.
+     *
+     * @param event       the event of receiving the message
+     * @param address     the address
+     * @param content     the (possibly compressed) content
+     * @param compressed  indicates that the content is compressed
+     * @param compression the connection's compression
+     * @return Returns the message.
+     * @throws ProtocolException In case of invalid compressed content.
+     */
+    @Nonnull
+    static Message message(@Nonnull final Events.MessageReceived event, @Nonnull final String address,
+            @Nonnull final byte[] content, final boolean compressed, @Nonnull final Compression compression)
+            throws ProtocolException {
+        final byte[] message = compressed ? compression.decompress(content, 0, content.length) : content;
+        final Message result = new Message(address, new String(message, UTF_8));
+        if (result.isControl() && Compression.COMMAND.equals(result.content)) {
+            compression.accept();
         }
+        event.complete(result.address, message.length);
+        return result;
     }
 
     /**
@@ -59,54 +196,116 @@ public final class EchoProtocol {
 
     /**
      * Send message to the outputstream.
+     * <p>
+     * The messages are assembled and written in a single write. The outputstream is not locked. Callers that share an
+     * outputstream among threads are responsible for mutual exclusion, for example by using a {@link MessageWriter}.
      *
      * @param out      the output stream
      * @param address  the address
      * @param messages the message to be sent
      * @throws IOException throws if failing to write to the output stream
      */
-    @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
     public static void sendMessage(@Nonnull final OutputStream out, @Nonnull final String address,
                                    @Nonnull final String... messages) throws IOException {
-        synchronized (out) {
-            for (final String message : messages) {
-                writeValue(out, address.getBytes(UTF_8));
-                writeValue(out, message.getBytes(UTF_8));
-            }
-            out.flush();
-        }
+        sendMessage(out, encodeValue(address), messages);
     }
 
-    private static byte[] readValue(@Nonnull final InputStream in) throws IOException {
-        final byte[] length = new byte[4];
-        if (in.read(length, 0, length.length) != length.length) {
-            throw new ProtocolException("Failure reading message from input.");
+    /**
+     * Send messages to the outputstream, with the address already encoded.
+     * <p>
+     * This is intended for addresses that are used many times, such as the sender-address that the server puts on
+     * every relayed message. The address is encoded only once, using {@link #encodeValue(String)}.
+     *
+     * @param out            the output stream
+     * @param encodedAddress the address, in encoded (length-value) form
+     * @param messages       the messages to be sent
+     * @throws IOException throws if failing to write to the output stream
+     */
+    public static void sendMessage(@Nonnull final OutputStream out, @Nonnull final byte[] encodedAddress,
+                                   @Nonnull final String... messages) throws IOException {
+        final byte[][] contents = new byte[messages.length][];
+        int size = 0;
+        for (int i = 0; i < messages.length; i++) {
+            contents[i] = messages[i].getBytes(UTF_8);
+            size += encodedAddress.length + LENGTH_SIZE + contents[i].length;
         }
-        final byte[] entry = new byte[parseLength(length)];
-        if (in.read(entry, 0, entry.length) != entry.length) {
-            throw new ProtocolException("Failed to acquire a complete message.");
+        final ByteBuffer frame = ByteBuffer.allocate(size);
+        for (final byte[] content : contents) {
+            frame.put(encodedAddress).putInt(content.length).put(content);
         }
-        return entry;
+        out.write(frame.array(), 0, size);
+        out.flush();
     }
 
-    private static void writeValue(@Nonnull final OutputStream out, @Nonnull final byte[] value) throws IOException {
-        out.write(encodeLength(value.length), 0, 4);
-        out.write(value, 0, value.length);
+    /**
+     * Encode a value in length-value format.
+     *
+     * @param value the value
+     * @return Returns the encoded value, i.e. the length followed by the UTF-8-encoded bytes.
+     */
+    @Nonnull
+    public static byte[] encodeValue(@Nonnull final String value) {
+        final byte[] bytes = value.getBytes(UTF_8);
+        return ByteBuffer.allocate(LENGTH_SIZE + bytes.length).putInt(bytes.length).put(bytes).array();
+    }
+
+    private static byte[] readValue(@Nonnull final InputStream in) throws IOException {
+        return readBytes(in, readLength(in));
+    }
+
+    private static int readLength(@Nonnull final InputStream in) throws IOException {
+        return ByteBuffer.wrap(readBytes(in, LENGTH_SIZE)).getInt();
     }
 
-    private static byte[] encodeLength(final int length) {
+    /**
+     * Read exactly the specified number of bytes.
+     *
+     * @param in     the inputstream
+     * @param length the number of bytes
+     * @return Returns the bytes.
+     * @throws IOException In case of an illegal length, failure to read, or end of stream.
+     */
+    @Nonnull
+    static byte[] readBytes(@Nonnull final InputStream in, final int length) throws IOException {
         if (length < 0) {
-            throw new IllegalArgumentException("Illegal value for length. Length must be zero or positive.");
+            throw new ProtocolException("Illegal length value.");
+        }
+        final byte[] bytes = in.readNBytes(length);
+        if (bytes.length < length) {
+            throw new EOFException("End of stream inside frame.");
         }
-        final byte[] bytes = BigInteger.valueOf(length).toByteArray();
-        final byte[] sized = new byte[4];
-        final int offset = Math.max(0, sized.length - bytes.length);
-        System.arraycopy(bytes, 0, sized, offset, sized.length - offset);
-        return sized;
+        return bytes;
     }
 
-    private static int parseLength(@Nonnull final byte[] lengthBytes) {
-        return new BigInteger(1, lengthBytes).intValue();
+    /**
+     * Connect to the server.
+     * <p>
+     * The connection uses TLS if system property {@value #TLS_PROPERTY} is {@code true}. The server's certificate is
+     * verified against the default trust store, as configured with the standard system properties
+     * {@code javax.net.ssl.trustStore} and {@code javax.net.ssl.trustStorePassword}, and must match the host name. TLS
+     * sessions are cached, such that reconnecting to the same server resumes the session.
+     *
+     * @param host the server's host
+     * @param port the server's port
+     * @return Returns the connection, with the TLS handshake completed if applicable.
+     * @throws IOException In case of failure to connect, or failure of the TLS handshake.
+     */
+    @Nonnull
+    public static Socket connect(@Nonnull final InetAddress host, final int port) throws IOException {
+        if (!Boolean.getBoolean(TLS_PROPERTY)) {
+            return new Socket(host, port);
+        }
+        final SSLSocket connection = (SSLSocket) SSLSocketFactory.getDefault().createSocket(host, port);
+        try {
+            final SSLParameters parameters = connection.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            connection.setSSLParameters(parameters);
+            connection.startHandshake();
+        } catch (final IOException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
     }
 
     /**
@@ -158,5 +357,33 @@ public final class EchoProtocol {
             this.address = requireNonNull(address);
             this.content = requireNonNull(content);
         }
+
+        /**
+         * Indicates whether the message is a control message from the server, i.e. from the control address.
+         *
+         * @return Returns true iff the message is a control message.
+         */
+        public boolean isControl() {
+            return CONTROL_ADDRESS.equals(this.address);
+        }
+
+        /**
+         * Indicates whether the message is a keepalive ping from the server.
+         *
+         * @return Returns true iff the message is a ping.
+         */
+        public boolean isPing() {
+            return isControl() && this.content.startsWith(PING);
+        }
+
+        /**
+         * Create the answer to a keepalive ping.
+         *
+         * @return Returns the pong, to be sent to the server.
+         */
+        @Nonnull
+        public Message pong() {
+            return new Message(CONTROL_ADDRESS, PONG + this.content.substring(PING.length()));
+        }
     }
 }
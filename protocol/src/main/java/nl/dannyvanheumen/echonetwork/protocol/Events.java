@@ -0,0 +1,103 @@
+/*
+ * protocol, the protocol (convenience) logic for the echonetwork.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.protocol;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Events contains the Java Flight Recorder events of the protocol logic.
+ */
+final class Events {
+
+    private static final String CATEGORY = "Echonetwork";
+
+    private Events() {
+        // No need to instantiate utility class.
+    }
+
+    /**
+     * Begin the event for receiving a message.
+     *
+     * @return Returns the begun event.
+     */
+    static MessageReceived messageReceived() {
+        final MessageReceived event = new MessageReceived();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Begin the event for flushing messages.
+     *
+     * @return Returns the begun event.
+     */
+    static MessagesFlushed messagesFlushed() {
+        final MessagesFlushed event = new MessagesFlushed();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * A message was received. The duration includes waiting for the message to arrive, therefore the event is
+     * disabled by default.
+     */
+    @Name("nl.dannyvanheumen.echonetwork.protocol.MessageReceived")
+    @Label("Message Received")
+    @Category({CATEGORY, "Protocol"})
+    @StackTrace(false)
+    @Enabled(false)
+    static final class MessageReceived extends Event {
+
+        @Label("Address")
+        String address;
+
+        @Label("Size")
+        @DataAmount
+        int size;
+
+        void complete(@Nonnull final String address, final int size) {
+            end();
+            if (shouldCommit()) {
+                this.address = address;
+                this.size = size;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Coalesced messages were flushed to the outputstream.
+     */
+    @Name("nl.dannyvanheumen.echonetwork.protocol.MessagesFlushed")
+    @Label("Messages Flushed")
+    @Description("Coalesced messages written and flushed to the outputstream.")
+    @Category({CATEGORY, "Protocol"})
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static final class MessagesFlushed extends Event {
+
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+
+        void complete(final int bytes) {
+            end();
+            if (shouldCommit()) {
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+}
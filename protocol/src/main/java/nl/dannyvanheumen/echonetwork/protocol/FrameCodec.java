@@ -0,0 +1,300 @@
+/*
+ * protocol, the protocol (convenience) logic for the echonetwork.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.protocol;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * FrameCodec decodes and encodes frames of the original protocol in {@link ByteBuffer}s: {@code [4-byte
+ * address-length][address][4-byte content-length][content]}.
+ * <p>
+ * Decoding is incremental: {@link #decode(ByteBuffer)} inspects the frame at the buffer's position, and succeeds only
+ * once the frame is complete. Until then, {@link #size()} tells how many bytes are needed, such that the caller can read
+ * more data, whether from a non-blocking channel or a blocking stream (see {@link #read(InputStream, ByteBuffer)}), and
+ * retry after any partial read. A decoded frame is exposed as indices in the buffer, or as slices of the buffer,
+ * without copying. Decoding does not allocate.
+ * <p>
+ * A codec holds the state of the last decoded frame, so it belongs to a single connection and is not thread-safe.
+ */
+public final class FrameCodec {
+
+    /**
+     * LENGTH_SIZE is the size of a length-prefix.
+     */
+    public static final int LENGTH_SIZE = 4;
+
+    private static final int HEADER_SIZE = 2 * LENGTH_SIZE;
+
+    @Nullable
+    private final Compression compression;
+
+    @Nullable
+    private ByteBuffer source;
+
+    private int size = LENGTH_SIZE;
+
+    private int addressIndex;
+
+    private int addressLength;
+
+    private int contentIndex;
+
+    private int contentLength;
+
+    private boolean compressed;
+
+    /**
+     * Constructor for FrameCodec.
+     *
+     * @param compression the connection's compression, or null if compression is not negotiated on the connection.
+     *                    Once compression is requested or accepted, the highest bit of the content-length marks
+     *                    compressed content.
+     */
+    public FrameCodec(@Nullable final Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Decode the frame at the buffer's position, as far as it is available. The buffer's position is not modified, see
+     * {@link #skip(ByteBuffer)}.
+     *
+     * @param src the buffer, in "read" mode, i.e. holding the received data between position and limit
+     * @return Returns true if the frame is complete, or false if more data is needed, see {@link #size()}.
+     * @throws ProtocolException In case of an illegal length value.
+     */
+    public boolean decode(@Nonnull final ByteBuffer src) throws ProtocolException {
+        final int available = src.remaining();
+        if (available < LENGTH_SIZE) {
+            this.size = LENGTH_SIZE;
+            return false;
+        }
+        final int start = src.position();
+        final int address = requireValidLength(src.getInt(start));
+        final long header = (long) HEADER_SIZE + address;
+        if (available < header) {
+            this.size = requireValidSize(header);
+            return false;
+        }
+        final int prefix = src.getInt(start + LENGTH_SIZE + address);
+        final boolean flagged = this.compression != null && this.compression.requested()
+                && Compression.isCompressed(prefix);
+        final int content = requireValidLength(flagged ? prefix & ~Compression.COMPRESSED : prefix);
+        this.size = requireValidSize(header + content);
+        if (available < this.size) {
+            return false;
+        }
+        this.source = src;
+        this.addressIndex = start + LENGTH_SIZE;
+        this.addressLength = address;
+        this.contentIndex = start + HEADER_SIZE + address;
+        this.contentLength = content;
+        this.compressed = flagged;
+        return true;
+    }
+
+    /**
+     * The size of the frame at the buffer's position, as far as known from the last call to
+     * {@link #decode(ByteBuffer)}: the full size of the frame, or, while its header is incomplete, the size of the
+     * header as far as known.
+     *
+     * @return Returns the size in bytes.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Move the buffer's position past the decoded frame.
+     *
+     * @param src the buffer
+     */
+    public void skip(@Nonnull final ByteBuffer src) {
+        src.position(this.contentIndex + this.contentLength);
+    }
+
+    /**
+     * The index of the decoded frame's address in the buffer.
+     *
+     * @return Returns the index.
+     */
+    public int addressIndex() {
+        return this.addressIndex;
+    }
+
+    /**
+     * The length of the decoded frame's address.
+     *
+     * @return Returns the length.
+     */
+    public int addressLength() {
+        return this.addressLength;
+    }
+
+    /**
+     * The index of the decoded frame's content in the buffer, i.e. directly after its length-prefix.
+     *
+     * @return Returns the index.
+     */
+    public int contentIndex() {
+        return this.contentIndex;
+    }
+
+    /**
+     * The length of the decoded frame's content.
+     *
+     * @return Returns the length.
+     */
+    public int contentLength() {
+        return this.contentLength;
+    }
+
+    /**
+     * Indicates whether the decoded frame's content is compressed.
+     *
+     * @return Returns true iff compressed.
+     */
+    public boolean compressed() {
+        return this.compressed;
+    }
+
+    /**
+     * The decoded frame's address, as a slice of the buffer.
+     *
+     * @return Returns the address.
+     */
+    @Nonnull
+    public ByteBuffer address() {
+        return slice(this.addressIndex, this.addressLength);
+    }
+
+    /**
+     * The decoded frame's content, as a slice of the buffer.
+     *
+     * @return Returns the content.
+     */
+    @Nonnull
+    public ByteBuffer content() {
+        return slice(this.contentIndex, this.contentLength);
+    }
+
+    /**
+     * The decoded frame's content including its length-prefix, as a slice of the buffer, such that it can be relayed
+     * as-is.
+     *
+     * @return Returns the encoded content.
+     */
+    @Nonnull
+    public ByteBuffer encodedContent() {
+        return slice(this.contentIndex - LENGTH_SIZE, LENGTH_SIZE + this.contentLength);
+    }
+
+    @Nonnull
+    private ByteBuffer slice(final int index, final int length) {
+        final ByteBuffer view = requireNonNull(this.source, "No frame decoded.").duplicate();
+        view.limit(index + length).position(index);
+        return view.slice();
+    }
+
+    /**
+     * Read from a blocking stream until the frame at the buffer's position is complete. The buffer is compacted or
+     * replaced by a larger buffer as needed. Reads are not limited to the frame, so subsequent frames may be (partially)
+     * read ahead.
+     *
+     * @param in     the inputstream
+     * @param buffer the (heap) buffer, in "read" mode, possibly holding data that was read ahead
+     * @return Returns the buffer holding the decoded frame at its position, i.e. the specified buffer or its
+     * replacement.
+     * @throws IOException In case of failure to read, end of stream, or illegal length values.
+     */
+    @Nonnull
+    public ByteBuffer read(@Nonnull final InputStream in, @Nonnull final ByteBuffer buffer) throws IOException {
+        ByteBuffer current = buffer;
+        while (!decode(current)) {
+            current = reserve(current);
+            final int n = in.read(current.array(), current.arrayOffset() + current.limit(),
+                    current.capacity() - current.limit());
+            if (n < 0) {
+                throw new EOFException(current.hasRemaining() ? "End of stream inside frame." : "End of stream.");
+            }
+            current.limit(current.limit() + n);
+        }
+        return current;
+    }
+
+    /**
+     * Make room for the rest of the frame at the buffer's position, as far as known from the last call to
+     * {@link #decode(ByteBuffer)}, see {@link #size()}. The buffer is compacted, or replaced by a larger buffer, only
+     * if the frame does not fit between the buffer's position and its capacity. Afterwards, the buffer has room to read
+     * more data between its limit and its capacity.
+     *
+     * @param buffer the (heap) buffer, in "read" mode
+     * @return Returns the specified buffer or its replacement, in "read" mode, with the same data remaining.
+     */
+    @Nonnull
+    public ByteBuffer reserve(@Nonnull final ByteBuffer buffer) {
+        if (buffer.capacity() < this.size) {
+            final ByteBuffer larger = ByteBuffer.allocate(Math.max(this.size, 2 * buffer.capacity()));
+            larger.put(buffer).flip();
+            return larger;
+        }
+        if (buffer.capacity() - buffer.position() < this.size) {
+            buffer.compact().flip();
+        }
+        return buffer;
+    }
+
+    /**
+     * The size of an encoded frame.
+     *
+     * @param addressLength the length of the address
+     * @param contentLength the length of the content
+     * @return Returns the size in bytes.
+     */
+    public static long encodedSize(final int addressLength, final int contentLength) {
+        return (long) HEADER_SIZE + addressLength + contentLength;
+    }
+
+    /**
+     * Encode a frame, if it fits in the buffer. Otherwise, the buffer is not modified.
+     *
+     * @param dst        the buffer, in "write" mode
+     * @param address    the address, from position to limit (position is not modified)
+     * @param content    the content, from position to limit (position is not modified)
+     * @param compressed indicates that the content is compressed
+     * @return Returns true if encoded, or false if the buffer has insufficient space remaining.
+     */
+    public static boolean encode(@Nonnull final ByteBuffer dst, @Nonnull final ByteBuffer address,
+            @Nonnull final ByteBuffer content, final boolean compressed) {
+        if (dst.remaining() < encodedSize(address.remaining(), content.remaining())) {
+            return false;
+        }
+        dst.putInt(address.remaining()).put(address.duplicate());
+        dst.putInt(compressed ? Compression.COMPRESSED | content.remaining() : content.remaining());
+        dst.put(content.duplicate());
+        return true;
+    }
+
+    private static int requireValidLength(final int length) throws ProtocolException {
+        if (length < 0) {
+            throw new ProtocolException("Illegal length value.");
+        }
+        return length;
+    }
+
+    private static int requireValidSize(final long size) throws ProtocolException {
+        if (size > Integer.MAX_VALUE) {
+            throw new ProtocolException("Message exceeds maximum size.");
+        }
+        return (int) size;
+    }
+}
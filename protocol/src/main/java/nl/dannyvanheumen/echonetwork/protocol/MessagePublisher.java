@@ -0,0 +1,162 @@
+/*
+ * protocol, the protocol (convenience) logic for the echonetwork.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.protocol;
+
+import nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.Message;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * MessagePublisher publishes the messages that an {@link AsyncEchoConnection} receives, see
+ * {@link AsyncEchoConnection#publisher()}.
+ * <p>
+ * Messages are received only on demand: a receive is pending only while the subscriber has requested more messages than
+ * it was delivered. Without demand, the connection does not read from the socket, so the data stays in the socket's
+ * buffers and TCP flow control pushes back to the sender. The publisher holds at most one received message.
+ * <p>
+ * The connection has a single stream of messages, so the publisher accepts a single subscriber. Signals to the
+ * subscriber are serialized: a drain loop, entered by one thread at a time, delivers the received message and starts the
+ * next receive, such that requesting from within {@code onNext} does not recurse.
+ */
+final class MessagePublisher implements Flow.Publisher<Message> {
+
+    private final AsyncEchoConnection connection;
+
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    MessagePublisher(@Nonnull final AsyncEchoConnection connection) {
+        this.connection = requireNonNull(connection);
+    }
+
+    @Override
+    public void subscribe(@Nonnull final Flow.Subscriber<? super Message> subscriber) {
+        requireNonNull(subscriber);
+        if (!this.subscribed.compareAndSet(false, true)) {
+            final Subscription rejected = new Subscription(this.connection, subscriber);
+            rejected.cancel();
+            subscriber.onSubscribe(rejected);
+            subscriber.onError(new IllegalStateException("The connection's messages are already subscribed to."));
+            return;
+        }
+        subscriber.onSubscribe(new Subscription(this.connection, subscriber));
+    }
+
+    /**
+     * The subscription. State that is not atomic or volatile is accessed only in the drain loop.
+     */
+    private static final class Subscription implements Flow.Subscription {
+
+        private final AsyncEchoConnection connection;
+
+        private final Flow.Subscriber<? super Message> subscriber;
+
+        private final AtomicLong demand = new AtomicLong();
+
+        /**
+         * The number of times the drain loop was entered, while in progress.
+         */
+        private final AtomicInteger work = new AtomicInteger();
+
+        private volatile boolean cancelled;
+
+        @Nullable
+        private volatile Message received;
+
+        @Nullable
+        private volatile Throwable failure;
+
+        /**
+         * Indicates that a receive is pending, i.e. its message or failure is not yet delivered.
+         */
+        private boolean receiving;
+
+        private boolean terminated;
+
+        private Subscription(@Nonnull final AsyncEchoConnection connection,
+                @Nonnull final Flow.Subscriber<? super Message> subscriber) {
+            this.connection = connection;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                this.failure = new IllegalArgumentException("Non-positive request: " + n);
+            } else {
+                this.demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+            }
+            drain();
+        }
+
+        /**
+         * Cancel the subscription. A receive that is pending at the time of cancellation still completes, its message
+         * is discarded.
+         */
+        @Override
+        public void cancel() {
+            this.cancelled = true;
+        }
+
+        private void drain() {
+            if (this.work.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                step();
+                missed = this.work.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void step() {
+            while (!this.terminated && !this.cancelled) {
+                final Throwable error = this.failure;
+                if (error != null) {
+                    terminate(error);
+                    return;
+                }
+                final Message message = this.received;
+                if (message != null) {
+                    this.received = null;
+                    this.receiving = false;
+                    this.demand.getAndUpdate(d -> d == Long.MAX_VALUE ? d : d - 1);
+                    this.subscriber.onNext(message);
+                    continue;
+                }
+                if (this.receiving || this.demand.get() == 0) {
+                    return;
+                }
+                this.receiving = true;
+                this.connection.receive().whenComplete(this::received);
+            }
+        }
+
+        private void received(@Nullable final Message message, @Nullable final Throwable error) {
+            if (error == null) {
+                this.received = message;
+            } else {
+                this.failure = error;
+            }
+            drain();
+        }
+
+        private void terminate(@Nonnull final Throwable error) {
+            this.terminated = true;
+            if (error instanceof EOFException && this.connection.ended()) {
+                this.subscriber.onComplete();
+            } else {
+                this.subscriber.onError(error);
+            }
+        }
+    }
+}
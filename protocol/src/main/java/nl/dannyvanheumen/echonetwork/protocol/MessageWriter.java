@@ -0,0 +1,432 @@
+/*
+ * protocol, the protocol (convenience) logic for the echonetwork.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.protocol;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.encodeValue;
+import static nl.dannyvanheumen.echonetwork.utils.Integers.requireAtLeast;
+
+/**
+ * MessageWriter writes messages to an outputstream, coalescing consecutive messages into as few writes as possible.
+ * <p>
+ * Messages are assembled in a buffer. The buffer is flushed as soon as the writer is idle, i.e. no further messages
+ * are pending. While busy, flushing is postponed until either the byte-limit or the delay-limit is reached. An idle
+ * connection therefore sees no added latency, while a busy connection gets fewer, larger writes.
+ * <p>
+ * MessageWriter is thread-safe. Threads waiting for their turn to write count as pending messages.
+ * <p>
+ * With a {@link Compression}, content is compressed once compression is negotiated, except for control messages. With
+ * {@link Peers}, messages are written in the {@link CompactProtocol}, addressing peers by handle once announced.
+ * Several messages sent together are written as a single {@link CompactProtocol#BATCH} frame, such that the server
+ * routes them in one pass.
+ */
+@SuppressWarnings("PMD.GodClass")
+public final class MessageWriter {
+
+    /**
+     * The default maximum number of bytes to coalesce before flushing.
+     */
+    public static final int DEFAULT_MAX_BYTES = 1 << 16;
+
+    /**
+     * The default maximum delay (in nanoseconds) before flushing a busy writer.
+     */
+    public static final long DEFAULT_MAX_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final int LENGTH_SIZE = 4;
+
+    /**
+     * The maximum size of a header in the compact protocol: the type and a varint.
+     */
+    private static final int HEADER_SIZE = 1 + Varint.MAX_SIZE;
+
+    /**
+     * The minimum number of messages that are written as a batch in the compact protocol.
+     */
+    private static final int MIN_BATCH = 2;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final OutputStream out;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final byte[] buffer;
+
+    private final long maxDelayNanos;
+
+    @Nullable
+    private final Compression compression;
+
+    @Nullable
+    private final Peers peers;
+
+    private int count;
+
+    private boolean pending;
+
+    private long pendingSince;
+
+    /**
+     * Constructor for MessageWriter with default limits.
+     *
+     * @param out the outputstream
+     */
+    public MessageWriter(@Nonnull final OutputStream out) {
+        this(out, DEFAULT_MAX_BYTES, DEFAULT_MAX_DELAY_NANOS);
+    }
+
+    /**
+     * Constructor for MessageWriter.
+     *
+     * @param out           the outputstream
+     * @param maxBytes      the maximum number of bytes to coalesce before flushing
+     * @param maxDelayNanos the maximum delay (in nanoseconds) before flushing, while busy
+     */
+    public MessageWriter(@Nonnull final OutputStream out, final int maxBytes, final long maxDelayNanos) {
+        this(out, maxBytes, maxDelayNanos, null, null);
+    }
+
+    /**
+     * Constructor for MessageWriter with default limits and compression.
+     *
+     * @param out         the outputstream
+     * @param compression the connection's compression
+     */
+    public MessageWriter(@Nonnull final OutputStream out, @Nonnull final Compression compression) {
+        this(out, DEFAULT_MAX_BYTES, DEFAULT_MAX_DELAY_NANOS, requireNonNull(compression), null);
+    }
+
+    /**
+     * Constructor for MessageWriter with default limits and compression, writing the compact protocol. The hello must
+     * be sent first, see {@link #hello()}.
+     *
+     * @param out         the outputstream
+     * @param compression the connection's compression
+     * @param peers       the connection's peers
+     */
+    public MessageWriter(@Nonnull final OutputStream out, @Nonnull final Compression compression,
+            @Nonnull final Peers peers) {
+        this(out, DEFAULT_MAX_BYTES, DEFAULT_MAX_DELAY_NANOS, requireNonNull(compression), requireNonNull(peers));
+    }
+
+    private MessageWriter(@Nonnull final OutputStream out, final int maxBytes, final long maxDelayNanos,
+            @Nullable final Compression compression, @Nullable final Peers peers) {
+        this.out = requireNonNull(out);
+        this.buffer = new byte[requireAtLeast(HEADER_SIZE, maxBytes)];
+        this.maxDelayNanos = maxDelayNanos;
+        this.compression = compression;
+        this.peers = peers;
+    }
+
+    /**
+     * Send the hello of the compact protocol. The hello must be sent before any message.
+     *
+     * @throws IOException In case of failure to write to the outputstream.
+     */
+    public void hello() throws IOException {
+        if (this.peers == null) {
+            throw new IllegalStateException("MessageWriter does not write the compact protocol.");
+        }
+        this.lock.lock();
+        try {
+            flushBuffer();
+            CompactProtocol.hello(this.out);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Send messages.
+     *
+     * @param address  the address
+     * @param messages the messages to be sent
+     * @throws IOException In case of failure to write to the outputstream.
+     */
+    public void sendMessage(@Nonnull final String address, @Nonnull final String... messages) throws IOException {
+        if (this.peers == null) {
+            sendMessage(encodeValue(address), messages);
+        } else {
+            sendCompact(this.peers, address, messages);
+        }
+    }
+
+    /**
+     * Send messages, with the address already encoded.
+     *
+     * @param encodedAddress the address, in encoded (length-value) form
+     * @param messages       the messages to be sent
+     * @throws IOException In case of failure to write to the outputstream.
+     */
+    public void sendMessage(@Nonnull final byte[] encodedAddress, @Nonnull final String... messages)
+            throws IOException {
+        if (this.peers != null) {
+            sendCompact(this.peers, new String(encodedAddress, LENGTH_SIZE, encodedAddress.length - LENGTH_SIZE, UTF_8),
+                    messages);
+            return;
+        }
+        this.lock.lock();
+        try {
+            begin();
+            for (final String message : messages) {
+                appendMessage(encodedAddress, message);
+            }
+            complete(this.lock.hasQueuedThreads());
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Send messages for one or more destinations together. In the compact protocol, the messages are written as a
+     * single batch. Otherwise, they are written as consecutive messages.
+     *
+     * @param messages the messages, each with its destination address
+     * @throws IOException In case of failure to write to the outputstream.
+     */
+    public void sendBatch(@Nonnull final List<EchoProtocol.Message> messages) throws IOException {
+        this.lock.lock();
+        try {
+            begin();
+            if (this.peers == null) {
+                for (final EchoProtocol.Message message : messages) {
+                    appendMessage(encodeValue(message.address), message.content);
+                }
+            } else if (messages.size() < MIN_BATCH) {
+                for (final EchoProtocol.Message message : messages) {
+                    appendCompact(this.peers, message.address, message.content);
+                }
+            } else {
+                appendBatch(this.peers, messages);
+            }
+            complete(this.lock.hasQueuedThreads());
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void sendCompact(@Nonnull final Peers peers, @Nonnull final String address,
+            @Nonnull final String... messages) throws IOException {
+        if (messages.length >= MIN_BATCH) {
+            final EchoProtocol.Message[] batch = new EchoProtocol.Message[messages.length];
+            for (int i = 0; i < messages.length; i++) {
+                batch[i] = new EchoProtocol.Message(address, messages[i]);
+            }
+            sendBatch(List.of(batch));
+            return;
+        }
+        this.lock.lock();
+        try {
+            begin();
+            for (final String message : messages) {
+                appendCompact(peers, address, message);
+            }
+            complete(this.lock.hasQueuedThreads());
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void appendMessage(@Nonnull final byte[] encodedAddress, @Nonnull final String message)
+            throws IOException {
+        append(encodedAddress, 0, encodedAddress.length);
+        final byte[] content = message.getBytes(UTF_8);
+        final byte[] compressed = compress(encodedAddress.length == LENGTH_SIZE, content);
+        if (compressed.length == 0) {
+            appendLength(content.length);
+            append(content, 0, content.length);
+        } else {
+            appendLength(Compression.COMPRESSED | compressed.length);
+            append(compressed, 0, compressed.length);
+        }
+    }
+
+    private void appendCompact(@Nonnull final Peers peers, @Nonnull final String address,
+            @Nonnull final String message) throws IOException {
+        final int handle = peers.handle(address);
+        final byte[] content = message.getBytes(UTF_8);
+        final byte[] compressed = compress(address.isEmpty(), content);
+        final byte[] body = compressed.length == 0 ? content : compressed;
+        final int flags = compressed.length == 0 ? 0 : CompactProtocol.COMPRESSED;
+        if (handle == 0) {
+            final byte[] encodedAddress = address.getBytes(UTF_8);
+            appendHeader(CompactProtocol.MESSAGE | flags, encodedAddress.length);
+            append(encodedAddress, 0, encodedAddress.length);
+        } else {
+            appendHeader(CompactProtocol.ADDRESSED | flags, handle);
+        }
+        appendVarint(body.length);
+        append(body, 0, body.length);
+    }
+
+    /**
+     * Append a batch. The frames are assembled first, as the batch is prefixed with its length.
+     */
+    private void appendBatch(@Nonnull final Peers peers, @Nonnull final List<EchoProtocol.Message> messages)
+            throws IOException {
+        final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        final byte[] varint = new byte[Varint.MAX_SIZE];
+        for (final EchoProtocol.Message message : messages) {
+            final int handle = peers.handle(message.address);
+            final byte[] content = message.content.getBytes(UTF_8);
+            final byte[] compressed = compress(message.address.isEmpty(), content);
+            final byte[] body = compressed.length == 0 ? content : compressed;
+            final int flags = compressed.length == 0 ? 0 : CompactProtocol.COMPRESSED;
+            if (handle == 0) {
+                final byte[] encodedAddress = message.address.getBytes(UTF_8);
+                batch.write(CompactProtocol.MESSAGE | flags);
+                batch.write(varint, 0, Varint.put(varint, 0, encodedAddress.length));
+                batch.writeBytes(encodedAddress);
+            } else {
+                batch.write(CompactProtocol.ADDRESSED | flags);
+                batch.write(varint, 0, Varint.put(varint, 0, handle));
+            }
+            batch.write(varint, 0, Varint.put(varint, 0, body.length));
+            batch.writeBytes(body);
+        }
+        final byte[] encoded = batch.toByteArray();
+        appendHeader(CompactProtocol.BATCH, encoded.length);
+        append(encoded, 0, encoded.length);
+    }
+
+    /**
+     * Write a message that is already encoded, e.g. a cached address with relayed content. Both parts must include
+     * their length-prefix. The buffers' positions are not modified.
+     *
+     * @param address the encoded address
+     * @param content the encoded content
+     * @param more    indicates that the caller has further messages ready to be written, such that flushing may be
+     *                postponed
+     * @throws IOException In case of failure to write to the outputstream.
+     */
+    public void write(@Nonnull final ByteBuffer address, @Nonnull final ByteBuffer content, final boolean more)
+            throws IOException {
+        this.lock.lock();
+        try {
+            begin();
+            append(address);
+            append(content);
+            complete(more || this.lock.hasQueuedThreads());
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Flush any coalesced messages.
+     *
+     * @throws IOException In case of failure to write to the outputstream.
+     */
+    public void flush() throws IOException {
+        this.lock.lock();
+        try {
+            flushBuffer();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Nonnull
+    private byte[] compress(final boolean control, @Nonnull final byte[] content) {
+        if (this.compression == null || !this.compression.accepted() || control) {
+            return EMPTY;
+        }
+        return this.compression.compress(content, 0, content.length);
+    }
+
+    private void begin() {
+        if (!this.pending) {
+            this.pending = true;
+            this.pendingSince = System.nanoTime();
+        }
+    }
+
+    private void complete(final boolean more) throws IOException {
+        if (!more || this.count == this.buffer.length || System.nanoTime() - this.pendingSince >= this.maxDelayNanos) {
+            flushBuffer();
+        }
+    }
+
+    private void appendLength(final int length) throws IOException {
+        if (this.buffer.length - this.count < LENGTH_SIZE) {
+            writeBuffer();
+        }
+        ByteBuffer.wrap(this.buffer, this.count, LENGTH_SIZE).putInt(length);
+        this.count += LENGTH_SIZE;
+    }
+
+    private void appendHeader(final int type, final int value) throws IOException {
+        if (this.buffer.length - this.count < HEADER_SIZE) {
+            writeBuffer();
+        }
+        this.buffer[this.count++] = (byte) type;
+        this.count = Varint.put(this.buffer, this.count, value);
+    }
+
+    private void appendVarint(final int value) throws IOException {
+        if (this.buffer.length - this.count < Varint.MAX_SIZE) {
+            writeBuffer();
+        }
+        this.count = Varint.put(this.buffer, this.count, value);
+    }
+
+    private void append(@Nonnull final byte[] bytes, final int offset, final int length) throws IOException {
+        if (length > this.buffer.length - this.count) {
+            writeBuffer();
+            if (length >= this.buffer.length) {
+                this.out.write(bytes, offset, length);
+                return;
+            }
+        }
+        System.arraycopy(bytes, offset, this.buffer, this.count, length);
+        this.count += length;
+    }
+
+    private void append(@Nonnull final ByteBuffer bytes) throws IOException {
+        if (bytes.hasArray()) {
+            append(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            return;
+        }
+        final int length = bytes.remaining();
+        if (length > this.buffer.length - this.count) {
+            writeBuffer();
+            if (length >= this.buffer.length) {
+                Channels.newChannel(this.out).write(bytes.duplicate());
+                return;
+            }
+        }
+        bytes.duplicate().get(this.buffer, this.count, length);
+        this.count += length;
+    }
+
+    private void writeBuffer() throws IOException {
+        if (this.count > 0) {
+            this.out.write(this.buffer, 0, this.count);
+            this.count = 0;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        final Events.MessagesFlushed event = Events.messagesFlushed();
+        final int bytes = this.count;
+        writeBuffer();
+        this.out.flush();
+        this.pending = false;
+        event.complete(bytes);
+    }
+}
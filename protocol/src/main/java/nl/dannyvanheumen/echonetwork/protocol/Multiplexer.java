@@ -0,0 +1,166 @@
+/*
+ * protocol, the protocol (convenience) logic for the echonetwork.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.protocol;
+
+import nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.Message;
+
+import javax.annotation.Nonnull;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import static java.util.Objects.requireNonNull;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.ATTACH;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.CONTROL_ADDRESS;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.DETACH;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.ENDPOINT_SEPARATOR;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.ROUTE_SEPARATOR;
+
+/**
+ * Multiplexer serves many logical endpoints over a single {@link AsyncEchoConnection}. Each endpoint has an address of
+ * its own, i.e. the connection's address, {@link EchoProtocol#ENDPOINT_SEPARATOR} and the endpoint's name, and its own
+ * handler for the messages that it receives.
+ * <p>
+ * Endpoints are attached with the control command {@value EchoProtocol#ATTACH}{@code <name>}. The server prefixes the
+ * sender-address of messages for an endpoint with the endpoint's name and {@link EchoProtocol#ROUTE_SEPARATOR}, by
+ * which the multiplexer dispatches them to the endpoint's handler, with the prefix removed. Likewise, the endpoint
+ * prefixes the destination of the messages that it sends.
+ * <p>
+ * The multiplexer receives all messages of the connection. Messages for the connection itself are delivered to the
+ * connection's handler, except for keepalive pings, which the multiplexer answers. Handlers are called by one thread at
+ * a time, in order of arrival, and should not block. (Thread-safe)
+ */
+public final class Multiplexer {
+
+    private final AsyncEchoConnection connection;
+
+    private final Consumer<? super Message> handler;
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    private final CompletableFuture<Void> done;
+
+    /**
+     * Constructor for Multiplexer. Receiving starts immediately.
+     *
+     * @param connection the connection, which must not be used for receiving otherwise
+     * @param handler    the handler for messages for the connection itself
+     */
+    public Multiplexer(@Nonnull final AsyncEchoConnection connection, @Nonnull final Consumer<? super Message> handler) {
+        this.connection = requireNonNull(connection);
+        this.handler = requireNonNull(handler);
+        this.done = connection.receive(this::dispatch);
+    }
+
+    /**
+     * The end of receiving, see {@link AsyncEchoConnection#receive(Consumer)}.
+     *
+     * @return Returns the future that fails with the cause of the end of receiving.
+     */
+    @Nonnull
+    public CompletableFuture<Void> done() {
+        return this.done;
+    }
+
+    /**
+     * Attach an endpoint to the connection.
+     *
+     * @param name    the endpoint's name, unique for the connection, without {@link EchoProtocol#ROUTE_SEPARATOR} or
+     *                {@link EchoProtocol#ENDPOINT_SEPARATOR}
+     * @param handler the handler for messages for the endpoint, with the sender's address
+     * @return Returns the future endpoint, which completes when the command is written. The server processes the
+     * command before any subsequent message.
+     * @throws IllegalArgumentException In case of an invalid name.
+     * @throws IllegalStateException    In case an endpoint with the same name is attached.
+     */
+    @Nonnull
+    public CompletableFuture<Endpoint> attach(@Nonnull final String name,
+            @Nonnull final Consumer<? super Message> handler) {
+        if (name.isEmpty() || name.indexOf(ROUTE_SEPARATOR) >= 0 || name.indexOf(ENDPOINT_SEPARATOR) >= 0) {
+            throw new IllegalArgumentException("Invalid endpoint name: " + name);
+        }
+        final Endpoint endpoint = new Endpoint(name, requireNonNull(handler));
+        if (this.endpoints.putIfAbsent(name, endpoint) != null) {
+            throw new IllegalStateException("Endpoint is already attached: " + name);
+        }
+        return this.connection.send(CONTROL_ADDRESS, ATTACH + name).thenApply(v -> endpoint);
+    }
+
+    private void dispatch(@Nonnull final Message message) {
+        if (message.isPing()) {
+            final Message pong = message.pong();
+            this.connection.send(pong.address, pong.content);
+            return;
+        }
+        final int index = message.address.indexOf(ROUTE_SEPARATOR);
+        final Endpoint endpoint = index > 0 ? this.endpoints.get(message.address.substring(0, index)) : null;
+        if (endpoint == null) {
+            this.handler.accept(message);
+        } else {
+            endpoint.handler.accept(new Message(message.address.substring(index + 1), message.content));
+        }
+    }
+
+    /**
+     * Endpoint is a logical endpoint on the multiplexed connection.
+     */
+    public final class Endpoint {
+
+        private final String name;
+
+        private final Consumer<? super Message> handler;
+
+        private Endpoint(@Nonnull final String name, @Nonnull final Consumer<? super Message> handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+
+        /**
+         * The endpoint's name.
+         *
+         * @return Returns the name.
+         */
+        @Nonnull
+        public String name() {
+            return this.name;
+        }
+
+        /**
+         * The endpoint's address, as known to the server, in the form `ip-address:port/name`.
+         *
+         * @return Returns the address.
+         */
+        @Nonnull
+        public String address() {
+            return connection.localID() + ENDPOINT_SEPARATOR + this.name;
+        }
+
+        /**
+         * Send messages from the endpoint. Messages to the control address are control messages of the endpoint, e.g.
+         * to join a group.
+         *
+         * @param address  the destination address
+         * @param messages the messages
+         * @return Returns the future that completes when the messages are written.
+         */
+        @Nonnull
+        public CompletableFuture<Void> send(@Nonnull final String address, @Nonnull final String... messages) {
+            return connection.send(this.name + ROUTE_SEPARATOR + address, messages);
+        }
+
+        /**
+         * Detach the endpoint. Messages that arrive for the endpoint afterwards are delivered to the connection's
+         * handler.
+         *
+         * @return Returns the future that completes when the command is written.
+         */
+        @Nonnull
+        public CompletableFuture<Void> detach() {
+            endpoints.remove(this.name, this);
+            return connection.send(CONTROL_ADDRESS, DETACH + this.name);
+        }
+    }
+}
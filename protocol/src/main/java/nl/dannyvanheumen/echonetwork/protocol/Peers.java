@@ -0,0 +1,93 @@
+/*
+ * protocol, the protocol (convenience) logic for the echonetwork.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.protocol;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Peers is the client's state of the {@link CompactProtocol}: whether the server acknowledged the compact protocol, and
+ * the handles that the server assigned to peers.
+ * <p>
+ * The server announces a peer's handle before the first message from that peer. From then on, the client addresses
+ * the peer by its handle instead of its full address. Handles are never reused, so a stale handle never reaches another
+ * peer. The table grows with the number of peers that the client heard from. (Thread-safe)
+ */
+public final class Peers {
+
+    private final Map<String, Integer> handles = new ConcurrentHashMap<>();
+
+    private final Map<Integer, String> addresses = new ConcurrentHashMap<>();
+
+    private volatile int version;
+
+    @Nullable
+    private volatile String self;
+
+    /**
+     * Indicates whether the server acknowledged the compact protocol.
+     *
+     * @return Returns true iff negotiated.
+     */
+    public boolean negotiated() {
+        return this.version != 0;
+    }
+
+    /**
+     * The negotiated version.
+     *
+     * @return Returns the version, or 0 if not negotiated (yet).
+     */
+    public int version() {
+        return this.version;
+    }
+
+    /**
+     * The client's own address, as known to the server.
+     *
+     * @return Returns the address, or null if not negotiated (yet).
+     */
+    @Nullable
+    public String self() {
+        return this.self;
+    }
+
+    /**
+     * The handle of a peer.
+     *
+     * @param address the peer's address
+     * @return Returns the handle, or 0 if not announced.
+     */
+    public int handle(@Nonnull final String address) {
+        final Integer handle = this.handles.get(address);
+        return handle == null ? 0 : handle;
+    }
+
+    /**
+     * The address of a peer.
+     *
+     * @param handle the peer's handle
+     * @return Returns the address, or null if not announced.
+     */
+    @Nullable
+    public String address(final int handle) {
+        return this.addresses.get(handle);
+    }
+
+    void negotiated(final int version, final int handle, @Nonnull final String address) {
+        bind(handle, address);
+        this.self = address;
+        this.version = version;
+    }
+
+    void bind(final int handle, @Nonnull final String address) {
+        this.addresses.put(handle, requireNonNull(address));
+        this.handles.put(address, handle);
+    }
+}
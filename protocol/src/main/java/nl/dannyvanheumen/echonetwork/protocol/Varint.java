@@ -0,0 +1,146 @@
+/*
+ * protocol, the protocol (convenience) logic for the echonetwork.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.protocol;
+
+import javax.annotation.Nonnull;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Varint is the variable-length encoding of lengths and handles in the {@link CompactProtocol}: unsigned LEB128, i.e.
+ * 7 bits per byte, least significant bits first, with the high bit set on every byte but the last. Values up to 127
+ * take a single byte, the maximum value {@link Integer#MAX_VALUE} takes {@value #MAX_SIZE} bytes. Only the shortest
+ * encoding of a value is valid, such that the size of an encoded value follows from the value.
+ */
+public final class Varint {
+
+    /**
+     * MAX_SIZE is the maximum size of an encoded value.
+     */
+    public static final int MAX_SIZE = 5;
+
+    /**
+     * INCOMPLETE is returned when decoding a value that is not completely available yet.
+     */
+    public static final int INCOMPLETE = -1;
+
+    private static final int PAYLOAD = 0x7F;
+
+    private static final int CONTINUATION = 0x80;
+
+    private static final int SHIFT = 7;
+
+    /**
+     * The maximum payload of the last byte of the maximum size, such that the value fits in 31 bits.
+     */
+    private static final int LAST_PAYLOAD = 0x07;
+
+    private Varint() {
+        // No need to instantiate utility class.
+    }
+
+    /**
+     * The size of the encoded value.
+     *
+     * @param value the value (non-negative)
+     * @return Returns the number of bytes.
+     */
+    public static int size(final int value) {
+        int size = 1;
+        for (int remainder = value >>> SHIFT; remainder != 0; remainder >>>= SHIFT) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Encode a value into a byte-array.
+     *
+     * @param dst    the destination
+     * @param offset the offset at which to encode
+     * @param value  the value (non-negative)
+     * @return Returns the offset directly after the encoded value.
+     */
+    public static int put(@Nonnull final byte[] dst, final int offset, final int value) {
+        int remainder = value;
+        int index = offset;
+        while ((remainder & ~PAYLOAD) != 0) {
+            dst[index++] = (byte) (remainder & PAYLOAD | CONTINUATION);
+            remainder >>>= SHIFT;
+        }
+        dst[index++] = (byte) remainder;
+        return index;
+    }
+
+    /**
+     * Encode a value at the buffer's position.
+     *
+     * @param dst   the destination
+     * @param value the value (non-negative)
+     */
+    public static void put(@Nonnull final ByteBuffer dst, final int value) {
+        int remainder = value;
+        while ((remainder & ~PAYLOAD) != 0) {
+            dst.put((byte) (remainder & PAYLOAD | CONTINUATION));
+            remainder >>>= SHIFT;
+        }
+        dst.put((byte) remainder);
+    }
+
+    /**
+     * Decode a value at the specified index, without modifying the buffer's position.
+     *
+     * @param src   the source
+     * @param index the index of the encoded value
+     * @return Returns the value, or {@link #INCOMPLETE} if the encoded value extends beyond the buffer's limit.
+     * @throws ProtocolException In case of an invalid encoding.
+     */
+    public static int get(@Nonnull final ByteBuffer src, final int index) throws ProtocolException {
+        int value = 0;
+        for (int i = 0; i < MAX_SIZE; i++) {
+            if (index + i >= src.limit()) {
+                return INCOMPLETE;
+            }
+            final int b = src.get(index + i) & 0xFF;
+            value |= (b & PAYLOAD) << (SHIFT * i);
+            if ((b & CONTINUATION) == 0) {
+                return validate(value, b, i);
+            }
+        }
+        throw new ProtocolException("Varint exceeds maximum size.");
+    }
+
+    /**
+     * Read a value.
+     *
+     * @param in the inputstream
+     * @return Returns the value.
+     * @throws IOException In case of failure to read, or an invalid encoding.
+     */
+    public static int read(@Nonnull final InputStream in) throws IOException {
+        int value = 0;
+        for (int i = 0; i < MAX_SIZE; i++) {
+            final int b = in.read();
+            if (b < 0) {
+                throw new EOFException("End of stream inside varint.");
+            }
+            value |= (b & PAYLOAD) << (SHIFT * i);
+            if ((b & CONTINUATION) == 0) {
+                return validate(value, b, i);
+            }
+        }
+        throw new ProtocolException("Varint exceeds maximum size.");
+    }
+
+    private static int validate(final int value, final int last, final int index) throws ProtocolException {
+        if (index > 0 && last == 0 || index == MAX_SIZE - 1 && last > LAST_PAYLOAD) {
+            throw new ProtocolException("Invalid varint encoding.");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * protocol, the protocol (convenience) logic for the echonetwork.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.utils;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values, e.g. latencies in nanoseconds, with a bounded relative error, in the style of
+ * HdrHistogram.
+ * <p>
+ * Values are counted in buckets that are linear within every power of two: each power of two is split into
+ * {@value #HALF} sub-buckets, such that a bucket spans less than 1% of its values. Values below {@value #SUB_BUCKETS}
+ * are counted exactly. Percentiles report the highest value of the bucket, so they are never understated.
+ * <p>
+ * Recording is lock-free and does not allocate. For minimal contention, use a histogram per recording thread or
+ * connection, and merge them with {@link #add(Histogram)} for reporting. (Thread-safe)
+ */
+public final class Histogram {
+
+    private static final int SUB_BITS = 8;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private static final int HALF = SUB_BUCKETS >> 1;
+
+    private static final int BUCKETS = SUB_BUCKETS + (Long.SIZE - 1 - SUB_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Record a value.
+     *
+     * @param value the value, where negative values are recorded as 0
+     */
+    public void record(final long value) {
+        this.counts.getAndIncrement(index(Math.max(0, value)));
+    }
+
+    /**
+     * Add the counts of another histogram to this histogram.
+     *
+     * @param other the other histogram
+     */
+    public void add(@Nonnull final Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            final long count = other.counts.get(i);
+            if (count > 0) {
+                this.counts.getAndAdd(i, count);
+            }
+        }
+    }
+
+    /**
+     * Move the counts of this histogram into a new histogram, e.g. to report an interval. Values recorded concurrently
+     * end up in either histogram.
+     *
+     * @return Returns the histogram with the counts, while this histogram is reset.
+     */
+    @Nonnull
+    public Histogram drain() {
+        final Histogram drained = new Histogram();
+        for (int i = 0; i < BUCKETS; i++) {
+            final long count = this.counts.getAndSet(i, 0);
+            if (count > 0) {
+                drained.counts.set(i, count);
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * The number of recorded values.
+     *
+     * @return Returns the count.
+     */
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += this.counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Determine a percentile.
+     *
+     * @param percentile the percentile, in range [0, 100]
+     * @return Returns the highest value of the bucket that holds the percentile, or 0 if the histogram is empty.
+     */
+    public long percentile(final double percentile) {
+        final long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = this.counts.get(i);
+            total += snapshot[i];
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return highest(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The maximum recorded value.
+     *
+     * @return Returns the highest value of the highest non-empty bucket, or 0 if the histogram is empty.
+     */
+    public long max() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (this.counts.get(i) > 0) {
+                return highest(i);
+            }
+        }
+        return 0;
+    }
+
+    private static int index(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = Long.SIZE - SUB_BITS - Long.numberOfLeadingZeros(value);
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    private static long highest(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = (index - SUB_BUCKETS) / HALF + 1;
+        final long sub = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
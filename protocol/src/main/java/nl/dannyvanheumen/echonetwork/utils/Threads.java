@@ -8,6 +8,9 @@ import com.google.errorprone.annotations.CanIgnoreReturnValue;
 import com.google.errorprone.annotations.CheckReturnValue;
 
 import javax.annotation.Nonnull;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.SEVERE;
@@ -64,4 +67,25 @@ public final class Threads {
     public static Thread.UncaughtExceptionHandler createLoggingHandler(final Logger logger) {
         return (t, e) -> logger.log(SEVERE, "Thread [" + t.getName() + "] failed with exception: " + e.getMessage(), e);
     }
+
+    /**
+     * Create an executor that starts a new virtual thread for each task.
+     * <p>
+     * Virtual threads are available as of Java 21. The executor is acquired reflectively, such that this code can be
+     * compiled for older Java versions.
+     *
+     * @return Returns the executor service.
+     * @throws UnsupportedOperationException In case virtual threads are not supported by the Java runtime.
+     */
+    @CheckReturnValue
+    @Nonnull
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (final NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this Java runtime.");
+        } catch (final IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Failed to create virtual-thread executor.", e);
+        }
+    }
 }
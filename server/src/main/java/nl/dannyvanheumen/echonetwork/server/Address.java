@@ -0,0 +1,133 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Address is the routing key of a client: its address in UTF-8-encoded form. Addresses are compared by their bytes, so
+ * a destination can be looked up without decoding the address of a received message.
+ * <p>
+ * An address used as key in the routing table must never change. For lookups, a single probe-instance can be reused
+ * by pointing it at the address bytes of each received message, using {@link #wrap(byte[], int, int)}.
+ */
+final class Address {
+
+    private byte[] bytes;
+    private int offset;
+    private int length;
+    private int hash;
+
+    /**
+     * Construct an empty address, for use as a lookup probe.
+     */
+    Address() {
+        this.bytes = new byte[0];
+    }
+
+    /**
+     * Create an address, for use as key in the routing table.
+     *
+     * @param address the address
+     * @return Returns the (immutable) address.
+     */
+    @Nonnull
+    static Address of(@Nonnull final String address) {
+        final byte[] encoded = address.getBytes(UTF_8);
+        return new Address().wrap(encoded, 0, encoded.length);
+    }
+
+    /**
+     * Create an immutable copy of this address, e.g. of a lookup probe.
+     *
+     * @return Returns the copy.
+     */
+    @Nonnull
+    Address copy() {
+        return new Address().wrap(Arrays.copyOfRange(this.bytes, this.offset, this.offset + this.length), 0,
+                this.length);
+    }
+
+    /**
+     * Point this address at the specified bytes. The bytes are not copied. (Only for use by lookup probes.)
+     *
+     * @param bytes  the array containing the address
+     * @param offset the offset of the address
+     * @param length the length of the address
+     * @return Returns this address.
+     */
+    @Nonnull
+    Address wrap(@Nonnull final byte[] bytes, final int offset, final int length) {
+        this.bytes = requireNonNull(bytes);
+        this.offset = offset;
+        this.length = length;
+        int h = 1;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + bytes[i];
+        }
+        this.hash = h;
+        return this;
+    }
+
+    /**
+     * Indicates whether the address is empty, i.e. the control address.
+     *
+     * @return Returns true iff empty.
+     */
+    boolean isEmpty() {
+        return this.length == 0;
+    }
+
+    /**
+     * Split the address at the first occurrence of a separator. The parts point at the same bytes, they are not
+     * copied. (Only for use with lookup probes. Either part may be this address itself.)
+     *
+     * @param separator the separator (ASCII)
+     * @param head      the probe for the part before the separator
+     * @param tail      the probe for the part after the separator
+     * @return Returns true if split, or false if the address does not contain the separator. In that case, the probes
+     * are not modified.
+     */
+    boolean split(final char separator, @Nonnull final Address head, @Nonnull final Address tail) {
+        final byte[] array = this.bytes;
+        final int start = this.offset;
+        final int end = this.offset + this.length;
+        for (int i = start; i < end; i++) {
+            if (array[i] == separator) {
+                head.wrap(array, start, i - start);
+                tail.wrap(array, i + 1, end - i - 1);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Address)) {
+            return false;
+        }
+        final Address other = (Address) o;
+        return this.hash == other.hash && Arrays.equals(this.bytes, this.offset, this.offset + this.length,
+                other.bytes, other.offset, other.offset + other.length);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public String toString() {
+        return new String(this.bytes, this.offset, this.length, UTF_8);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Admission controls which connections are accepted, and how fast each connection may send.
+ * <p>
+ * The number of concurrent connections per source IP is capped. Every admitted connection gets a {@link Limiter} that
+ * applies the per-connection rate limits and the rate limits shared by all connections from the same source IP. A
+ * connection that exceeds its limits is not read from until it is back within limits, such that TCP flow-control
+ * pushes back on the client.
+ */
+final class Admission {
+
+    private static final Logger LOGGER = Logger.getLogger(Admission.class.getName());
+
+    private final Settings settings;
+
+    private final Metrics metrics;
+
+    private final Map<InetAddress, Source> sources = new HashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    Admission(@Nonnull final Settings settings, @Nonnull final Metrics metrics) {
+        this.settings = requireNonNull(settings);
+        this.metrics = requireNonNull(metrics);
+    }
+
+    /**
+     * Admit a new connection. (Thread-safe)
+     *
+     * @param address the source IP of the connection
+     * @return Returns the limiter for the connection, or null if the connection is rejected.
+     */
+    @Nullable
+    Limiter admit(@Nonnull final InetAddress address) {
+        this.lock.lock();
+        try {
+            final Source source = this.sources.computeIfAbsent(address, Source::new);
+            if (this.settings.maxConnectionsPerIP > 0 && source.connections >= this.settings.maxConnectionsPerIP) {
+                this.metrics.rejected();
+                LOGGER.log(Level.WARNING, "Rejecting connection from {0}: too many connections.", address);
+                return null;
+            }
+            source.connections++;
+            return new Limiter(source);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void release(@Nonnull final Source source) {
+        this.lock.lock();
+        try {
+            source.connections--;
+            if (source.connections == 0) {
+                this.sources.remove(source.address);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Nullable
+    private static TokenBucket bucket(final int rate) {
+        return rate > 0 ? new TokenBucket(rate) : null;
+    }
+
+    private static long reserve(@Nullable final TokenBucket bucket, final long amount) {
+        return bucket == null ? 0 : bucket.reserve(amount);
+    }
+
+    /**
+     * Source is the shared state of all connections from one IP.
+     */
+    private final class Source {
+
+        private final InetAddress address;
+        private final TokenBucket frames = bucket(Admission.this.settings.ipRateFrames);
+        private final TokenBucket bytes = bucket(Admission.this.settings.ipRateBytes);
+        private int connections;
+
+        private Source(@Nonnull final InetAddress address) {
+            this.address = requireNonNull(address);
+        }
+    }
+
+    /**
+     * Limiter applies the rate limits for a single connection.
+     */
+    final class Limiter {
+
+        private final Source source;
+        private final TokenBucket frames = bucket(Admission.this.settings.rateFrames);
+        private final TokenBucket bytes = bucket(Admission.this.settings.rateBytes);
+        private boolean released;
+
+        private Limiter(@Nonnull final Source source) {
+            this.source = requireNonNull(source);
+        }
+
+        /**
+         * Reserve capacity for a received frame.
+         *
+         * @param size the size of the frame in bytes
+         * @return Returns the time (in nanoseconds) to pause reading, or 0 if within limits.
+         */
+        long reserve(final int size) {
+            final long delay = Math.max(Math.max(Admission.reserve(this.frames, 1), Admission.reserve(this.bytes, size)),
+                    Math.max(Admission.reserve(this.source.frames, 1), Admission.reserve(this.source.bytes, size)));
+            if (delay > 0) {
+                Admission.this.metrics.throttled();
+            }
+            return delay;
+        }
+
+        /**
+         * Release the connection's admission. Subsequent calls have no effect.
+         */
+        void release() {
+            if (!this.released) {
+                this.released = true;
+                Admission.this.release(this.source);
+            }
+        }
+    }
+}
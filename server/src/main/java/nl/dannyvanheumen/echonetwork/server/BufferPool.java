@@ -0,0 +1,61 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import nl.dannyvanheumen.echonetwork.utils.Integers;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * BufferPool is a pool of equally sized direct buffers, owned by a single event-loop. (Not thread-safe.)
+ * <p>
+ * Connections acquire a buffer only while they have data in it, and release it as soon as it is empty. Idle connections
+ * therefore do not hold any buffers, and the number of buffers is proportional to the number of busy connections. At
+ * most {@code retained} buffers are kept for reuse.
+ */
+final class BufferPool {
+
+    private final int size;
+
+    private final int retained;
+
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+    /**
+     * Constructor for BufferPool.
+     *
+     * @param size     the size of the buffers
+     * @param retained the maximum number of free buffers kept for reuse
+     */
+    BufferPool(final int size, final int retained) {
+        this.size = Integers.requireAtLeast(1, size);
+        this.retained = Integers.requireAtLeast(0, retained);
+    }
+
+    /**
+     * Acquire a cleared buffer.
+     *
+     * @return Returns the buffer.
+     */
+    @Nonnull
+    ByteBuffer acquire() {
+        final ByteBuffer buffer = this.free.poll();
+        return buffer == null ? ByteBuffer.allocateDirect(this.size) : buffer;
+    }
+
+    /**
+     * Release a buffer for reuse. The buffer must not be used afterwards.
+     *
+     * @param buffer the buffer
+     */
+    void release(@Nonnull final ByteBuffer buffer) {
+        if (this.free.size() < this.retained) {
+            buffer.clear();
+            this.free.push(buffer);
+        }
+    }
+}
@@ -0,0 +1,741 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import nl.dannyvanheumen.echonetwork.protocol.CompactProtocol;
+import nl.dannyvanheumen.echonetwork.protocol.Compression;
+import nl.dannyvanheumen.echonetwork.protocol.FrameCodec;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.encodeValue;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.generateRemoteID;
+
+/**
+ * ChannelConnection is the state of a single client connection in the non-blocking server mode.
+ * <p>
+ * All methods, except for {@link #deliver(Frame)}, {@link #depth()} and {@link #drops()}, must be called from the
+ * owning event-loop's thread.
+ * <p>
+ * The number of messages waiting for delivery is bounded. The {@link OverflowPolicy} determines what happens when the
+ * limit is reached. Messages from different senders are scheduled fairly, see {@link FairQueue}. Frames are adapted to
+ * the connection's {@link Compression} as they are taken from the queue.
+ * <p>
+ * The first 4 bytes received determine the protocol: the {@link CompactProtocol}'s hello, or otherwise the first frame
+ * of the original protocol. Once the compact protocol is negotiated, the server's hello is queued, and frames that are
+ * taken from the queue after it are encoded by the connection's {@link Encoder}.
+ */
+@SuppressWarnings({"PMD.TooManyFields", "PMD.GodClass"})
+final class ChannelConnection implements Destination {
+
+    private static final Logger LOGGER = Logger.getLogger(ChannelConnection.class.getName());
+
+    private static final int LENGTH_SIZE = 4;
+
+    private static final int INITIAL_BUFFER_SIZE = 1 << 14;
+
+    /**
+     * The content size from which received content is no longer copied, but forwarded as a slice of the receive buffer.
+     */
+    private static final int SLICE_THRESHOLD = 1 << 10;
+
+    /**
+     * The maximum number of frames written in a single gathering write.
+     */
+    private static final int MAX_GATHER = 256;
+
+    private final EventLoop loop;
+
+    private final SocketChannel channel;
+
+    private final Transport transport;
+
+    private final Registry registry;
+
+    private final Metrics metrics;
+
+    private final Admission.Limiter limiter;
+
+    private final Runnable resumeTask = this::resume;
+
+    private final Address id;
+
+    private final Origin origin;
+
+    private final Keepalive keepalive;
+
+    private final Compression compression;
+
+    private final Encoder encoder = new Encoder();
+
+    /**
+     * The codec of the original protocol.
+     */
+    private final FrameCodec codec;
+
+    /**
+     * The header of the last parsed frame, once the compact protocol is negotiated.
+     */
+    private final CompactHeader header = new CompactHeader();
+
+    /**
+     * The header of the last parsed frame within a batch.
+     */
+    private final CompactHeader batched = new CompactHeader();
+
+    /**
+     * The connection's own address in encoded form (length and value), ready to be used as the sender address of
+     * relayed messages.
+     */
+    private final ByteBuffer idFrame;
+
+    /**
+     * The probe used for looking up the destination address in the routing table.
+     */
+    private final Address probe = new Address();
+
+    /**
+     * The groups that the connection joined. (Only accessed from the event-loop thread.)
+     */
+    private final Set<Address> joined = new HashSet<>();
+
+    /**
+     * The logical endpoints that the client attached to the connection.
+     */
+    private final Endpoints endpoints;
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final AtomicBoolean disconnecting = new AtomicBoolean();
+
+    private final Runnable flushTask = this::flush;
+
+    private final FairQueue queue;
+
+    /**
+     * The frames taken from the queue, that are being written.
+     */
+    private final ArrayDeque<Frame> writing = new ArrayDeque<>();
+
+    private final ByteBuffer[] gather = new ByteBuffer[2 * MAX_GATHER];
+
+    private final OverflowPolicy policy;
+
+    private final AtomicLong drops = new AtomicLong();
+
+    private Events.SessionFinished session;
+
+    /**
+     * The event for the frame that is partially received, if any.
+     */
+    private Events.FrameReceived receiving;
+
+    /**
+     * The size of fresh receive buffers, large enough for the transport to make progress.
+     */
+    private final int bufferSize;
+
+    private ByteBuffer buffer;
+
+    /**
+     * Indicates that part of the buffer is in use by frames waiting for delivery, therefore cannot be reused.
+     */
+    private boolean detached;
+
+    /**
+     * Indicates that reading is paused, because the connection exceeds its rate limits.
+     */
+    private boolean paused;
+
+    /**
+     * The negotiated protocol version, or 0 as long as the first 4 bytes are not received.
+     */
+    private int version;
+
+    /**
+     * The connection's handle, assigned on registration.
+     */
+    private int handle;
+
+    SelectionKey key;
+
+    ChannelConnection(@Nonnull final EventLoop loop, @Nonnull final SocketChannel channel,
+            @Nonnull final Transport transport, @Nonnull final Registry registry, @Nonnull final Settings settings, @Nonnull final Metrics metrics,
+            @Nonnull final Admission.Limiter limiter, @Nonnull final TimingWheel wheel) {
+        this.loop = requireNonNull(loop);
+        this.channel = requireNonNull(channel);
+        this.transport = requireNonNull(transport);
+        this.bufferSize = Math.max(INITIAL_BUFFER_SIZE, 2 * transport.readSpace());
+        this.buffer = ByteBuffer.allocate(this.bufferSize);
+        this.registry = requireNonNull(registry);
+        this.metrics = requireNonNull(metrics);
+        this.limiter = requireNonNull(limiter);
+        this.queue = new FairQueue(settings.queueCapacity, settings.fairQuantum, settings.overflow);
+        this.policy = settings.overflow;
+        final String address = generateRemoteID(channel.socket());
+        this.id = Address.of(address);
+        this.origin = metrics.origin(address);
+        this.idFrame = ByteBuffer.wrap(encodeValue(address)).asReadOnlyBuffer();
+        this.endpoints = new Endpoints(registry, address, this);
+        this.compression = new Compression(settings.compressThreshold);
+        this.codec = new FrameCodec(this.compression);
+        this.keepalive = new Keepalive(wheel, settings.keepaliveNanos, this, this.origin, metrics,
+                () -> loop.execute(this::close));
+    }
+
+    void open() {
+        this.handle = this.registry.register(this.id, this);
+        this.metrics.accepted();
+        this.session = Events.sessionFinished();
+        Events.SessionRegistered.record(this.id);
+        LOGGER.log(Level.INFO, "Session {0} registered.", this.id);
+        this.keepalive.start();
+    }
+
+    void close() {
+        if (!this.channel.isOpen()) {
+            return;
+        }
+        this.keepalive.stop();
+        this.endpoints.detachAll();
+        this.registry.leaveAll(this, this.joined);
+        this.registry.unregister(this.id, this.handle, this);
+        this.limiter.release();
+        this.metrics.release(this.origin);
+        this.key.cancel();
+        this.transport.close();
+        this.compression.end();
+        this.metrics.closed();
+        this.session.complete(this.id);
+        if (this.drops.get() > 0) {
+            LOGGER.log(Level.INFO, "Session {0} dropped {1} messages.", new Object[]{this.id, this.drops.get()});
+        }
+        LOGGER.log(Level.INFO, "Session {0} finished.", this.id);
+    }
+
+    /**
+     * Deliver an encoded message to this connection. (Thread-safe)
+     *
+     * @param frame the encoded message
+     */
+    @Override
+    public void deliver(@Nonnull final Frame frame) {
+        if (!this.queue.offer(frame)) {
+            if (this.policy == OverflowPolicy.DISCONNECT) {
+                disconnect();
+                return;
+            }
+            dropped();
+        }
+        schedule();
+    }
+
+    /**
+     * Deliver several encoded messages to this connection. The messages are queued together, such that they are
+     * written in one gathering write. (Thread-safe)
+     *
+     * @param frames the encoded messages
+     */
+    @Override
+    public void deliver(@Nonnull final List<Frame> frames) {
+        final int failed = this.queue.offer(frames);
+        if (failed > 0 && this.policy == OverflowPolicy.DISCONNECT) {
+            disconnect();
+            return;
+        }
+        for (int i = 0; i < failed; i++) {
+            dropped();
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (!this.scheduled.getAndSet(true)) {
+            this.loop.execute(this.flushTask);
+        }
+    }
+
+    private void disconnect() {
+        if (!this.disconnecting.getAndSet(true)) {
+            this.metrics.droppedQueueFull();
+            Events.MessageDropped.record(this.id, Events.MessageDropped.QUEUE_FULL);
+            LOGGER.log(Level.WARNING, "Disconnecting session {0}: outbound queue is full.", this.id);
+            this.loop.execute(this::close);
+        }
+    }
+
+    private void dropped() {
+        this.drops.incrementAndGet();
+        this.metrics.droppedQueueFull();
+        Events.MessageDropped.record(this.id, Events.MessageDropped.QUEUE_FULL);
+        LOGGER.log(Level.FINE, "Dropped message for session {0}: outbound queue is full.", this.id);
+    }
+
+    /**
+     * Negotiate compression. The acknowledgement is queued as any other frame. Compression takes effect once the writer
+     * takes the acknowledgement from the queue, so frames queued before it are written uncompressed.
+     */
+    @Override
+    public void compress() {
+        deliver(Frame.acknowledgeCompression());
+    }
+
+    /**
+     * The number of messages waiting for delivery, not counting those already being written. (Thread-safe)
+     *
+     * @return Returns the queue depth.
+     */
+    @Override
+    public int depth() {
+        return this.queue.size();
+    }
+
+    /**
+     * The number of messages dropped because the queue was full. (Thread-safe)
+     *
+     * @return Returns the number of dropped messages.
+     */
+    long drops() {
+        return this.drops.get();
+    }
+
+    private void flush() {
+        this.scheduled.set(false);
+        if (!this.key.isValid()) {
+            this.queue.clear();
+            return;
+        }
+        try {
+            write();
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, "Failure in client connection: {0}", new Object[]{e.getMessage()});
+            close();
+        }
+    }
+
+    /**
+     * Write pending frames. Frames are taken from the fair queue, and consecutive frames are written together in a
+     * single gathering write. Frames taken from the queue are committed to be written, as a partially written frame
+     * cannot be dropped without corrupting the stream.
+     *
+     * @throws IOException In case of failure to write.
+     */
+    void write() throws IOException {
+        while (true) {
+            final int n = gather();
+            if (n == 0) {
+                this.transport.flush();
+                break;
+            }
+            final Events.FrameRelayed event = Events.frameRelayed();
+            final long written = this.transport.write(this.gather, 0, n);
+            Arrays.fill(this.gather, 0, n, null);
+            int completed = 0;
+            for (Frame frame = this.writing.peek(); frame != null && !frame.sender.hasRemaining()
+                    && !frame.content.hasRemaining(); frame = this.writing.peek()) {
+                this.writing.poll();
+                this.metrics.relayed(frame);
+                completed++;
+            }
+            event.complete(this.id, completed, written);
+            if (2 * completed < n) {
+                // The socket's send-buffer is full, or the TLS handshake is in progress.
+                break;
+            }
+        }
+        updateInterest();
+    }
+
+    /**
+     * Gather the frames to be written, topping up from the fair queue.
+     *
+     * @return Returns the number of gathered buffers.
+     */
+    private int gather() {
+        while (this.writing.size() < MAX_GATHER) {
+            final Frame frame = this.queue.poll();
+            if (frame == null) {
+                break;
+            }
+            try {
+                this.writing.add(this.encoder.encode(frame.adapt(this.compression)));
+            } catch (final ProtocolException e) {
+                this.metrics.decodeError();
+                LOGGER.log(Level.FINE, "Dropped message for session {0}: {1}", new Object[]{this.id, e.getMessage()});
+            }
+        }
+        int n = 0;
+        for (final Frame frame : this.writing) {
+            this.gather[n++] = frame.sender;
+            this.gather[n++] = frame.content;
+        }
+        return n;
+    }
+
+    private void updateInterest() {
+        final int reading = this.paused ? 0 : SelectionKey.OP_READ;
+        final boolean writable = this.transport.pending() || !this.writing.isEmpty() && this.transport.ready();
+        this.key.interestOps(writable ? reading | SelectionKey.OP_WRITE : reading);
+    }
+
+    /**
+     * Pause reading while the connection exceeds its rate limits. The client is pushed back by TCP flow-control.
+     *
+     * @param delayNanos the delay in nanoseconds
+     */
+    private void throttle(final long delayNanos) {
+        if (delayNanos <= 0 || this.paused || !this.key.isValid()) {
+            return;
+        }
+        this.paused = true;
+        updateInterest();
+        this.loop.schedule(this.resumeTask, delayNanos);
+    }
+
+    private void resume() {
+        this.paused = false;
+        if (this.key.isValid()) {
+            updateInterest();
+            this.loop.process(this, false, false);
+        }
+    }
+
+    /**
+     * Indicates that received data is buffered in the transport, waiting to be read.
+     *
+     * @return Returns true if data is buffered and reading is not paused.
+     */
+    boolean buffered() {
+        return !this.paused && this.transport.buffered();
+    }
+
+    void read() throws IOException {
+        do {
+            reserve(this.transport.readSpace());
+            if (this.transport.read(this.buffer) < 0) {
+                close();
+                return;
+            }
+            this.keepalive.received();
+            receive();
+        } while (buffered());
+        if (this.transport.pending() || !this.writing.isEmpty()) {
+            // Handshake messages are pending, or the handshake completed such that frames can be written.
+            updateInterest();
+        }
+    }
+
+    /**
+     * Relay the received frames.
+     *
+     * @throws ProtocolException In case of illegal length values, compressed control messages or an unsupported
+     *                           protocol version.
+     */
+    private void receive() throws ProtocolException {
+        this.buffer.flip();
+        long delay = 0;
+        while (negotiated()) {
+            final int start = this.buffer.position();
+            final int required = requiredFrameSize(start);
+            if (this.buffer.remaining() < required) {
+                ensureCapacity(required);
+                if (this.receiving == null && this.buffer.hasRemaining()) {
+                    this.receiving = Events.frameReceived();
+                }
+                break;
+            }
+            relay();
+            this.buffer.position(start + required);
+            delay = Math.max(delay, this.limiter.reserve(required));
+        }
+        if (this.detached) {
+            final ByteBuffer fresh = ByteBuffer.allocate(Math.max(this.bufferSize, this.buffer.remaining()));
+            fresh.put(this.buffer);
+            this.buffer = fresh;
+            this.detached = false;
+        } else {
+            this.buffer.compact();
+        }
+        throttle(delay);
+    }
+
+    /**
+     * Determine the protocol from the first 4 bytes, if not yet determined. On receiving the compact protocol's hello,
+     * the hello is consumed and the server's hello is queued.
+     *
+     * @return Returns true if the protocol is determined, or false if the first 4 bytes are not yet received.
+     * @throws ProtocolException In case of an unsupported protocol version.
+     */
+    private boolean negotiated() throws ProtocolException {
+        if (this.version != 0) {
+            return true;
+        }
+        if (this.buffer.remaining() < LENGTH_SIZE) {
+            return false;
+        }
+        final int prefix = this.buffer.getInt(this.buffer.position());
+        if (!CompactProtocol.isHello(prefix)) {
+            this.version = 1;
+            return true;
+        }
+        final int requested = CompactProtocol.version(prefix);
+        if (requested < CompactProtocol.VERSION) {
+            throw new ProtocolException("Unsupported protocol version: " + requested);
+        }
+        this.version = CompactProtocol.VERSION;
+        this.buffer.position(this.buffer.position() + LENGTH_SIZE);
+        deliver(Encoder.hello(this.version, this.handle, this.id.toString()));
+        LOGGER.log(Level.FINE, "Session {0} negotiated protocol version {1}.", new Object[]{this.id, this.version});
+        return true;
+    }
+
+    private boolean compact() {
+        return this.version >= CompactProtocol.VERSION;
+    }
+
+    /**
+     * Determine the size of the frame starting at the specified position, as far as it is known. As long as the header
+     * is incomplete, the size needed to complete the header is returned.
+     *
+     * @param start the start position of the frame
+     * @return Returns the number of bytes needed for the full frame, or for the header if incomplete.
+     * @throws ProtocolException In case of illegal length values.
+     */
+    private int requiredFrameSize(final int start) throws ProtocolException {
+        if (compact()) {
+            return this.header.parse(this.buffer, start);
+        }
+        this.codec.decode(this.buffer);
+        return this.codec.size();
+    }
+
+    /**
+     * Ensure the buffer is large enough to fit a frame of the specified size. The buffer is expected to be in "read"
+     * mode, i.e. flipped, such that the buffer can subsequently be compacted.
+     *
+     * @param required the required size
+     */
+    private void ensureCapacity(final int required) {
+        if (required <= this.buffer.capacity()) {
+            return;
+        }
+        final ByteBuffer larger = ByteBuffer.allocate(required);
+        larger.put(this.buffer);
+        larger.flip();
+        this.buffer = larger;
+        this.detached = false;
+    }
+
+    /**
+     * Ensure the buffer has the specified space remaining. The buffer is expected to be in "write" mode, i.e.
+     * compacted.
+     *
+     * @param space the required space
+     */
+    private void reserve(final int space) {
+        if (this.buffer.remaining() >= space) {
+            return;
+        }
+        final ByteBuffer larger = ByteBuffer.allocate(Math.max(this.bufferSize, this.buffer.position() + space));
+        this.buffer.flip();
+        larger.put(this.buffer);
+        this.buffer = larger;
+        this.detached = false;
+    }
+
+    private void relay() throws ProtocolException {
+        final Events.FrameReceived event = this.receiving == null ? Events.frameReceived() : this.receiving;
+        this.receiving = null;
+        if (compact()) {
+            relayCompact(event);
+            return;
+        }
+        final FrameCodec frame = this.codec;
+        this.probe.wrap(this.buffer.array(), frame.addressIndex(), frame.addressLength());
+        final int contentLength = frame.contentLength();
+        event.complete(this.id, this.probe, contentLength);
+        final Endpoint endpoint = this.endpoints.sender(this.probe);
+        final Address target = endpoint == null ? this.probe : this.endpoints.destination();
+        if (target.isEmpty()) {
+            control(endpoint, frame.compressed(), frame.contentIndex(), contentLength);
+            return;
+        }
+        final ByteBuffer content;
+        if (contentLength < SLICE_THRESHOLD) {
+            content = ByteBuffer.allocate(LENGTH_SIZE + contentLength);
+            content.put(this.buffer.array(), frame.contentIndex() - LENGTH_SIZE, LENGTH_SIZE + contentLength).flip();
+        } else {
+            content = frame.encodedContent();
+            this.detached = true;
+        }
+        forward(target, frame(endpoint, content), null);
+    }
+
+    /**
+     * Relay the frame of the compact protocol, of which the header is parsed.
+     *
+     * @param event the event of the received frame
+     * @throws ProtocolException In case of invalid frames.
+     */
+    private void relayCompact(@Nonnull final Events.FrameReceived event) throws ProtocolException {
+        if (this.header.type == CompactProtocol.BATCH) {
+            relayBatch(event);
+        } else {
+            relayCompact(this.header, event, null);
+        }
+    }
+
+    /**
+     * Relay the frames of a batch in one pass. Frames are grouped per destination, and each group is delivered at
+     * once, after the whole batch is routed. Control messages in the batch take effect immediately.
+     *
+     * @param event the event of the received batch
+     * @throws ProtocolException In case of invalid frames.
+     */
+    private void relayBatch(@Nonnull final Events.FrameReceived event) throws ProtocolException {
+        if (this.header.compressed) {
+            throw new ProtocolException("Batches must not be compressed.");
+        }
+        final int end = this.header.contentStart + this.header.contentLength;
+        final Map<Destination, List<Frame>> groups = new LinkedHashMap<>();
+        int position = this.header.contentStart;
+        while (position < end) {
+            final int size = this.batched.parse(this.buffer, position);
+            if (size > end - position || this.batched.type == CompactProtocol.BATCH) {
+                throw new ProtocolException("Invalid frame in batch.");
+            }
+            relayCompact(this.batched, position == this.header.contentStart ? event : Events.frameReceived(), groups);
+            position += size;
+        }
+        for (final Map.Entry<Destination, List<Frame>> group : groups.entrySet()) {
+            group.getKey().deliver(group.getValue());
+        }
+    }
+
+    /**
+     * Relay a single frame of the compact protocol. The content is converted to its length-prefixed form: small
+     * content is copied, large content is prefixed in place, overwriting the end of the header. (Content of at least
+     * {@link #SLICE_THRESHOLD} bytes has a header of at least 4 bytes.)
+     *
+     * @param frame  the parsed header
+     * @param event  the event of the received frame
+     * @param groups the frames per destination, if part of a batch, or null to deliver immediately
+     * @throws ProtocolException In case of compressed content that is not negotiated, or compressed control messages.
+     */
+    private void relayCompact(@Nonnull final CompactHeader frame, @Nonnull final Events.FrameReceived event,
+            @Nullable final Map<Destination, List<Frame>> groups) throws ProtocolException {
+        if (frame.compressed && !this.compression.accepted()) {
+            throw new ProtocolException("Compressed content requires negotiated compression.");
+        }
+        Address target;
+        Endpoint endpoint = null;
+        if (frame.type == CompactProtocol.ADDRESSED) {
+            target = this.registry.address(frame.handle);
+            if (target == null) {
+                unknownHandle(frame.handle);
+                return;
+            }
+        } else {
+            target = this.probe.wrap(this.buffer.array(), frame.addressStart, frame.addressLength);
+            endpoint = this.endpoints.sender(target);
+            target = endpoint == null ? target : this.endpoints.destination();
+        }
+        event.complete(this.id, target, frame.contentLength);
+        if (target.isEmpty()) {
+            control(endpoint, frame.compressed, frame.contentStart, frame.contentLength);
+            return;
+        }
+        final int prefix = frame.compressed ? Compression.COMPRESSED | frame.contentLength : frame.contentLength;
+        final ByteBuffer content;
+        if (frame.contentLength < SLICE_THRESHOLD) {
+            content = ByteBuffer.allocate(LENGTH_SIZE + frame.contentLength);
+            content.putInt(prefix).put(this.buffer.array(), frame.contentStart, frame.contentLength).flip();
+        } else {
+            if (frame.type == CompactProtocol.MESSAGE) {
+                // The prefix may overwrite the end of the address, to which the probe points.
+                target = target.copy();
+            }
+            final int contentStart = frame.contentStart - LENGTH_SIZE;
+            this.buffer.putInt(contentStart, prefix);
+            content = ByteBuffer.wrap(this.buffer.array(), contentStart, LENGTH_SIZE + frame.contentLength).slice();
+            this.detached = true;
+        }
+        forward(target, frame(endpoint, content), groups);
+    }
+
+    /**
+     * Create the frame for relaying content, sent by the connection itself or one of its endpoints.
+     */
+    @Nonnull
+    private Frame frame(@Nullable final Endpoint endpoint, @Nonnull final ByteBuffer content) {
+        return endpoint == null ? new Frame(this.origin, this.idFrame.duplicate(), content, this.handle)
+                : new Frame(this.origin, endpoint.sender(), content, endpoint.handle);
+    }
+
+    private void control(@Nullable final Endpoint endpoint, final boolean compressed, final int offset,
+            final int length) throws ProtocolException {
+        if (compressed) {
+            throw new ProtocolException("Control messages must not be compressed.");
+        }
+        final String command = new String(this.buffer.array(), offset, length, UTF_8);
+        if (endpoint != null) {
+            this.registry.control(endpoint, endpoint.joined, command);
+        } else if (!this.keepalive.pong(command) && !this.endpoints.control(command)) {
+            this.registry.control(this, this.joined, command);
+        }
+    }
+
+    private void forward(@Nonnull final Address target, @Nonnull final Frame frame,
+            @Nullable final Map<Destination, List<Frame>> groups) {
+        final Destination destination = this.registry.lookup(target);
+        if (destination == null) {
+            undeliverable(target, frame);
+            return;
+        }
+        LOGGER.log(Level.FINE, "Relaying {0} => {1}: {2} bytes",
+                new Object[]{this.id, target, frame.content.remaining() - LENGTH_SIZE});
+        if (groups == null) {
+            destination.deliver(frame);
+        } else {
+            groups.computeIfAbsent(destination, d -> new ArrayList<>()).add(frame);
+        }
+    }
+
+    private void unknownHandle(final int handle) {
+        this.metrics.droppedUnknownDestination();
+        Events.MessageDropped.record(handle, Events.MessageDropped.UNKNOWN_DESTINATION);
+        LOGGER.log(Level.INFO, "Dropping message because handle {0} is not available.", handle);
+    }
+
+    private void undeliverable(@Nonnull final Address target, @Nonnull final Frame frame) {
+        if (this.registry.store(target, frame)) {
+            LOGGER.log(Level.FINE, "Spooled message because destination {0} is not available.", target);
+            return;
+        }
+        this.metrics.droppedUnknownDestination();
+        Events.MessageDropped.record(target, Events.MessageDropped.UNKNOWN_DESTINATION);
+        LOGGER.log(Level.INFO, "Dropping message because destination is not available.");
+    }
+}
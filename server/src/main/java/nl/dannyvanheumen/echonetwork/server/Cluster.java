@@ -0,0 +1,529 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import nl.dannyvanheumen.echonetwork.protocol.Compression;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.encodeValue;
+
+/**
+ * Cluster connects this server to the other nodes of a cluster, such that clients connected to different nodes can
+ * reach each other.
+ * <p>
+ * Every node dials every other node, as configured, and uses that link to send. A node therefore receives over the
+ * links that others dialed. Over its link, a node announces the addresses of its local clients: the full set upon
+ * (re)connecting, then every change. The receiving node adds these addresses to its registry as remote destinations.
+ * Messages for a remote destination are forwarded over the link to the node that owns the address, which delivers
+ * them to its local client. Messages are forwarded at most once, so there are no routing loops.
+ * <p>
+ * Link frames consist of a type byte, followed by fields in the length-value encoding of the client protocol:
+ * <ul>
+ * <li>HELLO: node-ID (sent by both sides upon connecting)</li>
+ * <li>ADD, REMOVE: address</li>
+ * <li>MESSAGE: destination address, sender address, content</li>
+ * </ul>
+ */
+@SuppressWarnings({"PMD.DoNotUseThreads", "PMD.GodClass"})
+final class Cluster implements Registry.Listener {
+
+    private static final Logger LOGGER = Logger.getLogger(Cluster.class.getName());
+
+    private static final byte HELLO = 1;
+    private static final byte ADD = 2;
+    private static final byte REMOVE = 3;
+    private static final byte MESSAGE = 4;
+
+    private static final int LENGTH_SIZE = 4;
+
+    private static final int LINK_CAPACITY = 1 << 16;
+
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+    private final String nodeID;
+
+    private final Registry registry;
+
+    private final Metrics metrics;
+
+    private final List<Link> links = new ArrayList<>();
+
+    /**
+     * The outgoing links by the node-ID of the node at the other end, as far as they are connected.
+     */
+    private final Map<String, Link> nodes = new ConcurrentHashMap<>();
+
+    /**
+     * The sockets of the links dialed by other nodes.
+     */
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+
+    @Nullable
+    private volatile ServerSocket server;
+
+    private volatile boolean closed;
+
+    Cluster(@Nonnull final String nodeID, @Nonnull final Registry registry, @Nonnull final Metrics metrics,
+            @Nonnull final List<InetSocketAddress> peers) {
+        this.nodeID = requireNonNull(nodeID);
+        this.registry = requireNonNull(registry);
+        this.metrics = requireNonNull(metrics);
+        for (final InetSocketAddress peer : peers) {
+            this.links.add(new Link(peer));
+        }
+    }
+
+    /**
+     * Start accepting links from other nodes on the specified address and port, and start dialing the configured
+     * peers.
+     * <p>
+     * Links are not authenticated: whoever can reach the port can announce addresses and inject messages with any
+     * sender address. Therefore, bind only to an interface that is reachable by the other nodes alone.
+     *
+     * @param bind the local address to accept node-to-node links on
+     * @param port the port for node-to-node links
+     * @throws IOException In case of failure to open the port.
+     */
+    void start(@Nonnull final InetAddress bind, final int port) throws IOException {
+        final ServerSocket server = new ServerSocket(port, 0, requireNonNull(bind));
+        this.server = server;
+        LOGGER.log(Level.INFO, "Node {0} accepting node links on {1}:{2}",
+                new Object[]{this.nodeID, bind.getHostAddress(), server.getLocalPort()});
+        final Thread acceptor = new Thread(() -> accept(server), "Cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        this.registry.listen(this);
+        for (final Link link : this.links) {
+            final Thread thread = new Thread(link, "Cluster-link-" + link.peer);
+            thread.setDaemon(true);
+            link.thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop accepting links, and close all links. Remote destinations learned from other nodes are removed.
+     */
+    void close() {
+        this.closed = true;
+        final ServerSocket acceptor = this.server;
+        if (acceptor != null) {
+            closeQuietly(acceptor);
+        }
+        for (final Link link : this.links) {
+            link.stop();
+        }
+        for (final Socket socket : this.inbound) {
+            closeQuietly(socket);
+        }
+    }
+
+    @Override
+    public void registered(@Nonnull final Address address) {
+        final ByteBuffer encoded = ByteBuffer.wrap(encodeValue(address.toString()));
+        for (final Link link : this.links) {
+            link.announce(ADD, encoded);
+        }
+    }
+
+    @Override
+    public void unregistered(@Nonnull final Address address) {
+        final ByteBuffer encoded = ByteBuffer.wrap(encodeValue(address.toString()));
+        for (final Link link : this.links) {
+            link.announce(REMOVE, encoded);
+        }
+    }
+
+    private void accept(@Nonnull final ServerSocket server) {
+        try (server) {
+            while (!server.isClosed()) {
+                final Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                final Thread thread = new Thread(() -> receive(socket), "Cluster-inbound-"
+                        + socket.getRemoteSocketAddress());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (final IOException e) {
+            if (!this.closed) {
+                LOGGER.log(Level.SEVERE, "Failed to accept node links: {0}", new Object[]{e.getMessage()});
+            }
+        }
+    }
+
+    /**
+     * Receive the directory updates and forwarded messages of another node.
+     *
+     * @param socket the socket of the link dialed by the other node
+     */
+    private void receive(@Nonnull final Socket socket) {
+        final Map<Address, Remote> learned = new HashMap<>();
+        String remoteID = "(unknown)";
+        Origin origin = null;
+        this.inbound.add(socket);
+        try (socket; DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+            remoteID = readHello(in);
+            writeHello(out);
+            out.flush();
+            LOGGER.log(Level.INFO, "Node {0} linked in.", remoteID);
+            origin = this.metrics.origin("node:" + remoteID);
+            final Address probe = new Address();
+            while (true) {
+                final byte type = in.readByte();
+                switch (type) {
+                case ADD: {
+                    final byte[] value = readValue(in);
+                    final Address address = new Address().wrap(value, 0, value.length);
+                    final Remote remote = new Remote(remoteID, address);
+                    final Remote previous = learned.put(address, remote);
+                    if (previous != null) {
+                        this.registry.removeRemote(address, previous);
+                    }
+                    this.registry.putRemote(address, remote);
+                    break;
+                }
+                case REMOVE: {
+                    final byte[] value = readValue(in);
+                    final Remote remote = learned.remove(probe.wrap(value, 0, value.length));
+                    if (remote != null) {
+                        this.registry.removeRemote(probe, remote);
+                    }
+                    break;
+                }
+                case MESSAGE:
+                    deliver(in, probe, origin);
+                    break;
+                default:
+                    throw new ProtocolException("Unknown link frame type: " + type);
+                }
+            }
+        } catch (final EOFException e) {
+            LOGGER.log(Level.INFO, "Node {0} unlinked.", remoteID);
+        } catch (final IOException e) {
+            LOGGER.log(this.closed ? Level.FINE : Level.WARNING, "Failure in link from node {0}: {1}",
+                    new Object[]{remoteID, e.getMessage()});
+        } finally {
+            this.inbound.remove(socket);
+            learned.forEach(this.registry::removeRemote);
+            if (origin != null) {
+                this.metrics.release(origin);
+            }
+        }
+    }
+
+    private void deliver(@Nonnull final DataInputStream in, @Nonnull final Address probe,
+            @Nonnull final Origin origin) throws IOException {
+        final byte[] address = readValue(in);
+        final Destination destination = this.registry.lookup(probe.wrap(address, 0, address.length));
+        final Frame frame = new Frame(origin, readEncoded(in), readContent(in));
+        if (destination == null || destination.isRemote()) {
+            this.metrics.droppedUnknownDestination();
+            Events.MessageDropped.record(probe, Events.MessageDropped.UNKNOWN_DESTINATION);
+            LOGGER.log(Level.INFO, "Dropping forwarded message because destination is not available.");
+        } else {
+            destination.deliver(frame);
+        }
+    }
+
+    /**
+     * Forward a frame to the node that owns the destination address.
+     *
+     * @param node        the node-ID
+     * @param destination the destination address in encoded form
+     * @param frame       the frame
+     */
+    private void forward(@Nonnull final String node, @Nonnull final ByteBuffer destination,
+            @Nonnull final Frame frame) {
+        final Link link = this.nodes.get(node);
+        if (link == null || !link.queue.offer(new LinkFrame(MESSAGE, destination, frame.sender, frame.content))) {
+            this.metrics.droppedUnknownDestination();
+            Events.MessageDropped.record(node, Events.MessageDropped.UNKNOWN_DESTINATION);
+            LOGGER.log(Level.INFO, "Dropping message because link to node {0} is not available.", node);
+        }
+    }
+
+    private void writeHello(@Nonnull final DataOutputStream out) throws IOException {
+        out.writeByte(HELLO);
+        out.write(encodeValue(this.nodeID));
+    }
+
+    private static String readHello(@Nonnull final DataInputStream in) throws IOException {
+        if (in.readByte() != HELLO) {
+            throw new ProtocolException("Expected HELLO from node.");
+        }
+        return new String(readValue(in), UTF_8);
+    }
+
+    private static int readLength(@Nonnull final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            throw new ProtocolException("Illegal length value.");
+        }
+        return length;
+    }
+
+    private static byte[] readValue(@Nonnull final DataInputStream in) throws IOException {
+        final byte[] value = new byte[readLength(in)];
+        in.readFully(value);
+        return value;
+    }
+
+    /**
+     * Read a value, keeping its length-prefix, such that it can be relayed as-is.
+     */
+    private static ByteBuffer readEncoded(@Nonnull final DataInputStream in) throws IOException {
+        final int length = readLength(in);
+        return readEncoded(in, length, length);
+    }
+
+    /**
+     * Read content, keeping its length-prefix, such that it can be relayed as-is. The content may be compressed.
+     */
+    private static ByteBuffer readContent(@Nonnull final DataInputStream in) throws IOException {
+        final int prefix = in.readInt();
+        return readEncoded(in, prefix, prefix & ~Compression.COMPRESSED);
+    }
+
+    private static ByteBuffer readEncoded(@Nonnull final DataInputStream in, final int prefix, final int length)
+            throws IOException {
+        final byte[] encoded = new byte[LENGTH_SIZE + length];
+        ByteBuffer.wrap(encoded).putInt(prefix);
+        in.readFully(encoded, LENGTH_SIZE, length);
+        return ByteBuffer.wrap(encoded);
+    }
+
+    private static void closeQuietly(@Nonnull final Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (final IOException e) {
+            LOGGER.log(Level.FINE, "Failed to close node link: {0}", new Object[]{e.getMessage()});
+        }
+    }
+
+    private static void write(@Nonnull final DataOutputStream out, @Nonnull final ByteBuffer buffer)
+            throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            final byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Remote is a client connected to another node of the cluster.
+     */
+    private final class Remote implements Destination {
+
+        private final String node;
+
+        private final ByteBuffer address;
+
+        private Remote(@Nonnull final String node, @Nonnull final Address address) {
+            this.node = requireNonNull(node);
+            this.address = ByteBuffer.wrap(encodeValue(address.toString()));
+        }
+
+        @Override
+        public void deliver(@Nonnull final Frame frame) {
+            forward(this.node, this.address, frame);
+        }
+
+        @Override
+        public boolean isRemote() {
+            return true;
+        }
+    }
+
+    /**
+     * LinkFrame is a frame waiting to be sent over a link.
+     */
+    private static final class LinkFrame {
+
+        private final byte type;
+
+        private final ByteBuffer[] fields;
+
+        private LinkFrame(final byte type, @Nonnull final ByteBuffer... fields) {
+            this.type = type;
+            this.fields = requireNonNull(fields);
+        }
+    }
+
+    /**
+     * Link is the outgoing link to a peer node. The link reconnects whenever the connection is lost.
+     */
+    private final class Link implements Runnable {
+
+        private final InetSocketAddress peer;
+
+        private final BlockingQueue<LinkFrame> queue = new ArrayBlockingQueue<>(LINK_CAPACITY);
+
+        /**
+         * Indicates whether directory changes should be announced. Set while holding the registry's membership lock,
+         * such that no change is missed between synchronizing and announcing.
+         */
+        private volatile boolean announcing;
+
+        @Nullable
+        private volatile Thread thread;
+
+        /**
+         * The socket of the current connection, if any.
+         */
+        @Nullable
+        private volatile Socket socket;
+
+        private Link(@Nonnull final InetSocketAddress peer) {
+            this.peer = requireNonNull(peer);
+        }
+
+        /**
+         * Announce a change in local membership. (Called while holding the registry's membership lock.)
+         */
+        private void announce(final byte type, @Nonnull final ByteBuffer address) {
+            if (this.announcing && !this.queue.offer(new LinkFrame(type, address))) {
+                // Directory updates cannot be dropped. Resynchronize by reconnecting. Clearing 'announcing' makes the
+                // sending thread close the link as soon as it finishes the current frame.
+                LOGGER.log(Level.WARNING, "Link to {0} is congested. Reconnecting.", this.peer);
+                this.announcing = false;
+                discard();
+            }
+        }
+
+        private void synchronize(@Nonnull final List<Address> addresses) {
+            discard();
+            for (final Address address : addresses) {
+                this.queue.add(new LinkFrame(ADD, ByteBuffer.wrap(encodeValue(address.toString()))));
+            }
+            this.announcing = true;
+        }
+
+        /**
+         * Discard all queued frames, counting them as dropped.
+         */
+        private void discard() {
+            final List<LinkFrame> discarded = new ArrayList<>();
+            this.queue.drainTo(discarded);
+            if (!discarded.isEmpty()) {
+                Cluster.this.metrics.droppedLinkCongested(discarded.size());
+            }
+        }
+
+        /**
+         * Stop the link: interrupt its thread, and close its current connection.
+         */
+        private void stop() {
+            final Thread current = this.thread;
+            if (current != null) {
+                current.interrupt();
+            }
+            final Socket connection = this.socket;
+            if (connection != null) {
+                closeQuietly(connection);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!Cluster.this.closed) {
+                String remoteID = null;
+                boolean congested = false;
+                try (Socket socket = new Socket()) {
+                    this.socket = socket;
+                    if (Cluster.this.closed) {
+                        return;
+                    }
+                    socket.connect(this.peer);
+                    socket.setTcpNoDelay(true);
+                    final DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(socket.getOutputStream()));
+                    writeHello(out);
+                    out.flush();
+                    remoteID = readHello(new DataInputStream(socket.getInputStream()));
+                    LOGGER.log(Level.INFO, "Linked out to node {0} at {1}.", new Object[]{remoteID, this.peer});
+                    Cluster.this.registry.synchronize(this::synchronize);
+                    Cluster.this.nodes.put(remoteID, this);
+                    congested = send(out);
+                } catch (final IOException e) {
+                    LOGGER.log(Level.INFO, "Link to {0} unavailable: {1}", new Object[]{this.peer, e.getMessage()});
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    this.announcing = false;
+                    this.socket = null;
+                    if (remoteID != null) {
+                        Cluster.this.nodes.remove(remoteID, this);
+                    }
+                }
+                if (congested) {
+                    // The peer was reachable a moment ago: resynchronize right away.
+                    continue;
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Send queued frames until the link fails or is congested. Congestion is checked for every frame, such that
+         * the link is resynchronized promptly even under sustained traffic.
+         *
+         * @param out the output stream of the link
+         * @return Returns true if the link became congested and needs to be resynchronized.
+         */
+        private boolean send(@Nonnull final DataOutputStream out) throws IOException, InterruptedException {
+            while (this.announcing) {
+                final LinkFrame frame = this.queue.poll(RECONNECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    continue;
+                }
+                out.writeByte(frame.type);
+                for (final ByteBuffer field : frame.fields) {
+                    Cluster.write(out, field);
+                }
+                if (this.queue.isEmpty()) {
+                    out.flush();
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import nl.dannyvanheumen.echonetwork.protocol.CompactProtocol;
+import nl.dannyvanheumen.echonetwork.protocol.Varint;
+
+import javax.annotation.Nonnull;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * CompactHeader parses the header of a frame of the {@link CompactProtocol}, as sent by a client, in a receive buffer.
+ * The instance is reused for every frame of the connection, and holds the header of the last parsed frame.
+ */
+final class CompactHeader {
+
+    private static final int TYPE_SIZE = 1;
+
+    /**
+     * The frame type, without flags.
+     */
+    int type;
+
+    /**
+     * Indicates that the content is compressed.
+     */
+    boolean compressed;
+
+    /**
+     * The destination's handle, for frames of type {@link CompactProtocol#ADDRESSED}.
+     */
+    int handle;
+
+    /**
+     * The index of the destination address, for frames of type {@link CompactProtocol#MESSAGE}.
+     */
+    int addressStart;
+
+    /**
+     * The length of the destination address, for frames of type {@link CompactProtocol#MESSAGE}.
+     */
+    int addressLength;
+
+    /**
+     * The index of the content, i.e. the frames of a {@link CompactProtocol#BATCH}.
+     */
+    int contentStart;
+
+    /**
+     * The length of the content, i.e. the frames of a {@link CompactProtocol#BATCH}.
+     */
+    int contentLength;
+
+    /**
+     * Parse the header of the frame starting at the specified index, as far as it is available. The buffer's position
+     * is not modified.
+     *
+     * @param buffer the receive buffer
+     * @param start  the start index of the frame
+     * @return Returns the size of the full frame, or, if the header is incomplete, a size beyond the available bytes.
+     * @throws ProtocolException In case of an unknown frame type, invalid varints or lengths exceeding
+     *                           {@link CompactProtocol#MAX_LENGTH}.
+     */
+    int parse(@Nonnull final ByteBuffer buffer, final int start) throws ProtocolException {
+        if (start >= buffer.limit()) {
+            return TYPE_SIZE;
+        }
+        final int b = buffer.get(start) & 0xFF;
+        this.type = b & CompactProtocol.TYPE_MASK;
+        this.compressed = (b & CompactProtocol.COMPRESSED) != 0;
+        long index = start + TYPE_SIZE;
+        switch (this.type) {
+        case CompactProtocol.MESSAGE:
+            this.handle = 0;
+            this.addressLength = Varint.get(buffer, (int) index);
+            if (this.addressLength == Varint.INCOMPLETE) {
+                return incomplete(buffer, start, index);
+            }
+            requireValidLength(this.addressLength);
+            this.addressStart = (int) index + Varint.size(this.addressLength);
+            index = (long) this.addressStart + this.addressLength;
+            break;
+        case CompactProtocol.ADDRESSED:
+            this.handle = Varint.get(buffer, (int) index);
+            if (this.handle == Varint.INCOMPLETE) {
+                return incomplete(buffer, start, index);
+            }
+            this.addressStart = 0;
+            this.addressLength = 0;
+            index += Varint.size(this.handle);
+            break;
+        case CompactProtocol.BATCH:
+            this.handle = 0;
+            this.addressStart = 0;
+            this.addressLength = 0;
+            break;
+        default:
+            throw new ProtocolException("Unknown frame type: " + this.type);
+        }
+        if (index >= buffer.limit()) {
+            return incomplete(buffer, start, index);
+        }
+        this.contentLength = Varint.get(buffer, (int) index);
+        if (this.contentLength == Varint.INCOMPLETE) {
+            return incomplete(buffer, start, index);
+        }
+        requireValidLength(this.contentLength);
+        this.contentStart = (int) index + Varint.size(this.contentLength);
+        return requireValidSize((long) this.contentStart + this.contentLength - start);
+    }
+
+    /**
+     * The size needed to make progress on an incomplete header: up to the specified index, and at least one byte more
+     * than is available.
+     */
+    private static int incomplete(@Nonnull final ByteBuffer buffer, final int start, final long index)
+            throws ProtocolException {
+        return requireValidSize(Math.max(index, buffer.limit()) - start + 1);
+    }
+
+    private static void requireValidLength(final int length) throws ProtocolException {
+        if (length > CompactProtocol.MAX_LENGTH) {
+            throw new ProtocolException("Length exceeds maximum: " + length);
+        }
+    }
+
+    private static int requireValidSize(final long size) throws ProtocolException {
+        if (size > Integer.MAX_VALUE) {
+            throw new ProtocolException("Message exceeds maximum size.");
+        }
+        return (int) size;
+    }
+}
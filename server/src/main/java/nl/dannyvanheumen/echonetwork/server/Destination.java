@@ -0,0 +1,62 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * Destination is anything that messages can be routed to.
+ */
+interface Destination {
+
+    /**
+     * Deliver a frame to the destination. (Thread-safe)
+     * <p>
+     * Delivery must not block, as it is performed by the sender's reading thread.
+     *
+     * @param frame the frame
+     */
+    void deliver(@Nonnull Frame frame);
+
+    /**
+     * Deliver several frames to the destination, e.g. the frames of a batch. (Thread-safe)
+     * <p>
+     * Destinations that queue frames may queue them at once, such that they are written together.
+     *
+     * @param frames the frames
+     */
+    default void deliver(@Nonnull final List<Frame> frames) {
+        for (final Frame frame : frames) {
+            deliver(frame);
+        }
+    }
+
+    /**
+     * Indicates whether the destination is connected to another node of the cluster.
+     *
+     * @return Returns true iff the destination is remote.
+     */
+    default boolean isRemote() {
+        return false;
+    }
+
+    /**
+     * The number of messages waiting for delivery to the destination. (Thread-safe)
+     *
+     * @return Returns the queue depth, or 0 if the destination does not queue messages itself.
+     */
+    default int depth() {
+        return 0;
+    }
+
+    /**
+     * Negotiate compression at the client's request, i.e. acknowledge the request and compress the frames written after
+     * the acknowledgement. Destinations that do not support compression ignore the request.
+     */
+    default void compress() {
+        // Compression is not supported by default.
+    }
+}
@@ -4,31 +4,35 @@
  */
 package nl.dannyvanheumen.echonetwork.server;
 
-import nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.Message;
+import nl.dannyvanheumen.echonetwork.utils.Integers;
 import nl.dannyvanheumen.echonetwork.utils.LogManagers;
+import nl.dannyvanheumen.echonetwork.utils.Threads;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.net.ServerSocketFactory;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static java.util.Objects.requireNonNull;
 import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.DEFAULT_PORT;
-import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.generateRemoteID;
-import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.receiveMessage;
-import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.sendMessage;
 
 /**
  * EchoServer.
+ * <p>
+ * The server runs either as application, see {@link #main(String[])}, or embedded in another application, e.g. for
+ * tests and benchmarks, see {@link #start(String...)}.
  */
-public final class EchoServer {
+public final class EchoServer implements Closeable {
 
     static {
         LogManagers.readResourceConfig("/logging.properties");
@@ -36,67 +40,235 @@ public final class EchoServer {
 
     private static final Logger LOGGER = Logger.getLogger(EchoServer.class.getName());
 
-    private EchoServer() {
-        // No need to instantiate.
+    private static final int DEFAULT_SPOOL_TTL = 3600;
+
+    private static final int DEFAULT_SPOOL_SIZE = 1 << 20;
+
+    private static final int DEFAULT_SPOOL_SEGMENTS = 256;
+
+    private static final int DEFAULT_TLS_SESSION_CACHE = 20_480;
+
+    private static final int DEFAULT_TLS_SESSION_TIMEOUT = 86_400;
+
+    private static final String TLS_PASSWORD_VARIABLE = "ECHONETWORK_TLS_PASSWORD";
+
+    private static final long WHEEL_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Metrics metrics;
+
+    private final TimingWheel wheel;
+
+    @Nullable
+    private final Cluster cluster;
+
+    @Nullable
+    private final Spool spool;
+
+    private final Listener listener;
+
+    private final int port;
+
+    private EchoServer(@Nonnull final Options options) throws IOException {
+        final Settings settings = Settings.from(options);
+        final Registry registry = new Registry();
+        this.metrics = new Metrics();
+        this.wheel = new TimingWheel(WHEEL_TICK_NANOS);
+        final int nodePort = options.getInt("node-port", -1);
+        this.cluster = nodePort < 0 ? null : new Cluster(options.get("node-id", UUID.randomUUID().toString()),
+                registry, this.metrics, parsePeers(options.get("peers", "")));
+        final String spool = options.get("spool", "");
+        this.spool = spool.isEmpty() ? null : new Spool(Paths.get(spool),
+                TimeUnit.SECONDS.toMillis(options.getInt("spool-ttl", DEFAULT_SPOOL_TTL)),
+                options.getInt("spool-size", DEFAULT_SPOOL_SIZE),
+                options.getInt("spool-segments", DEFAULT_SPOOL_SEGMENTS), settings, registry, this.metrics);
+        final Tls tls = loadTls(options);
+        final ServerSocketFactory sockets = tls == null ? ServerSocketFactory.getDefault() : tls.serverSocketFactory();
+        final String mode = options.get("mode", "threads");
+        switch (mode) {
+        case "threads":
+            this.listener = new ThreadedServer(registry, task -> new Thread(task).start(), settings, this.metrics,
+                    this.wheel, sockets);
+            break;
+        case "virtual":
+            this.listener = new ThreadedServer(registry, Threads.newVirtualThreadPerTaskExecutor(), settings,
+                    this.metrics, this.wheel, sockets);
+            break;
+        case "nio":
+            this.listener = new ReactorServer(registry, options.getInt("loops",
+                    Runtime.getRuntime().availableProcessors()), settings, this.metrics, this.wheel, tls);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown server mode: " + mode);
+        }
+        try {
+            this.port = this.listener.bind(options.getInt("port", DEFAULT_PORT));
+            if (this.cluster != null) {
+                this.cluster.start(parseBind(options.get("node-bind", "")), nodePort);
+            }
+            if (this.spool != null) {
+                this.spool.start();
+            }
+        } catch (final IOException e) {
+            close();
+            throw e;
+        }
+        if (settings.keepaliveNanos > 0) {
+            this.wheel.start();
+        }
+        this.metrics.register(this.port);
     }
 
     /**
      * Main function for starting the EchoServer.
+     * <p>
+     * Options:
+     * <ul>
+     * <li>{@code --mode=threads} (default) serves every connection with its own thread.</li>
+     * <li>{@code --mode=virtual} serves every connection with its own virtual thread. (Requires Java 21 or later.)</li>
+     * <li>{@code --mode=nio} serves connections with a fixed set of non-blocking event-loops.</li>
+     * <li>{@code --loops=<n>} the number of event-loops in {@code nio} mode. (Defaults to the number of
+     * processors.)</li>
+     * <li>{@code --queue-capacity=<n>} the maximum number of messages queued for a single destination. (Defaults to
+     * 1024.)</li>
+     * <li>{@code --overflow=<policy>} the policy for messages to a destination with a full queue: {@code drop-oldest},
+     * {@code drop-newest} or {@code disconnect}. (Defaults to {@code disconnect}.)</li>
+     * <li>{@code --coalesce-bytes=<n>} the maximum number of bytes coalesced into a single write for a busy
+     * destination. (Defaults to 65536.)</li>
+     * <li>{@code --coalesce-delay=<microseconds>} the maximum delay for coalescing writes for a busy destination.
+     * (Defaults to 1000.)</li>
+     * <li>{@code --fair-quantum=<bytes>} the number of bytes each sender may send to a destination per round of fair
+     * scheduling. (Defaults to 4096.)</li>
+     * <li>{@code --port=<n>} the port for client connections. (Defaults to 8080.)</li>
+     * <li>{@code --keepalive=<seconds>} the interval of keepalive pings. Connections that received nothing for two
+     * intervals are closed. (Defaults to 0, disabled.)</li>
+     * <li>{@code --compress-threshold=<bytes>} the content size from which content is compressed for clients that
+     * negotiated compression. (Defaults to 256.)</li>
+     * <li>{@code --rate-frames=<n>}, {@code --rate-bytes=<n>} the maximum number of frames, resp. bytes, per second per
+     * connection. (Defaults to 0, unlimited.)</li>
+     * <li>{@code --ip-rate-frames=<n>}, {@code --ip-rate-bytes=<n>} the maximum number of frames, resp. bytes, per
+     * second for all connections from one IP. (Defaults to 0, unlimited.)</li>
+     * <li>{@code --max-connections-per-ip=<n>} the maximum number of concurrent connections from one IP. (Defaults to
+     * 0, unlimited.)</li>
+     * <li>{@code --node-port=<n>} the port for links from other nodes of the cluster. Clustering is enabled if this
+     * option is specified.</li>
+     * <li>{@code --node-bind=<address>} the local address on which the node-port accepts links. Node links are not
+     * authenticated, so this must be an interface that only the other nodes can reach. (Defaults to the loopback
+     * address.)</li>
+     * <li>{@code --peers=<host:port>,...} the node-ports of the other nodes of the cluster.</li>
+     * <li>{@code --node-id=<id>} the identifier of this node, unique within the cluster. (Defaults to a random
+     * identifier.)</li>
+     * <li>{@code --spool=<directory>} the directory for storing messages for destinations that are not available, until
+     * they register again. Store-and-forward is enabled if this option is specified.</li>
+     * <li>{@code --spool-ttl=<seconds>} the time that spooled messages are kept. (Defaults to 3600.)</li>
+     * <li>{@code --spool-size=<bytes>} the maximum size of the spooled messages per destination. (Defaults to
+     * 1048576.)</li>
+     * <li>{@code --spool-segments=<n>} the maximum number of destinations with spooled messages. (Defaults to 256.)
+     * </li>
+     * <li>{@code --tls-keystore=<file>} the keystore (PKCS12 or JKS) with the server's private key and certificate.
+     * Client connections use TLS if this option is specified.</li>
+     * <li>{@code --tls-password=<password>} the password of the keystore. (Defaults to the environment variable
+     * {@code ECHONETWORK_TLS_PASSWORD}.)</li>
+     * <li>{@code --tls-session-cache=<n>} the maximum number of cached TLS sessions. (Defaults to 20480.)</li>
+     * <li>{@code --tls-session-timeout=<seconds>} the time in which clients can resume a TLS session. (Defaults to
+     * 86400.)</li>
+     * </ul>
      *
-     * @param args no program parameters defined
+     * @param args the server options
      * @throws IOException In case of failure to start the server instance.
      */
     public static void main(@Nonnull final String[] args) throws IOException {
         LOGGER.log(Level.FINE, "Loglevel 'FINE' is being processed.");
-        final Map<String, OutputStream> clients = Collections.synchronizedMap(new HashMap<>());
-        try (ServerSocket server = new ServerSocket(DEFAULT_PORT)) {
-            LOGGER.log(Level.INFO, "Server started on {0}:{1}",
-                    new Object[]{server.getInetAddress().getHostAddress(), server.getLocalPort()});
-            while (!server.isClosed()) {
-                final Socket connection = server.accept();
-                final String connectionID = generateRemoteID(connection);
-                clients.put(connectionID, connection.getOutputStream());
-                new Handler(clients, connectionID, connection).start();
-            }
-        }
+        new EchoServer(Options.parse(args)).listener.serve();
         LOGGER.info("Server shut down.");
     }
 
-    @SuppressWarnings({"PMD.DoNotUseThreads", "resource"})
-    private static final class Handler extends Thread {
+    /**
+     * Start a server embedded in the application. The server serves clients on a background (daemon) thread, until it
+     * is closed.
+     *
+     * @param args the server options, as for {@link #main(String[])}. Use {@code --port=0} for an ephemeral port.
+     * @return Returns the running server.
+     * @throws IOException In case of failure to start the server.
+     * @throws IllegalArgumentException In case of invalid options.
+     */
+    @Nonnull
+    public static EchoServer start(@Nonnull final String... args) throws IOException {
+        final EchoServer server = new EchoServer(Options.parse(args));
+        final Thread thread = new Thread(server::serve, "EchoServer-" + server.port);
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
 
-        private final Map<String, OutputStream> clients;
-        private final String id;
-        private final Socket connection;
+    /**
+     * The port on which the server accepts client connections.
+     *
+     * @return Returns the port.
+     */
+    public int port() {
+        return this.port;
+    }
 
-        private Handler(@Nonnull final Map<String, OutputStream> clients, @Nonnull final String id, @Nonnull final Socket connection) {
-            super();
-            this.clients = requireNonNull(clients);
-            this.id = requireNonNull(id);
-            this.connection = requireNonNull(connection);
+    /**
+     * Stop the server: stop accepting connections, close the client connections and the cluster links, stop the spool
+     * and the keepalive timers, and unregister the metrics.
+     *
+     * @throws IOException In case of failure to close.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            this.listener.close();
+        } finally {
+            if (this.cluster != null) {
+                this.cluster.close();
+            }
+            if (this.spool != null) {
+                this.spool.close();
+            }
+            this.wheel.close();
+            this.metrics.unregister();
         }
+    }
+
+    private void serve() {
+        try {
+            this.listener.serve();
+            LOGGER.info("Server shut down.");
+        } catch (final IOException e) {
+            LOGGER.log(Level.SEVERE, "Server failed: {0}", new Object[]{e.getMessage()});
+        }
+    }
+
+    @Nullable
+    private static Tls loadTls(@Nonnull final Options options) throws IOException {
+        final String keystore = options.get("tls-keystore", "");
+        if (keystore.isEmpty()) {
+            return null;
+        }
+        final String password = options.get("tls-password", System.getenv().getOrDefault(TLS_PASSWORD_VARIABLE, ""));
+        return new Tls(Paths.get(keystore), password.toCharArray(),
+                Integers.requireAtLeast(0, options.getInt("tls-session-cache", DEFAULT_TLS_SESSION_CACHE)),
+                Integers.requireAtLeast(0, options.getInt("tls-session-timeout", DEFAULT_TLS_SESSION_TIMEOUT)));
+    }
 
-        @Override
-        public void run() {
-            LOGGER.log(Level.INFO, "Session {0} registered.", this.id);
-            try (this.connection; InputStream in = this.connection.getInputStream()) {
-                while (!this.connection.isClosed()) {
-                    final Message message = receiveMessage(in);
-                    final OutputStream destination = this.clients.get(message.address);
-                    if (destination == null) {
-                        LOGGER.log(Level.INFO, "Dropping message because destination is not available.");
-                        continue;
-                    }
-                    LOGGER.log(Level.FINE, "Relaying {0} => {1}: {2}",
-                            new Object[]{this.id, message.address, message.content});
-                    sendMessage(destination, generateRemoteID(this.connection), message.content);
-                }
-                LOGGER.log(Level.INFO, "Session {0} finished.", this.id);
-            } catch (final IOException e) {
-                LOGGER.log(Level.WARNING, "Failure in client connection: {0}", new Object[]{e.getMessage()});
-            } finally {
-                this.clients.remove(this.id);
+    private static InetAddress parseBind(@Nonnull final String value) throws UnknownHostException {
+        return value.isEmpty() ? InetAddress.getLoopbackAddress() : InetAddress.getByName(value);
+    }
+
+    private static List<InetSocketAddress> parsePeers(@Nonnull final String value) {
+        final List<InetSocketAddress> peers = new ArrayList<>();
+        for (final String peer : value.split(",")) {
+            if (peer.isEmpty()) {
+                continue;
+            }
+            final int separator = peer.lastIndexOf(':');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Invalid peer, expected host:port: " + peer);
             }
+            peers.add(new InetSocketAddress(peer.substring(0, separator),
+                    Integer.parseInt(peer.substring(separator + 1))));
         }
+        return peers;
     }
 }
@@ -0,0 +1,110 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import nl.dannyvanheumen.echonetwork.protocol.CompactProtocol;
+import nl.dannyvanheumen.echonetwork.protocol.Varint;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Encoder re-encodes frames for a client of the {@link CompactProtocol}. Frames are in the original encoding until the
+ * connection's writer takes the {@link Frame#upgrade} frame from the queue, and in the compact encoding afterwards. The
+ * content is not copied, only the header is encoded anew. The sender's handle is announced before the first frame that
+ * is addressed by that handle. Senders without handle, i.e. those of other nodes and the server itself, are addressed
+ * by their full address.
+ * <p>
+ * The encoder belongs to a single connection and must only be used by the connection's writer.
+ */
+final class Encoder {
+
+    private static final int LENGTH_SIZE = 4;
+
+    private static final int TYPE_SIZE = 1;
+
+    /**
+     * The handles that are announced to the client.
+     */
+    private final Set<Integer> announced = new HashSet<>();
+
+    private boolean compact;
+
+    /**
+     * Create the frame that holds the server's hello, which upgrades the connection to the compact protocol.
+     *
+     * @param version the negotiated version
+     * @param handle  the client's handle
+     * @param address the client's address
+     * @return Returns the frame.
+     */
+    @Nonnull
+    static Frame hello(final int version, final int handle, @Nonnull final String address) {
+        final byte[] encoded = address.getBytes(UTF_8);
+        final ByteBuffer hello = ByteBuffer.allocate(LENGTH_SIZE + Varint.size(handle)
+                + Varint.size(encoded.length) + encoded.length);
+        hello.putInt(CompactProtocol.hello(version));
+        Varint.put(hello, handle);
+        Varint.put(hello, encoded.length);
+        hello.put(encoded).flip();
+        return Frame.upgrade(hello);
+    }
+
+    /**
+     * Encode a frame for the connection.
+     *
+     * @param frame the frame, adapted to the connection's compression
+     * @return Returns the encoded frame, or the frame itself if the connection is not (yet) upgraded.
+     */
+    @Nonnull
+    Frame encode(@Nonnull final Frame frame) {
+        if (frame.upgrade) {
+            this.compact = true;
+            return frame;
+        }
+        if (!this.compact) {
+            return frame;
+        }
+        final ByteBuffer address = frame.sender.duplicate();
+        address.position(address.position() + LENGTH_SIZE);
+        final int addressLength = address.remaining();
+        final int contentLength = frame.content.remaining() - LENGTH_SIZE;
+        final boolean announce = frame.handle != 0 && this.announced.add(frame.handle);
+        int size = TYPE_SIZE + Varint.size(contentLength);
+        if (announce) {
+            size += TYPE_SIZE + Varint.size(frame.handle) + Varint.size(addressLength) + addressLength;
+        }
+        if (frame.handle == 0) {
+            size += Varint.size(addressLength) + addressLength;
+        } else {
+            size += Varint.size(frame.handle);
+        }
+        final ByteBuffer header = ByteBuffer.allocate(size);
+        if (announce) {
+            header.put((byte) CompactProtocol.HANDLE);
+            Varint.put(header, frame.handle);
+            Varint.put(header, addressLength);
+            header.put(address.duplicate());
+        }
+        final int flags = frame.compressed ? CompactProtocol.COMPRESSED : 0;
+        if (frame.handle == 0) {
+            header.put((byte) (CompactProtocol.MESSAGE | flags));
+            Varint.put(header, addressLength);
+            header.put(address);
+        } else {
+            header.put((byte) (CompactProtocol.ADDRESSED | flags));
+            Varint.put(header, frame.handle);
+        }
+        Varint.put(header, contentLength);
+        header.flip();
+        final ByteBuffer body = frame.content.duplicate();
+        body.position(body.position() + LENGTH_SIZE);
+        return frame.encoded(header, body);
+    }
+}
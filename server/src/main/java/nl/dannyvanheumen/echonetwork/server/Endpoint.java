@@ -0,0 +1,114 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import nl.dannyvanheumen.echonetwork.protocol.EchoProtocol;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.encodeValue;
+
+/**
+ * Endpoint is a logical endpoint that a client attached to its connection: a destination with an address of its own,
+ * that is delivered over the connection.
+ * <p>
+ * Frames for the endpoint are queued on the connection as any other frame, with the sender-address prefixed by the
+ * endpoint's name and {@link EchoProtocol#ROUTE_SEPARATOR}, such that the client knows which endpoint the frame is for.
+ * Only the sender-address is re-encoded, the content is not copied.
+ */
+final class Endpoint implements Destination {
+
+    /**
+     * The endpoint's name.
+     */
+    final String name;
+
+    /**
+     * The endpoint's address, i.e. the connection's address, {@link EchoProtocol#ENDPOINT_SEPARATOR} and the name.
+     */
+    final Address address;
+
+    /**
+     * The groups that the endpoint joined. (Only accessed by the connection's reader.)
+     */
+    final Set<Address> joined = new HashSet<>();
+
+    /**
+     * The endpoint's address in encoded form (length and value), ready to be used as the sender address of relayed
+     * messages.
+     */
+    private final ByteBuffer idFrame;
+
+    /**
+     * The prefix of the sender-address of frames for this endpoint: the name and the separator.
+     */
+    private final byte[] route;
+
+    private final Destination connection;
+
+    /**
+     * The endpoint's handle, assigned on registration.
+     */
+    int handle;
+
+    Endpoint(@Nonnull final String connection, @Nonnull final String name, @Nonnull final Destination destination) {
+        this.name = requireNonNull(name);
+        final String address = connection + EchoProtocol.ENDPOINT_SEPARATOR + name;
+        this.address = Address.of(address);
+        this.idFrame = ByteBuffer.wrap(encodeValue(address)).asReadOnlyBuffer();
+        this.route = (name + EchoProtocol.ROUTE_SEPARATOR).getBytes(UTF_8);
+        this.connection = requireNonNull(destination);
+    }
+
+    /**
+     * The endpoint's address as sender-address of a frame.
+     *
+     * @return Returns a view on the encoded address.
+     */
+    @Nonnull
+    ByteBuffer sender() {
+        return this.idFrame.duplicate();
+    }
+
+    @Override
+    public void deliver(@Nonnull final Frame frame) {
+        this.connection.deliver(readdress(frame));
+    }
+
+    @Override
+    public void deliver(@Nonnull final List<Frame> frames) {
+        final List<Frame> readdressed = new ArrayList<>(frames.size());
+        for (final Frame frame : frames) {
+            readdressed.add(readdress(frame));
+        }
+        this.connection.deliver(readdressed);
+    }
+
+    @Override
+    public int depth() {
+        return this.connection.depth();
+    }
+
+    @Nonnull
+    private Frame readdress(@Nonnull final Frame frame) {
+        final ByteBuffer original = frame.sender.duplicate();
+        final int length = this.route.length + original.getInt();
+        final ByteBuffer sender = ByteBuffer.allocate(Integer.BYTES + length);
+        sender.putInt(length).put(this.route).put(original).flip();
+        return frame.readdressed(sender);
+    }
+
+    @Override
+    public String toString() {
+        return this.address.toString();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import nl.dannyvanheumen.echonetwork.protocol.EchoProtocol;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Endpoints are the logical endpoints that a client attached to its connection, such that a single connection serves
+ * many addresses. Endpoints are registered as any other client, so they are addressed, join groups, receive spooled
+ * messages and are announced to the cluster in the same way.
+ * <p>
+ * The client attaches and detaches endpoints with the control commands {@value EchoProtocol#ATTACH}{@code <name>} and
+ * {@value EchoProtocol#DETACH}{@code <name>}. A frame that the client addresses as {@code <name> <address>} is sent by
+ * the endpoint to the address. If the address is empty, the frame is a control message of the endpoint, e.g. to join a
+ * group. Frames whose address does not start with the name of an attached endpoint are sent by the connection itself.
+ * <p>
+ * Endpoints are only accessed by the connection's reader, i.e. its thread or event-loop.
+ */
+final class Endpoints {
+
+    private static final Logger LOGGER = Logger.getLogger(Endpoints.class.getName());
+
+    /**
+     * The maximum number of endpoints per connection.
+     */
+    private static final int MAX_ENDPOINTS = 1 << 16;
+
+    private final Registry registry;
+
+    private final String id;
+
+    private final Destination connection;
+
+    private final Map<Address, Endpoint> attached = new HashMap<>();
+
+    /**
+     * The probe for the name of the sending endpoint.
+     */
+    private final Address name = new Address();
+
+    /**
+     * The probe for the destination of a frame sent by an endpoint.
+     */
+    private final Address destination = new Address();
+
+    Endpoints(@Nonnull final Registry registry, @Nonnull final String id, @Nonnull final Destination connection) {
+        this.registry = requireNonNull(registry);
+        this.id = requireNonNull(id);
+        this.connection = requireNonNull(connection);
+    }
+
+    /**
+     * Process a control command of the connection, if it attaches or detaches an endpoint.
+     *
+     * @param command the command
+     * @return Returns true if the command is processed, or false if it is not an endpoint command.
+     */
+    boolean control(@Nonnull final String command) {
+        if (command.startsWith(EchoProtocol.ATTACH)) {
+            attach(command.substring(EchoProtocol.ATTACH.length()));
+            return true;
+        }
+        if (command.startsWith(EchoProtocol.DETACH)) {
+            final Endpoint endpoint = this.attached.remove(Address.of(command.substring(EchoProtocol.DETACH.length())));
+            if (endpoint != null) {
+                detach(endpoint);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void attach(@Nonnull final String endpoint) {
+        if (endpoint.isEmpty() || endpoint.indexOf(EchoProtocol.ROUTE_SEPARATOR) >= 0
+                || endpoint.indexOf(EchoProtocol.ENDPOINT_SEPARATOR) >= 0) {
+            LOGGER.log(Level.INFO, "Ignoring invalid endpoint name: {0}", endpoint);
+            return;
+        }
+        final Address key = Address.of(endpoint);
+        if (this.attached.containsKey(key)) {
+            return;
+        }
+        if (this.attached.size() >= MAX_ENDPOINTS) {
+            LOGGER.log(Level.WARNING, "Session {0} exceeds the maximum number of endpoints.", this.id);
+            return;
+        }
+        final Endpoint attaching = new Endpoint(this.id, endpoint, this.connection);
+        attaching.handle = this.registry.register(attaching.address, attaching);
+        this.attached.put(key, attaching);
+        LOGGER.log(Level.FINE, "Endpoint {0} attached.", attaching);
+    }
+
+    private void detach(@Nonnull final Endpoint endpoint) {
+        this.registry.leaveAll(endpoint, endpoint.joined);
+        this.registry.unregister(endpoint.address, endpoint.handle, endpoint);
+        LOGGER.log(Level.FINE, "Endpoint {0} detached.", endpoint);
+    }
+
+    /**
+     * Detach all endpoints, e.g. when the connection closes.
+     */
+    void detachAll() {
+        for (final Endpoint endpoint : this.attached.values()) {
+            detach(endpoint);
+        }
+        this.attached.clear();
+    }
+
+    /**
+     * Determine the endpoint that sends a frame, from the frame's address.
+     *
+     * @param target the frame's address (may be a reused probe)
+     * @return Returns the sending endpoint, or null if the connection itself sends the frame. If an endpoint sends the
+     * frame, the actual destination is available from {@link #destination()}.
+     */
+    @Nullable
+    Endpoint sender(@Nonnull final Address target) {
+        if (this.attached.isEmpty() || !target.split(EchoProtocol.ROUTE_SEPARATOR, this.name, this.destination)) {
+            return null;
+        }
+        return this.attached.get(this.name);
+    }
+
+    /**
+     * The destination of the frame of which {@link #sender(Address)} determined the sending endpoint.
+     *
+     * @return Returns the destination (a reused probe), or the empty address for a control message of the endpoint.
+     */
+    @Nonnull
+    Address destination() {
+        return this.destination;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * EventLoop is a single-threaded selector loop. Every connection is pinned to exactly one event-loop, which performs
+ * all reads and writes for that connection. Other threads interact with the event-loop exclusively through its
+ * (lock-free) task queue.
+ */
+final class EventLoop implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(EventLoop.class.getName());
+
+    private final Selector selector;
+
+    private final Registry registry;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean awake = new AtomicBoolean();
+
+    /**
+     * Timers, ordered by deadline. (Only accessed from the event-loop thread.)
+     */
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(t -> t.deadline));
+
+    private final Settings settings;
+
+    private final Metrics metrics;
+
+    private final TimingWheel wheel;
+
+    /**
+     * The TLS configuration. (Null for plaintext connections.)
+     */
+    @Nullable
+    private final Tls tls;
+
+    /**
+     * The pool of network buffers for TLS connections. (Null for plaintext connections.)
+     */
+    @Nullable
+    private final BufferPool pool;
+
+    /**
+     * Indicates that the event-loop is stopped. (Only accessed from the event-loop thread.)
+     */
+    private boolean stopped;
+
+    EventLoop(@Nonnull final Registry registry, @Nonnull final Settings settings, @Nonnull final Metrics metrics,
+            @Nonnull final TimingWheel wheel, @Nullable final Tls tls) throws IOException {
+        this.registry = requireNonNull(registry);
+        this.settings = requireNonNull(settings);
+        this.metrics = requireNonNull(metrics);
+        this.wheel = requireNonNull(wheel);
+        this.tls = tls;
+        this.pool = tls == null ? null : tls.pool();
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Register a newly accepted connection with this event-loop. (Thread-safe)
+     *
+     * @param channel the accepted channel
+     * @param limiter the rate limiter for the connection
+     */
+    void register(@Nonnull final SocketChannel channel, @Nonnull final Admission.Limiter limiter) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                final Transport transport = this.tls == null ? new PlainTransport(channel)
+                        : this.tls.transport(channel, requireNonNull(this.pool));
+                final ChannelConnection connection = new ChannelConnection(this, channel, transport,
+                        this.registry, this.settings, this.metrics, limiter, this.wheel);
+                connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+                connection.open();
+            } catch (final IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to register client connection: {0}", new Object[]{e.getMessage()});
+                limiter.release();
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    /**
+     * Schedule a task to be executed on the event-loop after a delay. (Must be called from the event-loop thread.)
+     *
+     * @param task       the task
+     * @param delayNanos the delay in nanoseconds
+     */
+    void schedule(@Nonnull final Runnable task, final long delayNanos) {
+        this.timers.add(new Timer(System.nanoTime() + delayNanos, task));
+    }
+
+    /**
+     * Execute a task on the event-loop thread. (Thread-safe)
+     *
+     * @param task the task
+     */
+    void execute(@Nonnull final Runnable task) {
+        this.tasks.add(task);
+        if (!this.awake.getAndSet(true)) {
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * Stop the event-loop, after the tasks that are already queued. The connections are closed. (Thread-safe)
+     */
+    void stop() {
+        execute(() -> this.stopped = true);
+    }
+
+    /**
+     * Release the selector of an event-loop that never ran. (Must not be used once the event-loop is started.)
+     */
+    void release() {
+        try {
+            this.selector.close();
+        } catch (final IOException e) {
+            LOGGER.log(Level.FINE, "Failed to close selector: {0}", new Object[]{e.getMessage()});
+        }
+    }
+
+    @Override
+    public void run() {
+        try (this.selector) {
+            while (!this.stopped) {
+                this.awake.set(false);
+                if (this.tasks.isEmpty()) {
+                    select();
+                } else {
+                    this.selector.selectNow();
+                }
+                this.awake.set(true);
+                runTimers();
+                runTasks();
+                processSelectedKeys();
+            }
+            for (final SelectionKey key : this.selector.keys()) {
+                ((ChannelConnection) key.attachment()).close();
+            }
+        } catch (final IOException e) {
+            LOGGER.log(Level.SEVERE, "Event-loop failed: {0}", new Object[]{e.getMessage()});
+        }
+    }
+
+    private void runTasks() {
+        for (Runnable task = this.tasks.poll(); task != null; task = this.tasks.poll()) {
+            task.run();
+        }
+    }
+
+    private void select() throws IOException {
+        final Timer next = this.timers.peek();
+        if (next == null) {
+            this.selector.select();
+        } else {
+            this.selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime())));
+        }
+    }
+
+    private void runTimers() {
+        final long now = System.nanoTime();
+        for (Timer timer = this.timers.peek(); timer != null && timer.deadline - now <= 0;
+                timer = this.timers.peek()) {
+            this.timers.poll();
+            timer.task.run();
+        }
+    }
+
+    private void processSelectedKeys() {
+        final Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            final SelectionKey key = keys.next();
+            keys.remove();
+            if (key.isValid()) {
+                process((ChannelConnection) key.attachment(), key.isWritable(), key.isReadable());
+            }
+        }
+    }
+
+    /**
+     * Process a connection that is ready for I/O. Data that is buffered in the connection's transport is read even if
+     * the channel itself is not readable. (Must be called from the event-loop thread.)
+     *
+     * @param connection the connection
+     * @param writable   the channel is writable
+     * @param readable   the channel is readable
+     */
+    void process(@Nonnull final ChannelConnection connection, final boolean writable, final boolean readable) {
+        try {
+            if (writable) {
+                connection.write();
+            }
+            if (connection.key.isValid() && (readable || connection.buffered())) {
+                connection.read();
+            }
+        } catch (final ProtocolException e) {
+            this.metrics.decodeError();
+            LOGGER.log(Level.WARNING, "Invalid data in client connection: {0}", new Object[]{e.getMessage()});
+            connection.close();
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, "Failure in client connection: {0}", new Object[]{e.getMessage()});
+            connection.close();
+        }
+    }
+
+    /**
+     * Timer is a task scheduled for execution at a deadline.
+     */
+    private static final class Timer {
+
+        private final long deadline;
+        private final Runnable task;
+
+        private Timer(final long deadline, @Nonnull final Runnable task) {
+            this.deadline = deadline;
+            this.task = requireNonNull(task);
+        }
+    }
+
+    static void closeQuietly(@Nonnull final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            LOGGER.log(Level.FINE, "Failed to close channel: {0}", new Object[]{e.getMessage()});
+        }
+    }
+}
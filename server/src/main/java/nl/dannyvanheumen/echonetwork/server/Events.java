@@ -0,0 +1,210 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Events contains the Java Flight Recorder events of the server.
+ * <p>
+ * Events are created, begun and completed unconditionally. Fields are only filled in when the event is actually
+ * committed, so disabled events cost next to nothing. Frame events have a threshold, such that by default only slow
+ * reads and writes are recorded.
+ */
+final class Events {
+
+    private static final String CATEGORY = "Echonetwork";
+
+    private Events() {
+        // No need to instantiate utility class.
+    }
+
+    /**
+     * Begin the event for a session, to be completed when the session finishes.
+     *
+     * @return Returns the begun event.
+     */
+    static SessionFinished sessionFinished() {
+        final SessionFinished event = new SessionFinished();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Begin the event for receiving a frame.
+     *
+     * @return Returns the begun event.
+     */
+    static FrameReceived frameReceived() {
+        final FrameReceived event = new FrameReceived();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Begin the event for writing frames.
+     *
+     * @return Returns the begun event.
+     */
+    static FrameRelayed frameRelayed() {
+        final FrameRelayed event = new FrameRelayed();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * A client session was registered.
+     */
+    @Name("nl.dannyvanheumen.echonetwork.server.SessionRegistered")
+    @Label("Session Registered")
+    @Category({CATEGORY, "Server"})
+    @StackTrace(false)
+    static final class SessionRegistered extends Event {
+
+        @Label("Address")
+        String address;
+
+        static void record(@Nonnull final Object address) {
+            final SessionRegistered event = new SessionRegistered();
+            if (event.shouldCommit()) {
+                event.address = address.toString();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * A client session finished. The duration is the lifetime of the session.
+     */
+    @Name("nl.dannyvanheumen.echonetwork.server.SessionFinished")
+    @Label("Session Finished")
+    @Category({CATEGORY, "Server"})
+    @StackTrace(false)
+    static final class SessionFinished extends Event {
+
+        @Label("Address")
+        String address;
+
+        void complete(@Nonnull final Object address) {
+            end();
+            if (shouldCommit()) {
+                this.address = address.toString();
+                commit();
+            }
+        }
+    }
+
+    /**
+     * A frame was received. The duration is the time from reading the frame's header until it was completely read.
+     */
+    @Name("nl.dannyvanheumen.echonetwork.server.FrameReceived")
+    @Label("Frame Received")
+    @Category({CATEGORY, "Server"})
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static final class FrameReceived extends Event {
+
+        @Label("Source")
+        String source;
+
+        @Label("Destination")
+        String destination;
+
+        @Label("Size")
+        @DataAmount
+        int size;
+
+        void complete(@Nonnull final Object source, @Nonnull final Object destination, final int size) {
+            end();
+            if (shouldCommit()) {
+                this.source = source.toString();
+                this.destination = destination.toString();
+                this.size = size;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Frames were written to their destination.
+     */
+    @Name("nl.dannyvanheumen.echonetwork.server.FrameRelayed")
+    @Label("Frame Relayed")
+    @Description("Frames written to a destination, in a single write.")
+    @Category({CATEGORY, "Server"})
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static final class FrameRelayed extends Event {
+
+        @Label("Destination")
+        String destination;
+
+        @Label("Frames")
+        int frames;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        void complete(@Nonnull final Object destination, final int frames, final long bytes) {
+            end();
+            if (shouldCommit()) {
+                this.destination = destination.toString();
+                this.frames = frames;
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * A message was dropped.
+     */
+    @Name("nl.dannyvanheumen.echonetwork.server.MessageDropped")
+    @Label("Message Dropped")
+    @Category({CATEGORY, "Server"})
+    @StackTrace(false)
+    static final class MessageDropped extends Event {
+
+        /**
+         * Reason: the destination is not available.
+         */
+        static final String UNKNOWN_DESTINATION = "unknown destination";
+
+        /**
+         * Reason: the destination's queue is full.
+         */
+        static final String QUEUE_FULL = "queue full";
+
+        /**
+         * Reason: the destination's spool segment is full.
+         */
+        static final String SPOOL_FULL = "spool full";
+
+        @Label("Destination")
+        String destination;
+
+        @Label("Reason")
+        String reason;
+
+        static void record(@Nonnull final Object destination, @Nonnull final String reason) {
+            final MessageDropped event = new MessageDropped();
+            if (event.shouldCommit()) {
+                event.destination = destination.toString();
+                event.reason = reason;
+                event.commit();
+            }
+        }
+    }
+}
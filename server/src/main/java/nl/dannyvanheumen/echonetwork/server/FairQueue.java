@@ -0,0 +1,256 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.util.Objects.requireNonNull;
+import static nl.dannyvanheumen.echonetwork.utils.Integers.requireAtLeast;
+
+/**
+ * FairQueue is the bounded queue of frames for a single destination. Frames are queued per {@link Origin} and taken out
+ * using deficit round-robin: every turn, an origin may send up to a quantum of bytes. Each origin therefore gets an
+ * equal share of the destination's bandwidth, however many frames it offers. Frames of the same origin stay in order.
+ * <p>
+ * When the queue is full, the {@link OverflowPolicy} applies. Dropping is fair as well: the frame to drop is taken from
+ * the origin with the most queued frames. Only if the offering origin is itself the largest, is the new frame dropped
+ * under {@link OverflowPolicy#DROP_NEWEST}.
+ * <p>
+ * FairQueue is thread-safe.
+ */
+final class FairQueue {
+
+    private final int capacity;
+
+    private final int quantum;
+
+    private final OverflowPolicy policy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = this.lock.newCondition();
+
+    private final Map<Origin, Flow> flows = new HashMap<>();
+
+    /**
+     * The round of active flows, i.e. flows with queued frames. The head of the round is being served.
+     */
+    private final ArrayDeque<Flow> round = new ArrayDeque<>();
+
+    private int size;
+
+    /**
+     * Constructor for FairQueue.
+     *
+     * @param capacity the maximum number of frames
+     * @param quantum  the number of bytes that an origin may send per turn
+     * @param policy   the overflow policy
+     */
+    FairQueue(final int capacity, final int quantum, @Nonnull final OverflowPolicy policy) {
+        this.capacity = requireAtLeast(1, capacity);
+        this.quantum = requireAtLeast(1, quantum);
+        this.policy = requireNonNull(policy);
+    }
+
+    /**
+     * Offer a frame.
+     *
+     * @param frame the frame
+     * @return Returns true if the frame was queued without dropping a frame. Returns false if a frame was dropped
+     * (DROP_OLDEST, DROP_NEWEST) or if the queue is full and the frame was not queued (DISCONNECT).
+     */
+    boolean offer(@Nonnull final Frame frame) {
+        this.lock.lock();
+        try {
+            Flow flow = this.flows.get(frame.origin);
+            if (this.size >= this.capacity) {
+                if (this.policy == OverflowPolicy.DISCONNECT) {
+                    return false;
+                }
+                final Flow largest = largest();
+                if (this.policy == OverflowPolicy.DROP_NEWEST && flow != null
+                        && flow.frames.size() >= largest.frames.size()) {
+                    return false;
+                }
+                if (this.policy == OverflowPolicy.DROP_OLDEST) {
+                    largest.frames.pollFirst();
+                } else {
+                    largest.frames.pollLast();
+                }
+                this.size--;
+                if (largest.frames.isEmpty()) {
+                    retire(largest);
+                    flow = this.flows.get(frame.origin);
+                }
+                enqueue(flow, frame);
+                return false;
+            }
+            enqueue(flow, frame);
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Offer several frames at once, such that they are taken out together.
+     *
+     * @param frames the frames
+     * @return Returns the number of offers that did not succeed, see {@link #offer(Frame)}.
+     */
+    int offer(@Nonnull final List<Frame> frames) {
+        this.lock.lock();
+        try {
+            int failed = 0;
+            for (final Frame frame : frames) {
+                if (!offer(frame)) {
+                    failed++;
+                }
+            }
+            return failed;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void enqueue(@Nullable final Flow existing, @Nonnull final Frame frame) {
+        Flow flow = existing;
+        if (flow == null) {
+            flow = new Flow(frame.origin);
+            this.flows.put(frame.origin, flow);
+            this.round.addLast(flow);
+        }
+        flow.frames.addLast(frame);
+        this.size++;
+        this.notEmpty.signal();
+    }
+
+    @Nonnull
+    private Flow largest() {
+        Flow largest = null;
+        for (final Flow flow : this.round) {
+            if (largest == null || flow.frames.size() > largest.frames.size()) {
+                largest = flow;
+            }
+        }
+        return requireNonNull(largest);
+    }
+
+    private void retire(@Nonnull final Flow flow) {
+        this.flows.remove(flow.origin);
+        this.round.remove(flow);
+    }
+
+    /**
+     * Take the next frame, in deficit round-robin order.
+     *
+     * @return Returns the frame, or null if the queue is empty.
+     */
+    @Nullable
+    Frame poll() {
+        this.lock.lock();
+        try {
+            return next();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Take the next frame, waiting for a frame to become available if necessary.
+     *
+     * @return Returns the frame.
+     * @throws InterruptedException In case the thread is interrupted while waiting.
+     */
+    @Nonnull
+    Frame take() throws InterruptedException {
+        this.lock.lockInterruptibly();
+        try {
+            while (this.size == 0) {
+                this.notEmpty.await();
+            }
+            return requireNonNull(next());
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Nullable
+    private Frame next() {
+        while (true) {
+            final Flow flow = this.round.peekFirst();
+            if (flow == null) {
+                return null;
+            }
+            if (!flow.served) {
+                flow.served = true;
+                flow.deficit += this.quantum;
+            }
+            final Frame frame = flow.frames.peekFirst();
+            if (frame.size <= flow.deficit) {
+                flow.frames.pollFirst();
+                flow.deficit -= frame.size;
+                this.size--;
+                if (flow.frames.isEmpty()) {
+                    retire(flow);
+                }
+                return frame;
+            }
+            // The flow's turn is over. Its deficit carries over to its next turn.
+            flow.served = false;
+            this.round.addLast(this.round.pollFirst());
+        }
+    }
+
+    /**
+     * The number of queued frames.
+     *
+     * @return Returns the number of frames.
+     */
+    int size() {
+        this.lock.lock();
+        try {
+            return this.size;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Remove all queued frames.
+     */
+    void clear() {
+        this.lock.lock();
+        try {
+            this.flows.clear();
+            this.round.clear();
+            this.size = 0;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Flow is the queue of frames of a single origin.
+     */
+    private static final class Flow {
+
+        private final Origin origin;
+        private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+        private long deficit;
+        private boolean served;
+
+        private Flow(@Nonnull final Origin origin) {
+            this.origin = requireNonNull(origin);
+        }
+    }
+}
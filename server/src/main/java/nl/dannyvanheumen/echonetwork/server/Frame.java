@@ -0,0 +1,215 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import nl.dannyvanheumen.echonetwork.protocol.Compression;
+
+import javax.annotation.Nonnull;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import static java.util.Objects.requireNonNull;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.CONTROL_ADDRESS;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.encodeValue;
+
+/**
+ * Frame is a relayed message, waiting for delivery, in its encoded form. Both the sender-address and the content
+ * include their length-prefix, so they are written as-is. The content is never decoded, only decompressed or compressed
+ * when the destination's compression differs from the sender's, see {@link #adapt(Compression)}. For clients of the
+ * compact protocol, the frame is re-encoded by the connection's {@link Encoder}.
+ */
+final class Frame {
+
+    private static final int LENGTH_SIZE = 4;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static final ByteBuffer CONTROL = ByteBuffer.wrap(encodeValue(CONTROL_ADDRESS)).asReadOnlyBuffer();
+
+    /**
+     * The origin of control messages, i.e. the server itself. (Not registered with the metrics.)
+     */
+    private static final Origin SERVER = new Origin("server");
+
+    /**
+     * The origin of the frame, i.e. the connection or node link it was received from.
+     */
+    final Origin origin;
+
+    /**
+     * The sender's address. (A view on the sender's cached encoded address.)
+     */
+    final ByteBuffer sender;
+
+    /**
+     * The content, as received from the sender.
+     */
+    final ByteBuffer content;
+
+    /**
+     * The sender's handle, or 0 if the sender is not a local client.
+     */
+    final int handle;
+
+    /**
+     * Indicates that the frame holds the server's hello, after which frames are written in the compact protocol.
+     */
+    final boolean upgrade;
+
+    /**
+     * Indicates that the frame holds the server's acknowledgement of compression, after which frames are compressed.
+     */
+    final boolean acknowledge;
+
+    /**
+     * Indicates that the content is compressed.
+     */
+    final boolean compressed;
+
+    /**
+     * The size of the frame in bytes, i.e. sender-address and content.
+     */
+    final int size;
+
+    /**
+     * The time (System.nanoTime) at which the frame was received.
+     */
+    final long received;
+
+    Frame(@Nonnull final Origin origin, @Nonnull final ByteBuffer sender, @Nonnull final ByteBuffer content) {
+        this(origin, sender, content, 0);
+    }
+
+    Frame(@Nonnull final Origin origin, @Nonnull final ByteBuffer sender, @Nonnull final ByteBuffer content,
+            final int handle) {
+        this(origin, sender, content, System.nanoTime(), handle,
+                Compression.isCompressed(content.getInt(content.position())), false, false);
+    }
+
+    private Frame(@Nonnull final Origin origin, @Nonnull final ByteBuffer sender, @Nonnull final ByteBuffer content,
+            final long received, final int handle, final boolean compressed, final boolean upgrade,
+            final boolean acknowledge) {
+        this.origin = requireNonNull(origin);
+        this.sender = requireNonNull(sender);
+        this.content = requireNonNull(content);
+        this.size = sender.remaining() + content.remaining();
+        this.handle = handle;
+        this.compressed = compressed;
+        this.upgrade = upgrade;
+        this.acknowledge = acknowledge;
+        this.received = received;
+    }
+
+    /**
+     * Create a control message from the server.
+     *
+     * @param command the command
+     * @return Returns the frame.
+     */
+    @Nonnull
+    static Frame control(@Nonnull final String command) {
+        return new Frame(SERVER, CONTROL.duplicate(), ByteBuffer.wrap(encodeValue(command)));
+    }
+
+    /**
+     * Create the server's acknowledgement of compression. Compression takes effect once the destination's writer takes
+     * the acknowledgement from the queue, see {@link #adapt(Compression)}, such that the client does not receive
+     * compressed content before the acknowledgement.
+     *
+     * @return Returns the frame.
+     */
+    @Nonnull
+    static Frame acknowledgeCompression() {
+        return new Frame(SERVER, CONTROL.duplicate(), ByteBuffer.wrap(encodeValue(Compression.COMMAND)),
+                System.nanoTime(), 0, false, false, true);
+    }
+
+    /**
+     * Create the frame that upgrades a connection to the compact protocol.
+     *
+     * @param hello the server's hello
+     * @return Returns the frame.
+     */
+    @Nonnull
+    static Frame upgrade(@Nonnull final ByteBuffer hello) {
+        return new Frame(SERVER, hello, EMPTY.duplicate(), System.nanoTime(), 0, false, true, false);
+    }
+
+    /**
+     * Create a frame with the same properties, in another encoding.
+     *
+     * @param header the encoded header, i.e. anything preceding the content
+     * @param body   the content, without length-prefix
+     * @return Returns the encoded frame.
+     */
+    @Nonnull
+    Frame encoded(@Nonnull final ByteBuffer header, @Nonnull final ByteBuffer body) {
+        return new Frame(this.origin, header, body, this.received, this.handle, this.compressed, false,
+                this.acknowledge);
+    }
+
+    /**
+     * Create a frame with the same content from another sender-address, e.g. the address as seen by an endpoint.
+     *
+     * @param sender the sender's address, including its length-prefix
+     * @return Returns the frame, without handle.
+     */
+    @Nonnull
+    Frame readdressed(@Nonnull final ByteBuffer sender) {
+        return new Frame(this.origin, sender, this.content, this.received, 0, this.compressed, this.upgrade,
+                this.acknowledge);
+    }
+
+    /**
+     * Create a frame for another destination, sharing the same buffers. Only the buffers' positions are independent,
+     * so the frame can be written without copying.
+     *
+     * @return Returns the shared frame.
+     */
+    @Nonnull
+    Frame share() {
+        return new Frame(this.origin, this.sender.duplicate(), this.content.duplicate(), this.received, this.handle,
+                this.compressed, this.upgrade, this.acknowledge);
+    }
+
+    /**
+     * Adapt the frame to the destination's compression. Compressed content is relayed as-is to a destination that
+     * negotiated compression, and decompressed otherwise. Uncompressed content is compressed for a destination that
+     * negotiated compression, if worthwhile. The acknowledgement of compression marks the destination's compression as
+     * negotiated, such that only frames written after the acknowledgement are compressed. (Must be called by the
+     * destination's writer, in the order in which frames are written.)
+     *
+     * @param compression the destination's compression
+     * @return Returns the adapted frame, or the frame itself if no adaptation is needed.
+     * @throws ProtocolException In case of invalid compressed content.
+     */
+    @Nonnull
+    Frame adapt(@Nonnull final Compression compression) throws ProtocolException {
+        if (this.acknowledge) {
+            compression.accept();
+            return this;
+        }
+        if (this.upgrade || this.compressed == compression.accepted()) {
+            return this;
+        }
+        final int offset = this.content.arrayOffset() + this.content.position() + LENGTH_SIZE;
+        final int length = this.content.remaining() - LENGTH_SIZE;
+        final ByteBuffer adapted;
+        if (this.compressed) {
+            final byte[] inflated = compression.decompress(this.content.array(), offset, length);
+            adapted = ByteBuffer.allocate(LENGTH_SIZE + inflated.length);
+            adapted.putInt(inflated.length).put(inflated).flip();
+        } else {
+            final byte[] deflated = compression.compress(this.content.array(), offset, length);
+            if (deflated.length == 0) {
+                return this;
+            }
+            adapted = ByteBuffer.allocate(LENGTH_SIZE + deflated.length);
+            adapted.putInt(Compression.COMPRESSED | deflated.length).put(deflated).flip();
+        }
+        return new Frame(this.origin, this.sender, adapted, this.received, this.handle, !this.compressed, false,
+                false);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Group is a group address: a destination that fans out every frame to all of its members.
+ * <p>
+ * The frame is not copied. Every member gets its own view on the same sender-address and content buffers, see
+ * {@link Frame#share()}. A broadcast therefore costs a single received frame, and a write per member. Membership is
+ * copy-on-write, as fan-out is far more frequent than joining or leaving.
+ */
+final class Group implements Destination {
+
+    private final Address address;
+
+    private final CopyOnWriteArrayList<Destination> members = new CopyOnWriteArrayList<>();
+
+    Group(@Nonnull final Address address) {
+        this.address = requireNonNull(address);
+    }
+
+    @Override
+    public void deliver(@Nonnull final Frame frame) {
+        for (final Destination member : this.members) {
+            member.deliver(frame.share());
+        }
+    }
+
+    @Override
+    public void deliver(@Nonnull final List<Frame> frames) {
+        for (final Destination member : this.members) {
+            final List<Frame> shared = new ArrayList<>(frames.size());
+            for (final Frame frame : frames) {
+                shared.add(frame.share());
+            }
+            member.deliver(shared);
+        }
+    }
+
+    void add(@Nonnull final Destination member) {
+        this.members.addIfAbsent(member);
+    }
+
+    void remove(@Nonnull final Destination member) {
+        this.members.remove(member);
+    }
+
+    boolean isEmpty() {
+        return this.members.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return this.address.toString();
+    }
+}
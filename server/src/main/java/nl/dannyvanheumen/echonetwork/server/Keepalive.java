@@ -0,0 +1,141 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.Objects.requireNonNull;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.PING;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.PONG;
+
+/**
+ * Keepalive detects dead client connections, and measures their round-trip time.
+ * <p>
+ * Every interval, the server sends a ping from the control address, which the client answers with a pong. A connection
+ * that has not received anything, neither pongs nor messages, for two intervals is evicted. A dead client is therefore
+ * evicted within three intervals. The round-trip time of every pong is smoothed as in TCP (RFC 6298) and made
+ * available through the connection's {@link Origin}.
+ * <p>
+ * All connections share a single {@link TimingWheel}.
+ */
+final class Keepalive implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(Keepalive.class.getName());
+
+    private static final int SMOOTHING = 8;
+
+    private final TimingWheel wheel;
+
+    private final long intervalNanos;
+
+    private final Destination destination;
+
+    private final Origin origin;
+
+    private final Metrics metrics;
+
+    private final Runnable evict;
+
+    private volatile long received = System.nanoTime();
+
+    private volatile long token;
+
+    private volatile long sent;
+
+    private volatile TimingWheel.Timeout timeout;
+
+    private volatile boolean stopped;
+
+    /**
+     * Constructor for Keepalive.
+     *
+     * @param wheel         the timing wheel
+     * @param intervalNanos the ping interval in nanoseconds (0 to disable)
+     * @param destination   the client connection
+     * @param origin        the client connection's origin
+     * @param metrics       the metrics
+     * @param evict         the action that closes the connection (Must not block.)
+     */
+    Keepalive(@Nonnull final TimingWheel wheel, final long intervalNanos, @Nonnull final Destination destination,
+            @Nonnull final Origin origin, @Nonnull final Metrics metrics, @Nonnull final Runnable evict) {
+        this.wheel = requireNonNull(wheel);
+        this.intervalNanos = intervalNanos;
+        this.destination = requireNonNull(destination);
+        this.origin = requireNonNull(origin);
+        this.metrics = requireNonNull(metrics);
+        this.evict = requireNonNull(evict);
+    }
+
+    /**
+     * Start sending pings, if enabled.
+     */
+    void start() {
+        if (this.intervalNanos > 0) {
+            this.timeout = this.wheel.schedule(this, this.intervalNanos);
+        }
+    }
+
+    /**
+     * Stop sending pings. (Thread-safe)
+     */
+    void stop() {
+        this.stopped = true;
+        final TimingWheel.Timeout current = this.timeout;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    /**
+     * Record that data was received from the client.
+     */
+    void received() {
+        this.received = System.nanoTime();
+    }
+
+    /**
+     * Process a control command, if it is a pong.
+     *
+     * @param command the control command
+     * @return Returns true if the command is a pong, false otherwise.
+     */
+    boolean pong(@Nonnull final String command) {
+        if (!command.startsWith(PONG)) {
+            return false;
+        }
+        final long rtt = System.nanoTime() - this.sent;
+        try {
+            if (Long.parseLong(command.substring(PONG.length())) == this.token) {
+                final long smoothed = this.origin.roundTrip;
+                this.origin.roundTrip = smoothed == 0 ? rtt : smoothed + (rtt - smoothed) / SMOOTHING;
+            }
+        } catch (final NumberFormatException e) {
+            LOGGER.log(Level.FINE, "Ignoring invalid pong from session {0}.", this.origin);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        if (this.stopped) {
+            return;
+        }
+        final long now = System.nanoTime();
+        if (now - this.received >= 2 * this.intervalNanos) {
+            LOGGER.log(Level.INFO, "Evicting session {0}: nothing received for {1} ms.",
+                    new Object[]{this.origin, TimeUnit.NANOSECONDS.toMillis(now - this.received)});
+            this.metrics.evicted();
+            this.evict.run();
+            return;
+        }
+        this.token++;
+        this.sent = now;
+        this.destination.deliver(Frame.control(PING + this.token));
+        this.timeout = this.wheel.schedule(this, this.intervalNanos);
+    }
+}
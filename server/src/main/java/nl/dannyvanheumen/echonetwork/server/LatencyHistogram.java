@@ -0,0 +1,72 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram is a histogram of durations with power-of-two buckets. Recording does not contend, as every bucket
+ * is a striped counter. Buckets are created on first use, as durations typically fall in only a few of them.
+ * Percentiles are approximate: they report the upper bound of the bucket.
+ */
+final class LatencyHistogram {
+
+    private static final int BUCKETS = Long.SIZE;
+
+    private final AtomicReferenceArray<LongAdder> buckets = new AtomicReferenceArray<>(BUCKETS);
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    void record(final long nanos) {
+        final int index = BUCKETS - Long.numberOfLeadingZeros(Math.max(0, nanos));
+        LongAdder bucket = this.buckets.get(index);
+        if (bucket == null) {
+            this.buckets.compareAndSet(index, null, new LongAdder());
+            bucket = this.buckets.get(index);
+        }
+        bucket.increment();
+    }
+
+    /**
+     * Snapshot of the counts per bucket.
+     *
+     * @return Returns the counts.
+     */
+    long[] counts() {
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            final LongAdder bucket = this.buckets.get(i);
+            counts[i] = bucket == null ? 0 : bucket.sum();
+        }
+        return counts;
+    }
+
+    /**
+     * Approximate a percentile.
+     *
+     * @param percentile the percentile, in range [0, 1]
+     * @return Returns the upper bound (in nanoseconds) of the bucket containing the percentile, or 0 if empty.
+     */
+    long percentile(final double percentile) {
+        final long[] counts = counts();
+        long total = 0;
+        for (final long count : counts) {
+            total += count;
+        }
+        final long rank = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return i == BUCKETS - 1 ? Long.MAX_VALUE : 1L << i;
+            }
+        }
+        return 0;
+    }
+}
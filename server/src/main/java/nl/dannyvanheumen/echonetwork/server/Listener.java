@@ -0,0 +1,38 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Listener accepts client connections on a port and serves them, in one of the server modes.
+ */
+interface Listener extends Closeable {
+
+    /**
+     * Bind to the port, such that clients can connect.
+     *
+     * @param port the port, or 0 for an ephemeral port
+     * @return Returns the port on which the listener accepts connections.
+     * @throws IOException In case of failure to bind.
+     */
+    int bind(int port) throws IOException;
+
+    /**
+     * Accept and serve client connections. This method blocks until the listener is closed.
+     *
+     * @throws IOException In case of failure to accept connections.
+     */
+    void serve() throws IOException;
+
+    /**
+     * Stop accepting connections, and close the established connections. (Thread-safe)
+     *
+     * @throws IOException In case of failure to close.
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,339 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Metrics collects the server's metrics. All counters are striped (LongAdder), such that recording from many threads
+ * does not contend. Totals are only computed when read, i.e. through JMX.
+ */
+@SuppressWarnings({"PMD.TooManyFields", "PMD.GodClass"})
+final class Metrics implements ServerMetricsMXBean {
+
+    /**
+     * The object name under which the metrics are registered, followed by the key {@code port} with the server's port.
+     */
+    static final String OBJECT_NAME = "nl.dannyvanheumen.echonetwork:type=Server";
+
+    private static final Logger LOGGER = Logger.getLogger(Metrics.class.getName());
+
+    private static final double P50 = 0.5;
+    private static final double P99 = 0.99;
+    private static final double P999 = 0.999;
+
+    /**
+     * The maximum number of origins reported per metric, see {@link #top(Map)}.
+     */
+    static final int ORIGIN_LIMIT = 100;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder unknownDestination = new LongAdder();
+    private final LongAdder queueFull = new LongAdder();
+    private final LongAdder decodeErrors = new LongAdder();
+    private final LongAdder spooled = new LongAdder();
+    private final LongAdder unspooled = new LongAdder();
+    private final LongAdder spoolFull = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder linkCongested = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final Set<Origin> origins = ConcurrentHashMap.newKeySet();
+
+    @Nullable
+    private volatile ObjectName name;
+
+    /**
+     * Register the metrics with the platform MBean server. The server's port is part of the name, such that several
+     * servers can run in one application. Failure is logged, as metrics are not essential.
+     *
+     * @param port the port on which the server accepts client connections
+     */
+    void register(final int port) {
+        try {
+            final ObjectName registered = new ObjectName(OBJECT_NAME + ",port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, registered);
+            this.name = registered;
+        } catch (final JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to register metrics: {0}", new Object[]{e.getMessage()});
+        }
+    }
+
+    /**
+     * Unregister the metrics from the platform MBean server, if registered.
+     */
+    void unregister() {
+        final ObjectName registered = this.name;
+        if (registered == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+        } catch (final JMException e) {
+            LOGGER.log(Level.FINE, "Failed to unregister metrics: {0}", new Object[]{e.getMessage()});
+        }
+    }
+
+    /**
+     * Create an origin, for which latency is tracked until it is released.
+     *
+     * @param name the name of the origin
+     * @return Returns the origin.
+     */
+    @Nonnull
+    Origin origin(@Nonnull final String name) {
+        final Origin origin = new Origin(name);
+        this.origins.add(origin);
+        return origin;
+    }
+
+    /**
+     * Release an origin, as it will not produce further frames.
+     *
+     * @param origin the origin
+     */
+    void release(@Nonnull final Origin origin) {
+        this.origins.remove(origin);
+    }
+
+    void accepted() {
+        this.accepted.increment();
+    }
+
+    void closed() {
+        this.closed.increment();
+    }
+
+    void rejected() {
+        this.rejected.increment();
+    }
+
+    void throttled() {
+        this.throttled.increment();
+    }
+
+    void evicted() {
+        this.evicted.increment();
+    }
+
+    /**
+     * Record a frame that was written to its destination.
+     *
+     * @param frame the frame
+     */
+    void relayed(@Nonnull final Frame frame) {
+        this.frames.increment();
+        this.bytes.add(frame.size);
+        final long latency = System.nanoTime() - frame.received;
+        this.latency.record(latency);
+        frame.origin.record(latency);
+    }
+
+    void droppedUnknownDestination() {
+        this.unknownDestination.increment();
+    }
+
+    void droppedQueueFull() {
+        this.queueFull.increment();
+    }
+
+    void decodeError() {
+        this.decodeErrors.increment();
+    }
+
+    void spooled() {
+        this.spooled.increment();
+    }
+
+    void unspooled(final int count) {
+        this.unspooled.add(count);
+    }
+
+    void droppedSpoolFull() {
+        this.spoolFull.increment();
+    }
+
+    void droppedExpired(final int count) {
+        this.expired.add(count);
+    }
+
+    void droppedLinkCongested(final int count) {
+        this.linkCongested.add(count);
+    }
+
+    @Override
+    public long getConnectedClients() {
+        return this.accepted.sum() - this.closed.sum();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return this.accepted.sum();
+    }
+
+    @Override
+    public long getClosedConnections() {
+        return this.closed.sum();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return this.rejected.sum();
+    }
+
+    @Override
+    public long getEvictedConnections() {
+        return this.evicted.sum();
+    }
+
+    @Override
+    public long getThrottlePauses() {
+        return this.throttled.sum();
+    }
+
+    @Override
+    public long getFramesRelayed() {
+        return this.frames.sum();
+    }
+
+    @Override
+    public long getBytesRelayed() {
+        return this.bytes.sum();
+    }
+
+    @Override
+    public long getDropsUnknownDestination() {
+        return this.unknownDestination.sum();
+    }
+
+    @Override
+    public long getDropsQueueFull() {
+        return this.queueFull.sum();
+    }
+
+    @Override
+    public long getDecodeErrors() {
+        return this.decodeErrors.sum();
+    }
+
+    @Override
+    public long getFramesSpooled() {
+        return this.spooled.sum();
+    }
+
+    @Override
+    public long getFramesUnspooled() {
+        return this.unspooled.sum();
+    }
+
+    @Override
+    public long getDropsSpoolFull() {
+        return this.spoolFull.sum();
+    }
+
+    @Override
+    public long getDropsExpired() {
+        return this.expired.sum();
+    }
+
+    @Override
+    public long getDropsLinkCongested() {
+        return this.linkCongested.sum();
+    }
+
+    @Override
+    public long getRelayLatencyMicrosP50() {
+        return TimeUnit.NANOSECONDS.toMicros(this.latency.percentile(P50));
+    }
+
+    @Override
+    public long getRelayLatencyMicrosP99() {
+        return TimeUnit.NANOSECONDS.toMicros(this.latency.percentile(P99));
+    }
+
+    @Override
+    public long getRelayLatencyMicrosP999() {
+        return TimeUnit.NANOSECONDS.toMicros(this.latency.percentile(P999));
+    }
+
+    @Override
+    public long[] getRelayLatencyHistogram() {
+        return this.latency.counts();
+    }
+
+    @Override
+    public Map<String, Long> getOriginLatencyMicrosP50() {
+        return originLatencies(P50);
+    }
+
+    @Override
+    public Map<String, Long> getOriginLatencyMicrosP99() {
+        return originLatencies(P99);
+    }
+
+    @Override
+    public Map<String, Long> getRoundTripMicros() {
+        final Map<String, Long> roundTrips = new HashMap<>();
+        for (final Origin origin : this.origins) {
+            final long roundTrip = origin.roundTrip;
+            if (roundTrip > 0) {
+                roundTrips.put(origin.name, TimeUnit.NANOSECONDS.toMicros(roundTrip));
+            }
+        }
+        return top(roundTrips);
+    }
+
+    private Map<String, Long> originLatencies(final double percentile) {
+        final Map<String, Long> latencies = new HashMap<>();
+        for (final Origin origin : this.origins) {
+            final LatencyHistogram latency = origin.latency();
+            if (latency != null) {
+                latencies.put(origin.name, TimeUnit.NANOSECONDS.toMicros(latency.percentile(percentile)));
+            }
+        }
+        return top(latencies);
+    }
+
+    /**
+     * Select the origins with the highest values, such that the reported maps stay small however many clients are
+     * connected.
+     *
+     * @param values the values by origin
+     * @return Returns at most {@link #ORIGIN_LIMIT} entries with the highest values, sorted by origin.
+     */
+    private static Map<String, Long> top(@Nonnull final Map<String, Long> values) {
+        final PriorityQueue<Map.Entry<String, Long>> highest = new PriorityQueue<>(Map.Entry.comparingByValue());
+        for (final Map.Entry<String, Long> entry : values.entrySet()) {
+            highest.add(entry);
+            if (highest.size() > ORIGIN_LIMIT) {
+                highest.poll();
+            }
+        }
+        final Map<String, Long> top = new TreeMap<>();
+        for (final Map.Entry<String, Long> entry : highest) {
+            top.put(entry.getKey(), entry.getValue());
+        }
+        return top;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import nl.dannyvanheumen.echonetwork.utils.Strings;
+
+import javax.annotation.Nonnull;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Options holds the server's start-up options, as provided on the command-line in the form {@code --name=value}.
+ * <p>
+ * An option without value, i.e. {@code --name}, is interpreted as {@code --name=true}.
+ */
+final class Options {
+
+    private static final String PREFIX = "--";
+
+    private final Map<String, String> values;
+
+    private Options(@Nonnull final Map<String, String> values) {
+        this.values = requireNonNull(values);
+    }
+
+    /**
+     * Parse the command-line arguments.
+     *
+     * @param args the command-line arguments
+     * @return Returns the parsed options.
+     * @throws IllegalArgumentException In case an argument does not follow the expected format.
+     */
+    @Nonnull
+    static Options parse(@Nonnull final String... args) {
+        final Map<String, String> values = new HashMap<>();
+        for (final String arg : args) {
+            if (!arg.startsWith(PREFIX) || arg.length() == PREFIX.length()) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            final String[] parts = Strings.cut(arg.substring(PREFIX.length()), '=');
+            values.put(parts[0], parts[1] == null ? "true" : parts[1]);
+        }
+        return new Options(values);
+    }
+
+    /**
+     * Get the value of an option.
+     *
+     * @param name         the option name
+     * @param defaultValue the default value in case the option is not specified
+     * @return Returns the value of the option, or the default value if not specified.
+     */
+    @Nonnull
+    String get(@Nonnull final String name, @Nonnull final String defaultValue) {
+        return this.values.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * Get the integer value of an option.
+     *
+     * @param name         the option name
+     * @param defaultValue the default value in case the option is not specified
+     * @return Returns the value of the option, or the default value if not specified.
+     * @throws IllegalArgumentException In case the value is not a valid integer.
+     */
+    int getInt(@Nonnull final String name, final int defaultValue) {
+        final String value = this.values.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for option '" + name + "': " + value, e);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Origin is the source of relayed frames: a client connection, or a link from another node of the cluster. Frames are
+ * scheduled fairly among origins. The relay latency is tracked per origin, once it sends its first frame.
+ */
+final class Origin {
+
+    /**
+     * The name of the origin, i.e. the client's address or the identifier of the node.
+     */
+    final String name;
+
+    /**
+     * The relay latency of frames from this origin. Created on the first relayed frame, such that connections that
+     * only receive do not carry a histogram.
+     */
+    private final AtomicReference<LatencyHistogram> latency = new AtomicReference<>();
+
+    /**
+     * The smoothed round-trip time (in nanoseconds) to the client, as measured by keepalive pings. (0 if unknown)
+     */
+    volatile long roundTrip;
+
+    Origin(@Nonnull final String name) {
+        this.name = requireNonNull(name);
+    }
+
+    /**
+     * Record the relay latency of a frame from this origin. (Thread-safe)
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    void record(final long nanos) {
+        LatencyHistogram histogram = this.latency.get();
+        if (histogram == null) {
+            this.latency.compareAndSet(null, new LatencyHistogram());
+            histogram = this.latency.get();
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * The relay latency of frames from this origin.
+     *
+     * @return Returns the histogram, or null if no frame was relayed yet.
+     */
+    @Nullable
+    LatencyHistogram latency() {
+        return this.latency.get();
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+}
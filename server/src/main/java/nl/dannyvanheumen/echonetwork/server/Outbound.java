@@ -0,0 +1,226 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import nl.dannyvanheumen.echonetwork.protocol.Compression;
+import nl.dannyvanheumen.echonetwork.protocol.MessageWriter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Outbound is the bounded queue of messages destined for a client connection in the thread-per-connection modes.
+ * <p>
+ * Senders only enqueue messages, such that they can immediately return to reading. The outbound queue's writer, which
+ * runs in its own thread, is the only one to write to the connection. A slow client therefore only affects itself. The
+ * {@link OverflowPolicy} determines what happens when the queue is full. Messages from different senders are
+ * scheduled fairly, see {@link FairQueue}. The writer adapts frames to the connection's {@link Compression}, and
+ * encodes them with the connection's {@link Encoder}.
+ */
+final class Outbound implements Destination, Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(Outbound.class.getName());
+
+    private final Socket connection;
+
+    private final String id;
+
+    private final FairQueue queue;
+
+    private final OverflowPolicy policy;
+
+    private final Settings settings;
+
+    private final Metrics metrics;
+
+    private final Compression compression;
+
+    private final Encoder encoder = new Encoder();
+
+    private final AtomicLong drops = new AtomicLong();
+
+    private volatile Thread writer;
+
+    private volatile boolean closed;
+
+    Outbound(@Nonnull final Socket connection, @Nonnull final String id, @Nonnull final Settings settings,
+            @Nonnull final Metrics metrics) {
+        this.connection = requireNonNull(connection);
+        this.id = requireNonNull(id);
+        this.settings = requireNonNull(settings);
+        this.metrics = requireNonNull(metrics);
+        this.queue = new FairQueue(settings.queueCapacity, settings.fairQuantum, settings.overflow);
+        this.policy = settings.overflow;
+        this.compression = new Compression(settings.compressThreshold);
+    }
+
+    /**
+     * The connection's compression. Only the writer compresses and decompresses.
+     *
+     * @return Returns the compression.
+     */
+    @Nonnull
+    Compression compression() {
+        return this.compression;
+    }
+
+    /**
+     * Negotiate compression. The acknowledgement is queued as any other frame. Compression takes effect once the writer
+     * takes the acknowledgement from the queue, so frames queued before it are written uncompressed. (Thread-safe)
+     */
+    @Override
+    public void compress() {
+        deliver(Frame.acknowledgeCompression());
+    }
+
+    /**
+     * Offer a message for delivery. (Thread-safe)
+     *
+     * @param message the message
+     */
+    @Override
+    public void deliver(@Nonnull final Frame message) {
+        if (!this.queue.offer(message)) {
+            overflowed(1);
+        }
+    }
+
+    /**
+     * Offer several messages for delivery at once, such that the writer coalesces them. (Thread-safe)
+     *
+     * @param messages the messages
+     */
+    @Override
+    public void deliver(@Nonnull final List<Frame> messages) {
+        final int failed = this.queue.offer(messages);
+        if (failed > 0) {
+            overflowed(failed);
+        }
+    }
+
+    private void overflowed(final int failed) {
+        if (this.policy == OverflowPolicy.DISCONNECT) {
+            if (!this.connection.isClosed()) {
+                this.metrics.droppedQueueFull();
+                Events.MessageDropped.record(this.id, Events.MessageDropped.QUEUE_FULL);
+                LOGGER.log(Level.WARNING, "Disconnecting session {0}: outbound queue is full.", this.id);
+                closeConnection();
+            }
+        } else {
+            for (int i = 0; i < failed; i++) {
+                dropped();
+            }
+        }
+    }
+
+    private void dropped() {
+        this.drops.incrementAndGet();
+        this.metrics.droppedQueueFull();
+        Events.MessageDropped.record(this.id, Events.MessageDropped.QUEUE_FULL);
+        LOGGER.log(Level.FINE, "Dropped message for session {0}: outbound queue is full.", this.id);
+    }
+
+    /**
+     * The number of messages currently waiting in the queue.
+     *
+     * @return Returns the queue depth.
+     */
+    @Override
+    public int depth() {
+        return this.queue.size();
+    }
+
+    /**
+     * The number of messages dropped because the queue was full.
+     *
+     * @return Returns the number of dropped messages.
+     */
+    long drops() {
+        return this.drops.get();
+    }
+
+    /**
+     * Close the outbound queue, and stop its writer.
+     */
+    void close() {
+        this.closed = true;
+        final Thread current = this.writer;
+        if (current != null) {
+            current.interrupt();
+        }
+        if (this.drops.get() > 0) {
+            LOGGER.log(Level.INFO, "Session {0} dropped {1} messages.", new Object[]{this.id, this.drops.get()});
+        }
+    }
+
+    /**
+     * Run the writer, which drains the queue into the connection until the outbound queue is closed. Writes are
+     * coalesced while more messages are waiting in the queue. Coalesced messages are flushed before the writer blocks
+     * waiting for the next message, also if the expected message turned out to be dropped.
+     */
+    @Override
+    public void run() {
+        this.writer = Thread.currentThread();
+        try {
+            final MessageWriter out = new MessageWriter(this.connection.getOutputStream(), this.settings.coalesceBytes,
+                    this.settings.coalesceDelayNanos);
+            boolean coalesced = false;
+            while (!this.closed) {
+                Frame next = this.queue.poll();
+                if (next == null) {
+                    if (coalesced) {
+                        out.flush();
+                        coalesced = false;
+                    }
+                    next = this.queue.take();
+                }
+                final Frame message = adapt(next);
+                if (message == null) {
+                    continue;
+                }
+                final Events.FrameRelayed event = Events.frameRelayed();
+                coalesced = this.queue.size() > 0;
+                out.write(message.sender, message.content, coalesced);
+                event.complete(this.id, 1, message.size);
+                this.metrics.relayed(message);
+            }
+        } catch (final InterruptedException e) {
+            LOGGER.log(Level.FINE, "Writer for session {0} stopped.", this.id);
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, "Failure writing to client connection: {0}", new Object[]{e.getMessage()});
+            closeConnection();
+        } finally {
+            this.compression.end();
+        }
+    }
+
+    @Nullable
+    private Frame adapt(@Nonnull final Frame frame) {
+        try {
+            return this.encoder.encode(frame.adapt(this.compression));
+        } catch (final ProtocolException e) {
+            this.metrics.decodeError();
+            LOGGER.log(Level.FINE, "Dropped message for session {0}: {1}", new Object[]{this.id, e.getMessage()});
+            return null;
+        }
+    }
+
+    private void closeConnection() {
+        try {
+            this.connection.close();
+        } catch (final IOException e) {
+            LOGGER.log(Level.FINE, "Failed to close connection: {0}", new Object[]{e.getMessage()});
+        }
+    }
+}
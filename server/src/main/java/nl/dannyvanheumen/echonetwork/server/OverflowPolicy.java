@@ -0,0 +1,38 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import javax.annotation.Nonnull;
+import java.util.Locale;
+
+/**
+ * OverflowPolicy determines what happens to a message when the destination's outbound queue is full.
+ */
+enum OverflowPolicy {
+    /**
+     * Drop the oldest message in the queue to make room for the new message.
+     */
+    DROP_OLDEST,
+    /**
+     * Drop the new message.
+     */
+    DROP_NEWEST,
+    /**
+     * Disconnect the destination, as it is unable to keep up.
+     */
+    DISCONNECT;
+
+    /**
+     * Parse the policy from its option value, e.g. {@code drop-oldest}.
+     *
+     * @param value the option value
+     * @return Returns the policy.
+     * @throws IllegalArgumentException In case of an unknown policy.
+     */
+    @Nonnull
+    static OverflowPolicy parse(@Nonnull final String value) {
+        return valueOf(value.toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+}
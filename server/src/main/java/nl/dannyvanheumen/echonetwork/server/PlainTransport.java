@@ -0,0 +1,64 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * PlainTransport is the transport without TLS, i.e. the channel itself.
+ */
+final class PlainTransport implements Transport {
+
+    private final SocketChannel channel;
+
+    PlainTransport(@Nonnull final SocketChannel channel) {
+        this.channel = requireNonNull(channel);
+    }
+
+    @Override
+    public int read(@Nonnull final ByteBuffer dst) throws IOException {
+        return this.channel.read(dst);
+    }
+
+    @Override
+    public long write(@Nonnull final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+        return this.channel.write(srcs, offset, length);
+    }
+
+    @Override
+    public void flush() {
+        // Nothing is pending in the transport.
+    }
+
+    @Override
+    public int readSpace() {
+        return 1;
+    }
+
+    @Override
+    public boolean pending() {
+        return false;
+    }
+
+    @Override
+    public boolean buffered() {
+        return false;
+    }
+
+    @Override
+    public boolean ready() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        EventLoop.closeQuietly(this.channel);
+    }
+}
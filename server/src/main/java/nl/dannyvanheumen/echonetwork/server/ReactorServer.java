@@ -0,0 +1,120 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import nl.dannyvanheumen.echonetwork.utils.Integers;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ReactorServer is the non-blocking server mode. A single acceptor distributes accepted connections over a fixed set
+ * of event-loops. Each connection is pinned to one event-loop for its entire lifetime. Messages for a connection on
+ * another event-loop are handed over through that connection's {@link FairQueue}, which briefly takes a lock per offer,
+ * such that the messages of different senders are scheduled fairly. The event-loop is woken through its lock-free task
+ * queue only when the connection is not already scheduled for writing.
+ * <p>
+ * The wire format is identical to that of the thread-per-connection mode. With TLS, every connection has its own
+ * {@link javax.net.ssl.SSLEngine}, while network buffers are pooled per event-loop.
+ */
+final class ReactorServer implements Listener {
+
+    private static final Logger LOGGER = Logger.getLogger(ReactorServer.class.getName());
+
+    private final EventLoop[] loops;
+
+    private final Admission admission;
+
+    /**
+     * Indicates that the event-loops are started, or released if the server is closed before serving.
+     */
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    @Nullable
+    private volatile ServerSocketChannel server;
+
+    ReactorServer(@Nonnull final Registry registry, final int loops, @Nonnull final Settings settings,
+            @Nonnull final Metrics metrics, @Nonnull final TimingWheel wheel, @Nullable final Tls tls)
+            throws IOException {
+        this.admission = new Admission(settings, metrics);
+        this.loops = new EventLoop[Integers.requireAtLeast(1, loops)];
+        for (int i = 0; i < this.loops.length; i++) {
+            this.loops[i] = new EventLoop(registry, settings, metrics, wheel, tls);
+        }
+    }
+
+    @Override
+    public int bind(final int port) throws IOException {
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+        this.server = channel;
+        channel.bind(new InetSocketAddress(port));
+        final InetSocketAddress local = (InetSocketAddress) channel.getLocalAddress();
+        LOGGER.log(Level.INFO, "Server started on {0}:{1} with {2} event-loops",
+                new Object[]{local.getAddress().getHostAddress(), local.getPort(), this.loops.length});
+        return local.getPort();
+    }
+
+    /**
+     * Accept connections and distribute them over the event-loops. When the server is closed, the event-loops are
+     * stopped, which closes the connections.
+     *
+     * @throws IOException In case of failure to accept connections.
+     */
+    @SuppressWarnings("PMD.DoNotUseThreads")
+    @Override
+    public void serve() throws IOException {
+        final ServerSocketChannel channel = this.server;
+        if (channel == null) {
+            throw new IllegalStateException("Server is not bound.");
+        }
+        if (!this.started.compareAndSet(false, true)) {
+            throw new IllegalStateException("Server is already started or closed.");
+        }
+        for (int i = 0; i < this.loops.length; i++) {
+            new Thread(this.loops[i], "EventLoop-" + i).start();
+        }
+        try (channel) {
+            int next = 0;
+            while (channel.isOpen()) {
+                final SocketChannel accepted = channel.accept();
+                final Admission.Limiter limiter = this.admission.admit(
+                        ((InetSocketAddress) accepted.getRemoteAddress()).getAddress());
+                if (limiter == null) {
+                    EventLoop.closeQuietly(accepted);
+                } else {
+                    this.loops[next].register(accepted, limiter);
+                    next = (next + 1) % this.loops.length;
+                }
+            }
+        } catch (final AsynchronousCloseException e) {
+            LOGGER.log(Level.FINE, "Server closed while accepting connections.");
+        } finally {
+            for (final EventLoop loop : this.loops) {
+                loop.stop();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        final ServerSocketChannel channel = this.server;
+        if (channel != null) {
+            channel.close();
+        }
+        if (this.started.compareAndSet(false, true)) {
+            for (final EventLoop loop : this.loops) {
+                loop.release();
+            }
+        }
+    }
+}
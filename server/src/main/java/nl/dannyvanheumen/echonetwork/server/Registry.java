@@ -0,0 +1,301 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import nl.dannyvanheumen.echonetwork.protocol.Compression;
+import nl.dannyvanheumen.echonetwork.utils.Strings;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.Objects.requireNonNull;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.GROUP_PREFIX;
+
+/**
+ * Registry is the routing table of the server. It maps addresses to local clients and, when clustered, to the clients
+ * of other nodes. Furthermore, it holds the groups that local clients joined. Groups are local to the node. Messages
+ * for addresses that are not available can be stored in the {@link Spool}, if enabled.
+ * <p>
+ * Every local client is assigned a handle on registration, by which clients of the {@link
+ * nl.dannyvanheumen.echonetwork.protocol.CompactProtocol} address it. Handles are local to the node, and are not reused
+ * until 2<sup>31</sup> registrations later.
+ * <p>
+ * Lookups take no lock. Changes in local membership are serialized, such that every {@link Listener} observes them
+ * in order.
+ */
+final class Registry {
+
+    private static final Logger LOGGER = Logger.getLogger(Registry.class.getName());
+
+    private final Map<Address, Destination> routes = new ConcurrentHashMap<>();
+
+    private final Map<Address, Group> groups = new ConcurrentHashMap<>();
+
+    private final Map<Integer, Address> handles = new ConcurrentHashMap<>();
+
+    private final AtomicInteger lastHandle = new AtomicInteger();
+
+    private final ReentrantLock membership = new ReentrantLock();
+
+    private final List<Listener> listeners = new ArrayList<>();
+
+    @Nullable
+    private volatile Spool spool;
+
+    /**
+     * Look up the destination for an address.
+     *
+     * @param address the address (may be a reused probe)
+     * @return Returns the destination, or null if unknown.
+     */
+    @Nullable
+    Destination lookup(@Nonnull final Address address) {
+        final Destination destination = this.routes.get(address);
+        return destination == null ? this.groups.get(address) : destination;
+    }
+
+    /**
+     * Look up the address of a local client by its handle.
+     *
+     * @param handle the handle
+     * @return Returns the address, or null if no local client has the handle.
+     */
+    @Nullable
+    Address address(final int handle) {
+        return this.handles.get(handle);
+    }
+
+    /**
+     * Process a control command of a local client: {@code join <group>}, {@code leave <group>} or
+     * {@value nl.dannyvanheumen.echonetwork.protocol.Compression#COMMAND}. Group addresses start with
+     * {@value nl.dannyvanheumen.echonetwork.protocol.EchoProtocol#GROUP_PREFIX}. Invalid commands are ignored.
+     *
+     * @param member  the client
+     * @param joined  the groups that the client joined (updated accordingly)
+     * @param command the command
+     */
+    void control(@Nonnull final Destination member, @Nonnull final Set<Address> joined,
+            @Nonnull final String command) {
+        if (Compression.COMMAND.equals(command)) {
+            member.compress();
+            return;
+        }
+        final String[] parts = Strings.cut(command, ' ');
+        if (parts[1] == null || !parts[1].startsWith(GROUP_PREFIX)) {
+            LOGGER.log(Level.INFO, "Ignoring invalid control command: {0}", command);
+            return;
+        }
+        final Address group = Address.of(parts[1]);
+        switch (parts[0]) {
+        case "join":
+            if (joined.add(group)) {
+                join(group, member);
+            }
+            break;
+        case "leave":
+            if (joined.remove(group)) {
+                leave(group, member);
+            }
+            break;
+        default:
+            LOGGER.log(Level.INFO, "Ignoring unknown control command: {0}", command);
+            break;
+        }
+    }
+
+    /**
+     * Leave all groups that a client joined, e.g. when its session finishes.
+     *
+     * @param member the client
+     * @param joined the groups that the client joined (cleared)
+     */
+    void leaveAll(@Nonnull final Destination member, @Nonnull final Set<Address> joined) {
+        for (final Address group : joined) {
+            leave(group, member);
+        }
+        joined.clear();
+    }
+
+    /**
+     * Join a group. The group is created if it does not exist.
+     *
+     * @param group  the group address
+     * @param member the member
+     */
+    void join(@Nonnull final Address group, @Nonnull final Destination member) {
+        this.groups.compute(group, (address, existing) -> {
+            final Group target = existing == null ? new Group(address) : existing;
+            target.add(member);
+            return target;
+        });
+    }
+
+    /**
+     * Leave a group. The group is removed once it has no members left.
+     *
+     * @param group  the group address
+     * @param member the member
+     */
+    void leave(@Nonnull final Address group, @Nonnull final Destination member) {
+        this.groups.computeIfPresent(group, (address, existing) -> {
+            existing.remove(member);
+            return existing.isEmpty() ? null : existing;
+        });
+    }
+
+    /**
+     * Register a local client.
+     *
+     * @param address     the client's address
+     * @param destination the client
+     * @return Returns the client's handle.
+     */
+    int register(@Nonnull final Address address, @Nonnull final Destination destination) {
+        final int handle = this.lastHandle.updateAndGet(last -> last == Integer.MAX_VALUE ? 1 : last + 1);
+        this.membership.lock();
+        try {
+            this.routes.put(address, destination);
+            this.handles.put(handle, address);
+            for (final Listener listener : this.listeners) {
+                listener.registered(address);
+            }
+        } finally {
+            this.membership.unlock();
+        }
+        return handle;
+    }
+
+    /**
+     * Unregister a local client.
+     *
+     * @param address     the client's address
+     * @param handle      the client's handle
+     * @param destination the client
+     */
+    void unregister(@Nonnull final Address address, final int handle, @Nonnull final Destination destination) {
+        this.membership.lock();
+        try {
+            this.handles.remove(handle, address);
+            if (this.routes.remove(address, destination)) {
+                for (final Listener listener : this.listeners) {
+                    listener.unregistered(address);
+                }
+            }
+        } finally {
+            this.membership.unlock();
+        }
+    }
+
+    /**
+     * Add a route to a client of another node. A local client with the same address takes precedence.
+     *
+     * @param address     the address
+     * @param destination the remote destination
+     */
+    void putRemote(@Nonnull final Address address, @Nonnull final Destination destination) {
+        this.routes.merge(address, destination, (current, remote) -> current.isRemote() ? remote : current);
+    }
+
+    /**
+     * Remove a route to a client of another node.
+     *
+     * @param address     the address
+     * @param destination the remote destination
+     */
+    void removeRemote(@Nonnull final Address address, @Nonnull final Destination destination) {
+        this.routes.remove(address, destination);
+    }
+
+    /**
+     * Add a listener for changes in local membership.
+     *
+     * @param listener the listener
+     */
+    void listen(@Nonnull final Listener listener) {
+        this.membership.lock();
+        try {
+            this.listeners.add(requireNonNull(listener));
+        } finally {
+            this.membership.unlock();
+        }
+    }
+
+    /**
+     * Enable store-and-forward for addresses that are not available.
+     *
+     * @param spool the spool
+     */
+    void spool(@Nonnull final Spool spool) {
+        listen(spool);
+        this.spool = spool;
+    }
+
+    /**
+     * Store a message for an address that is not available, if store-and-forward is enabled.
+     *
+     * @param address the address (may be a reused probe)
+     * @param frame   the frame
+     * @return Returns true if the message is stored, or false if the message must be dropped.
+     */
+    boolean store(@Nonnull final Address address, @Nonnull final Frame frame) {
+        final Spool current = this.spool;
+        return current != null && current.store(address, frame);
+    }
+
+    /**
+     * Call the action with the current set of local clients, while changes in local membership are held back. Any
+     * change after the action is reported to the listener.
+     *
+     * @param action the action
+     */
+    void synchronize(@Nonnull final Consumer<List<Address>> action) {
+        this.membership.lock();
+        try {
+            action.accept(locals());
+        } finally {
+            this.membership.unlock();
+        }
+    }
+
+    private List<Address> locals() {
+        final List<Address> locals = new ArrayList<>();
+        this.routes.forEach((address, destination) -> {
+            if (!destination.isRemote()) {
+                locals.add(address);
+            }
+        });
+        return locals;
+    }
+
+    /**
+     * Listener for changes in local membership.
+     */
+    interface Listener {
+
+        /**
+         * A local client was registered.
+         *
+         * @param address the address
+         */
+        void registered(@Nonnull Address address);
+
+        /**
+         * A local client was unregistered.
+         *
+         * @param address the address
+         */
+        void unregistered(@Nonnull Address address);
+    }
+}
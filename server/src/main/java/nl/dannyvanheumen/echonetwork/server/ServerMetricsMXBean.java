@@ -0,0 +1,181 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import java.util.Map;
+
+/**
+ * ServerMetricsMXBean is the management interface for the server's metrics, as registered with the platform MBean
+ * server under {@value Metrics#OBJECT_NAME} with key {@code port}, e.g. {@code port=8080}.
+ */
+public interface ServerMetricsMXBean {
+
+    /**
+     * The number of currently connected clients.
+     *
+     * @return Returns the number of clients.
+     */
+    long getConnectedClients();
+
+    /**
+     * The number of accepted client connections.
+     *
+     * @return Returns the number of connections.
+     */
+    long getAcceptedConnections();
+
+    /**
+     * The number of closed client connections.
+     *
+     * @return Returns the number of connections.
+     */
+    long getClosedConnections();
+
+    /**
+     * The number of connections rejected because of too many connections from the same IP.
+     *
+     * @return Returns the number of connections.
+     */
+    long getRejectedConnections();
+
+    /**
+     * The number of times reading from a connection was paused because it exceeded its rate limits.
+     *
+     * @return Returns the number of pauses.
+     */
+    long getThrottlePauses();
+
+    /**
+     * The number of connections closed because nothing was received within the keepalive timeout.
+     *
+     * @return Returns the number of connections.
+     */
+    long getEvictedConnections();
+
+    /**
+     * The number of frames written to their destination.
+     *
+     * @return Returns the number of frames.
+     */
+    long getFramesRelayed();
+
+    /**
+     * The number of bytes written to their destination, i.e. sender-address and content of every frame.
+     *
+     * @return Returns the number of bytes.
+     */
+    long getBytesRelayed();
+
+    /**
+     * The number of frames dropped because the destination is not available.
+     *
+     * @return Returns the number of frames.
+     */
+    long getDropsUnknownDestination();
+
+    /**
+     * The number of frames dropped because the destination's queue is full.
+     *
+     * @return Returns the number of frames.
+     */
+    long getDropsQueueFull();
+
+    /**
+     * The number of connections closed because of invalid data.
+     *
+     * @return Returns the number of decoding errors.
+     */
+    long getDecodeErrors();
+
+    /**
+     * The number of frames stored in the spool, because the destination was not available.
+     *
+     * @return Returns the number of frames.
+     */
+    long getFramesSpooled();
+
+    /**
+     * The number of spooled frames delivered once the destination registered.
+     *
+     * @return Returns the number of frames.
+     */
+    long getFramesUnspooled();
+
+    /**
+     * The number of frames dropped because the destination's spool segment is full.
+     *
+     * @return Returns the number of frames.
+     */
+    long getDropsSpoolFull();
+
+    /**
+     * The number of spooled frames dropped because they expired.
+     *
+     * @return Returns the number of frames.
+     */
+    long getDropsExpired();
+
+    /**
+     * The number of frames discarded from the queue of a node link, because the link was congested or reconnecting.
+     * A congested link is resynchronized by reconnecting.
+     *
+     * @return Returns the number of frames.
+     */
+    long getDropsLinkCongested();
+
+    /**
+     * The median relay latency, i.e. the time from reading a frame until it is written to its destination.
+     *
+     * @return Returns the latency in microseconds. (Upper bound of the histogram bucket.)
+     */
+    long getRelayLatencyMicrosP50();
+
+    /**
+     * The 99th percentile of the relay latency.
+     *
+     * @return Returns the latency in microseconds. (Upper bound of the histogram bucket.)
+     */
+    long getRelayLatencyMicrosP99();
+
+    /**
+     * The 99.9th percentile of the relay latency.
+     *
+     * @return Returns the latency in microseconds. (Upper bound of the histogram bucket.)
+     */
+    long getRelayLatencyMicrosP999();
+
+    /**
+     * The relay latency histogram. Element {@code i} counts the frames with a latency below {@code 2^i}
+     * nanoseconds, and at least {@code 2^(i-1)} nanoseconds.
+     *
+     * @return Returns the counts per bucket.
+     */
+    long[] getRelayLatencyHistogram();
+
+    /**
+     * The median relay latency per origin, i.e. per connected client or node link. Only the origins with the highest
+     * latency are included, at most {@value Metrics#ORIGIN_LIMIT}.
+     *
+     * @return Returns the latency in microseconds by origin.
+     */
+    Map<String, Long> getOriginLatencyMicrosP50();
+
+    /**
+     * The 99th percentile of the relay latency per origin, i.e. per connected client or node link. Only the origins
+     * with the highest latency are included, at most {@value Metrics#ORIGIN_LIMIT}.
+     *
+     * @return Returns the latency in microseconds by origin.
+     */
+    Map<String, Long> getOriginLatencyMicrosP99();
+
+    /**
+     * The smoothed round-trip time per connected client, as measured by keepalive pings. Clients without measurement
+     * are omitted. Only the clients with the highest round-trip time are included, at most
+     * {@value Metrics#ORIGIN_LIMIT}.
+     *
+     * @return Returns the round-trip time in microseconds by client.
+     */
+    Map<String, Long> getRoundTripMicros();
+}
@@ -0,0 +1,113 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import nl.dannyvanheumen.echonetwork.protocol.Compression;
+import nl.dannyvanheumen.echonetwork.protocol.MessageWriter;
+import nl.dannyvanheumen.echonetwork.utils.Integers;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Settings contains the connection-related settings of the server, shared by all server modes.
+ */
+final class Settings {
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private static final int DEFAULT_FAIR_QUANTUM = 1 << 12;
+
+    /**
+     * The maximum number of messages queued for a single destination.
+     */
+    final int queueCapacity;
+
+    /**
+     * The policy for messages to a destination with a full queue.
+     */
+    @Nonnull
+    final OverflowPolicy overflow;
+
+    /**
+     * The maximum number of bytes to coalesce into a single write.
+     */
+    final int coalesceBytes;
+
+    /**
+     * The maximum delay (in nanoseconds) for coalescing writes for a busy destination.
+     */
+    final long coalesceDelayNanos;
+
+    /**
+     * The maximum number of frames per second per connection. (0 for unlimited)
+     */
+    final int rateFrames;
+
+    /**
+     * The maximum number of bytes per second per connection. (0 for unlimited)
+     */
+    final int rateBytes;
+
+    /**
+     * The maximum number of frames per second for all connections from one IP. (0 for unlimited)
+     */
+    final int ipRateFrames;
+
+    /**
+     * The maximum number of bytes per second for all connections from one IP. (0 for unlimited)
+     */
+    final int ipRateBytes;
+
+    /**
+     * The maximum number of concurrent connections from one IP. (0 for unlimited)
+     */
+    final int maxConnectionsPerIP;
+
+    /**
+     * The number of bytes that an origin may send to a destination per round of fair scheduling.
+     */
+    final int fairQuantum;
+
+    /**
+     * The interval (in nanoseconds) of keepalive pings. (0 for disabled)
+     */
+    final long keepaliveNanos;
+
+    /**
+     * The content size (in bytes) from which content is compressed for clients that negotiated compression.
+     */
+    final int compressThreshold;
+
+    private Settings(@Nonnull final Options options) {
+        this.queueCapacity = Integers.requireAtLeast(1, options.getInt("queue-capacity", DEFAULT_QUEUE_CAPACITY));
+        this.overflow = requireNonNull(OverflowPolicy.parse(options.get("overflow", "disconnect")));
+        this.coalesceBytes = options.getInt("coalesce-bytes", MessageWriter.DEFAULT_MAX_BYTES);
+        this.coalesceDelayNanos = TimeUnit.MICROSECONDS.toNanos(options.getInt("coalesce-delay",
+                (int) TimeUnit.NANOSECONDS.toMicros(MessageWriter.DEFAULT_MAX_DELAY_NANOS)));
+        this.rateFrames = Integers.requireAtLeast(0, options.getInt("rate-frames", 0));
+        this.rateBytes = Integers.requireAtLeast(0, options.getInt("rate-bytes", 0));
+        this.ipRateFrames = Integers.requireAtLeast(0, options.getInt("ip-rate-frames", 0));
+        this.ipRateBytes = Integers.requireAtLeast(0, options.getInt("ip-rate-bytes", 0));
+        this.maxConnectionsPerIP = Integers.requireAtLeast(0, options.getInt("max-connections-per-ip", 0));
+        this.fairQuantum = Integers.requireAtLeast(1, options.getInt("fair-quantum", DEFAULT_FAIR_QUANTUM));
+        this.keepaliveNanos = TimeUnit.SECONDS.toNanos(Integers.requireAtLeast(0, options.getInt("keepalive", 0)));
+        this.compressThreshold = Integers.requireAtLeast(1, options.getInt("compress-threshold",
+                Compression.DEFAULT_THRESHOLD));
+    }
+
+    /**
+     * Construct settings from the provided options.
+     *
+     * @param options the options
+     * @return Returns the settings.
+     */
+    @Nonnull
+    static Settings from(@Nonnull final Options options) {
+        return new Settings(options);
+    }
+}
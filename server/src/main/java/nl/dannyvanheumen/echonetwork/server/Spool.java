@@ -0,0 +1,544 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.GROUP_PREFIX;
+import static nl.dannyvanheumen.echonetwork.utils.Integers.requireAtLeast;
+
+/**
+ * Spool stores messages for destinations that are not available, and delivers them as soon as the destination
+ * registers again (store-and-forward).
+ * <p>
+ * Every destination has its own segment: an append-only, memory-mapped file of fixed size. A record consists of its
+ * expiration time (epoch milliseconds), its length, and the frame as it will be written to the destination. Records
+ * that expired are dropped. A full segment is first compacted. If it is still full, the message is dropped. The number
+ * of segments is limited as well, which bounds the disk space of the spool. Messages for a destination without segment
+ * are dropped once the limit is reached.
+ * <p>
+ * All file operations are performed by a single thread. Relaying threads only hand over the frame, such that they
+ * immediately return to relaying for clients that are connected. The spool-thread appends frames in batches, and forces
+ * every modified segment to storage once per batch. Upon registration of a destination, its segment is drained in bulk,
+ * while keeping the destination's queue at most half full, and removed. Messages relayed in the meantime may overtake
+ * spooled messages.
+ */
+@SuppressWarnings("PMD.DoNotUseThreads")
+final class Spool implements Registry.Listener, Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(Spool.class.getName());
+
+    private static final String SUFFIX = ".spool";
+
+    private static final int HEADER_SIZE = Long.BYTES + Integer.BYTES;
+
+    private static final int LENGTH_SIZE = 4;
+
+    private static final int MAX_BATCH = 1024;
+
+    /**
+     * The maximum number of bytes of frames handed over to the spool-thread, but not yet stored.
+     */
+    private static final long MAX_BACKLOG = 1L << 24;
+
+    private static final long MIN_SWEEP_MILLIS = 1000;
+
+    private static final long DRAIN_INTERVAL_MILLIS = 1;
+
+    /**
+     * Expiration time that marks a record as delivered.
+     */
+    private static final long DELIVERED = -1;
+
+    private final Path directory;
+
+    private final long ttlMillis;
+
+    private final int capacity;
+
+    private final int maxSegments;
+
+    private final int maxDepth;
+
+    private final Registry registry;
+
+    private final Metrics metrics;
+
+    private final Origin origin;
+
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+
+    private final AtomicLong backlog = new AtomicLong();
+
+    @Nullable
+    private volatile Thread thread;
+
+    /**
+     * The segments by destination. (Only accessed from the spool-thread.)
+     */
+    private final Map<Address, Segment> segments = new HashMap<>();
+
+    /**
+     * The destinations whose segments are being drained. (Only accessed from the spool-thread.)
+     */
+    private final Set<Address> draining = new HashSet<>();
+
+    /**
+     * Constructor for Spool.
+     *
+     * @param directory the directory for the segment files
+     * @param ttlMillis the time (in milliseconds) that messages are kept
+     * @param capacity    the size (in bytes) of the segment of a single destination
+     * @param maxSegments the maximum number of segments, i.e. of destinations with spooled messages
+     * @param settings    the settings
+     * @param registry    the registry
+     * @param metrics     the metrics
+     */
+    Spool(@Nonnull final Path directory, final long ttlMillis, final int capacity, final int maxSegments,
+            @Nonnull final Settings settings, @Nonnull final Registry registry, @Nonnull final Metrics metrics) {
+        this.directory = requireNonNull(directory);
+        this.ttlMillis = ttlMillis;
+        this.capacity = capacity;
+        this.maxSegments = requireAtLeast(1, maxSegments);
+        this.maxDepth = Math.max(1, settings.queueCapacity / 2);
+        this.registry = requireNonNull(registry);
+        this.metrics = requireNonNull(metrics);
+        this.origin = metrics.origin("spool");
+    }
+
+    /**
+     * Start the spool: open the segments that remain from a previous run, start the spool-thread, and register with
+     * the registry.
+     *
+     * @throws IOException In case of failure to open the spool directory or its segments.
+     */
+    void start() throws IOException {
+        Files.createDirectories(this.directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "*" + SUFFIX)) {
+            for (final Path file : files) {
+                final String name = file.getFileName().toString();
+                try {
+                    this.segments.put(address(name.substring(0, name.length() - SUFFIX.length())),
+                            Segment.open(file, this.capacity, this.metrics));
+                } catch (final NumberFormatException e) {
+                    LOGGER.log(Level.WARNING, "Ignoring unknown file in spool directory: {0}", file);
+                }
+            }
+        }
+        LOGGER.log(Level.INFO, "Spooling messages for absent destinations in {0} ({1} segments present)",
+                new Object[]{this.directory, this.segments.size()});
+        final Thread thread = new Thread(this, "Spool");
+        thread.setDaemon(true);
+        this.thread = thread;
+        thread.start();
+        this.registry.spool(this);
+    }
+
+    /**
+     * Stop the spool-thread, if started, and wait for it to finish. Frames already handed over are stored first.
+     * Afterwards, the spool no longer references its segments, such that they are unmapped once garbage-collected.
+     */
+    void close() {
+        final Thread current = this.thread;
+        if (current == null) {
+            return;
+        }
+        current.interrupt();
+        try {
+            current.join();
+        } catch (final InterruptedException e) {
+            LOGGER.log(Level.FINE, "Interrupted while waiting for the spool to stop.");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Store a frame for a destination that is not available. (Thread-safe)
+     *
+     * @param address the destination
+     * @param frame   the frame
+     * @return Returns true if the frame is accepted for storage, or false if the frame must be dropped.
+     */
+    boolean store(@Nonnull final Address address, @Nonnull final Frame frame) {
+        final String destination = address.toString();
+        if (destination.isEmpty() || destination.startsWith(GROUP_PREFIX)) {
+            return false;
+        }
+        if (this.backlog.addAndGet(frame.size) > MAX_BACKLOG) {
+            this.backlog.addAndGet(-frame.size);
+            return false;
+        }
+        return this.requests.add(new Request(address.copy(), frame));
+    }
+
+    @Override
+    public void registered(@Nonnull final Address address) {
+        this.requests.add(new Request(address, null));
+    }
+
+    @Override
+    public void unregistered(@Nonnull final Address address) {
+        // Messages are spooled only once a message for the absent destination arrives.
+    }
+
+    @Override
+    public void run() {
+        final List<Request> batch = new ArrayList<>(MAX_BATCH);
+        final long sweepMillis = Math.max(MIN_SWEEP_MILLIS, this.ttlMillis / 2);
+        long sweep = System.currentTimeMillis() + sweepMillis;
+        try {
+            while (true) {
+                final long timeout = this.draining.isEmpty() ? sweep - System.currentTimeMillis()
+                        : DRAIN_INTERVAL_MILLIS;
+                final Request first = this.requests.poll(Math.max(0, timeout), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    this.requests.drainTo(batch, MAX_BATCH - 1);
+                }
+                process(batch);
+                batch.clear();
+                if (System.currentTimeMillis() >= sweep) {
+                    sweep();
+                    sweep = System.currentTimeMillis() + sweepMillis;
+                }
+            }
+        } catch (final InterruptedException e) {
+            batch.clear();
+            this.requests.drainTo(batch);
+            process(batch);
+            this.segments.clear();
+            LOGGER.log(Level.INFO, "Spool stopped.");
+        }
+    }
+
+    private void process(@Nonnull final List<Request> batch) {
+        final long now = System.currentTimeMillis();
+        for (final Request request : batch) {
+            if (request.frame == null) {
+                if (this.segments.containsKey(request.address)) {
+                    this.draining.add(request.address);
+                }
+            } else {
+                this.backlog.addAndGet(-request.frame.size);
+                append(request.address, request.frame, now);
+            }
+        }
+        final Iterator<Address> it = this.draining.iterator();
+        while (it.hasNext()) {
+            if (drain(it.next(), now)) {
+                it.remove();
+            }
+        }
+        for (final Segment segment : this.segments.values()) {
+            segment.force();
+        }
+    }
+
+    private void append(@Nonnull final Address address, @Nonnull final Frame frame, final long now) {
+        final Segment existing = this.segments.get(address);
+        // The destination may have registered after the frame was handed over. As long as the destination has a
+        // segment, frames are appended such that they are delivered in order.
+        final Destination destination = existing == null ? this.registry.lookup(address) : null;
+        if (destination != null) {
+            destination.deliver(frame);
+            return;
+        }
+        if (write(address, existing, frame, now)) {
+            this.metrics.spooled();
+            return;
+        }
+        this.metrics.droppedSpoolFull();
+        Events.MessageDropped.record(address, Events.MessageDropped.SPOOL_FULL);
+        LOGGER.log(Level.FINE, "Dropped message for {0}: spool is full.", address);
+    }
+
+    /**
+     * Write a frame to the destination's segment, opening a segment if the destination has none and the limit allows.
+     *
+     * @param address  the destination
+     * @param existing the destination's segment, if any
+     * @param frame    the frame
+     * @param now      the current time (epoch milliseconds)
+     * @return Returns true if written, or false if the segment is full or no segment is available.
+     */
+    private boolean write(@Nonnull final Address address, @Nullable final Segment existing, @Nonnull final Frame frame,
+            final long now) {
+        if (existing == null && this.segments.size() >= this.maxSegments) {
+            return false;
+        }
+        try {
+            final Segment segment = existing == null ? open(address) : existing;
+            return segment.append(frame, now + this.ttlMillis)
+                    || segment.compact(now) > 0 && segment.append(frame, now + this.ttlMillis);
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to open segment for {0}: {1}", new Object[]{address, e.getMessage()});
+            return false;
+        }
+    }
+
+    /**
+     * Deliver spooled frames to a destination, as long as the destination's queue is at most half full.
+     *
+     * @param address the destination
+     * @param now     the current time (epoch milliseconds)
+     * @return Returns true if draining finished, either because the segment is empty or the destination left.
+     */
+    private boolean drain(@Nonnull final Address address, final long now) {
+        final Destination destination = this.registry.lookup(address);
+        if (destination == null) {
+            return true;
+        }
+        final Segment segment = this.segments.get(address);
+        int delivered = 0;
+        while (destination.depth() < this.maxDepth) {
+            final Frame frame = segment.next(this.origin, now);
+            if (frame == null) {
+                this.segments.remove(address);
+                segment.delete();
+                LOGGER.log(Level.INFO, "Delivered spooled messages to {0}.", address);
+                break;
+            }
+            destination.deliver(frame);
+            delivered++;
+        }
+        this.metrics.unspooled(delivered);
+        return !this.segments.containsKey(address);
+    }
+
+    private void sweep() {
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<Address, Segment>> it = this.segments.entrySet().iterator();
+        while (it.hasNext()) {
+            final Segment segment = it.next().getValue();
+            segment.compact(now);
+            if (segment.isEmpty()) {
+                it.remove();
+                segment.delete();
+            }
+        }
+    }
+
+    private Segment open(@Nonnull final Address address) throws IOException {
+        final Segment segment = Segment.open(this.directory.resolve(filename(address)), this.capacity, this.metrics);
+        this.segments.put(address, segment);
+        return segment;
+    }
+
+    /**
+     * The filename of the segment of a destination: the hex-encoded address, such that any address is a valid
+     * filename.
+     *
+     * @param address the destination
+     * @return Returns the filename.
+     */
+    private static String filename(@Nonnull final Address address) {
+        final StringBuilder name = new StringBuilder();
+        for (final byte b : address.toString().getBytes(UTF_8)) {
+            name.append(Character.forDigit(b >> 4 & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return name.append(SUFFIX).toString();
+    }
+
+    private static Address address(@Nonnull final String hex) {
+        final byte[] encoded = new byte[hex.length() / 2];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return Address.of(new String(encoded, UTF_8));
+    }
+
+    /**
+     * Request for the spool-thread: a frame to be stored, or (without frame) a destination that registered.
+     */
+    private static final class Request {
+
+        private final Address address;
+        @Nullable
+        private final Frame frame;
+
+        private Request(@Nonnull final Address address, @Nullable final Frame frame) {
+            this.address = requireNonNull(address);
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * Segment is the memory-mapped file of a single destination. The buffer's position is the append position. The
+     * record following the last record has expiration time 0, as the expiration time is written last. Delivered
+     * records are marked, and removed upon compaction.
+     */
+    private static final class Segment {
+
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private final Metrics metrics;
+        private boolean dirty;
+        /**
+         * The position of the next record to be delivered.
+         */
+        private int cursor;
+
+        private Segment(@Nonnull final Path path, @Nonnull final MappedByteBuffer buffer,
+                @Nonnull final Metrics metrics) {
+            this.path = requireNonNull(path);
+            this.buffer = requireNonNull(buffer);
+            this.metrics = requireNonNull(metrics);
+        }
+
+        private boolean append(@Nonnull final Frame frame, final long expiration) {
+            if (this.buffer.remaining() < HEADER_SIZE + frame.size) {
+                return false;
+            }
+            final int position = this.buffer.position();
+            this.buffer.putInt(position + Long.BYTES, frame.size);
+            this.buffer.position(position + HEADER_SIZE);
+            this.buffer.put(frame.sender.duplicate());
+            this.buffer.put(frame.content.duplicate());
+            this.buffer.putLong(position, expiration);
+            this.dirty = true;
+            return true;
+        }
+
+        /**
+         * Remove expired and delivered records, moving the remaining records to the front.
+         *
+         * @param now the current time (epoch milliseconds)
+         * @return Returns the number of bytes freed.
+         */
+        private int compact(final long now) {
+            final int end = this.buffer.position();
+            int expired = 0;
+            int target = 0;
+            int position = 0;
+            while (position < end) {
+                final long expiration = this.buffer.getLong(position);
+                final int length = HEADER_SIZE + this.buffer.getInt(position + Long.BYTES);
+                if (expiration > now) {
+                    move(position, target, length);
+                    target += length;
+                } else if (expiration != DELIVERED) {
+                    expired++;
+                }
+                position += length;
+            }
+            // All records before the cursor were delivered or expired, hence removed.
+            this.cursor = 0;
+            for (int i = target; i < end; i++) {
+                this.buffer.put(i, (byte) 0);
+            }
+            this.buffer.position(target);
+            this.dirty |= target < end;
+            this.metrics.droppedExpired(expired);
+            return end - target;
+        }
+
+        private void move(final int from, final int to, final int length) {
+            if (from != to) {
+                final ByteBuffer source = this.buffer.duplicate();
+                source.limit(from + length).position(from);
+                final ByteBuffer destination = this.buffer.duplicate();
+                destination.position(to);
+                destination.put(source);
+            }
+        }
+
+        /**
+         * Take the next record that did not expire, and mark it as delivered.
+         *
+         * @param origin the origin of the frame
+         * @param now    the current time (epoch milliseconds)
+         * @return Returns the frame, or null if no records remain.
+         */
+        @Nullable
+        private Frame next(@Nonnull final Origin origin, final long now) {
+            final int end = this.buffer.position();
+            int expired = 0;
+            Frame frame = null;
+            while (frame == null && this.cursor < end) {
+                final long expiration = this.buffer.getLong(this.cursor);
+                final int length = this.buffer.getInt(this.cursor + Long.BYTES);
+                if (expiration > now) {
+                    final int start = this.cursor + HEADER_SIZE;
+                    final int senderSize = LENGTH_SIZE + this.buffer.getInt(start);
+                    frame = new Frame(origin, copy(start, senderSize), copy(start + senderSize, length - senderSize));
+                    this.buffer.putLong(this.cursor, DELIVERED);
+                    this.dirty = true;
+                } else if (expiration != DELIVERED) {
+                    expired++;
+                }
+                this.cursor += HEADER_SIZE + length;
+            }
+            this.metrics.droppedExpired(expired);
+            return frame;
+        }
+
+        private ByteBuffer copy(final int position, final int length) {
+            final byte[] bytes = new byte[length];
+            final ByteBuffer source = this.buffer.duplicate();
+            source.position(position);
+            source.get(bytes);
+            return ByteBuffer.wrap(bytes);
+        }
+
+        private boolean isEmpty() {
+            return this.buffer.position() == 0;
+        }
+
+        private void force() {
+            if (this.dirty) {
+                this.buffer.force();
+                this.dirty = false;
+            }
+        }
+
+        private void delete() {
+            try {
+                Files.deleteIfExists(this.path);
+            } catch (final IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to delete segment {0}: {1}",
+                        new Object[]{this.path, e.getMessage()});
+            }
+        }
+
+        private static Segment open(@Nonnull final Path path, final int capacity, @Nonnull final Metrics metrics)
+                throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                int position = 0;
+                while (capacity - position >= HEADER_SIZE && buffer.getLong(position) != 0
+                        && capacity - position - HEADER_SIZE >= buffer.getInt(position + Long.BYTES)) {
+                    position += HEADER_SIZE + buffer.getInt(position + Long.BYTES);
+                }
+                buffer.position(position);
+                return new Segment(path, buffer, metrics);
+            }
+        }
+    }
+}
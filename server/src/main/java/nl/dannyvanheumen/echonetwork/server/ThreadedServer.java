@@ -0,0 +1,557 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import nl.dannyvanheumen.echonetwork.protocol.CompactProtocol;
+import nl.dannyvanheumen.echonetwork.protocol.Compression;
+import nl.dannyvanheumen.echonetwork.protocol.FrameCodec;
+import nl.dannyvanheumen.echonetwork.protocol.Varint;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.net.ServerSocketFactory;
+import javax.net.ssl.SSLSocket;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.encodeValue;
+import static nl.dannyvanheumen.echonetwork.protocol.EchoProtocol.generateRemoteID;
+
+/**
+ * ThreadedServer is the blocking server mode. Every connection is served by a handler that reads and relays messages,
+ * and by the writer of its outbound queue. Both run on the provided executor, i.e. either platform threads or virtual
+ * threads.
+ * <p>
+ * With TLS, the handshake is performed on the connection's first read or write, by its own threads, such that a slow
+ * handshake does not hold up accepting further connections.
+ */
+final class ThreadedServer implements Listener {
+
+    private static final Logger LOGGER = Logger.getLogger(ThreadedServer.class.getName());
+
+    private final Registry registry;
+
+    private final Executor executor;
+
+    private final Settings settings;
+
+    private final Metrics metrics;
+
+    private final Admission admission;
+
+    private final TimingWheel wheel;
+
+    private final ServerSocketFactory sockets;
+
+    /**
+     * The established connections, such that they are closed when the server closes.
+     */
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+    @Nullable
+    private volatile ServerSocket server;
+
+    ThreadedServer(@Nonnull final Registry registry, @Nonnull final Executor executor,
+            @Nonnull final Settings settings, @Nonnull final Metrics metrics, @Nonnull final TimingWheel wheel,
+            @Nonnull final ServerSocketFactory sockets) {
+        this.registry = requireNonNull(registry);
+        this.executor = requireNonNull(executor);
+        this.settings = requireNonNull(settings);
+        this.metrics = requireNonNull(metrics);
+        this.wheel = requireNonNull(wheel);
+        this.sockets = requireNonNull(sockets);
+        this.admission = new Admission(settings, metrics);
+    }
+
+    @Override
+    public int bind(final int port) throws IOException {
+        final ServerSocket socket = this.sockets.createServerSocket(port);
+        this.server = socket;
+        LOGGER.log(Level.INFO, "Server started on {0}:{1}",
+                new Object[]{socket.getInetAddress().getHostAddress(), socket.getLocalPort()});
+        return socket.getLocalPort();
+    }
+
+    @Override
+    public void serve() throws IOException {
+        final ServerSocket socket = this.server;
+        if (socket == null) {
+            throw new IllegalStateException("Server is not bound.");
+        }
+        try (socket) {
+            while (!socket.isClosed()) {
+                accept(socket);
+            }
+        } catch (final SocketException e) {
+            if (!socket.isClosed()) {
+                throw e;
+            }
+        }
+    }
+
+    private void accept(@Nonnull final ServerSocket socket) throws IOException {
+        final Socket connection = socket.accept();
+        final Admission.Limiter limiter = this.admission.admit(connection.getInetAddress());
+        if (limiter == null) {
+            closeQuietly(connection);
+        } else {
+            connection.setTcpNoDelay(true);
+            this.metrics.accepted();
+            start(connection, limiter);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        final ServerSocket socket = this.server;
+        if (socket != null) {
+            socket.close();
+        }
+        for (final Socket connection : this.connections) {
+            closeQuietly(connection);
+        }
+    }
+
+    private void start(@Nonnull final Socket connection, @Nonnull final Admission.Limiter limiter) {
+        final String connectionID = generateRemoteID(connection);
+        final Outbound outbound = new Outbound(connection, connectionID, this.settings, this.metrics);
+        final int handle = this.registry.register(Address.of(connectionID), outbound);
+        this.executor.execute(outbound);
+        final Origin origin = this.metrics.origin(connectionID);
+        final Keepalive keepalive = new Keepalive(this.wheel, this.settings.keepaliveNanos, outbound, origin,
+                this.metrics, () -> evict(connection));
+        final Handler handler = new Handler(this.registry, this.metrics, connectionID, handle, connection, outbound,
+                limiter, origin, keepalive);
+        this.connections.add(connection);
+        this.executor.execute(() -> {
+            try {
+                handler.run();
+            } finally {
+                this.connections.remove(connection);
+            }
+        });
+    }
+
+    /**
+     * Close a connection on behalf of its keepalive, which must not block. Closing a TLS connection sends a
+     * close_notify alert, which may block on an unresponsive peer, therefore it is closed on the executor instead.
+     */
+    private void evict(@Nonnull final Socket connection) {
+        if (connection instanceof SSLSocket) {
+            this.executor.execute(() -> closeQuietly(connection));
+        } else {
+            closeQuietly(connection);
+        }
+    }
+
+    private static void closeQuietly(@Nonnull final Socket connection) {
+        try {
+            connection.close();
+        } catch (final IOException e) {
+            LOGGER.log(Level.FINE, "Failed to close connection: {0}", new Object[]{e.getMessage()});
+        }
+    }
+
+    /**
+     * Handler reads messages from its connection and relays them. Only the destination address is inspected, in its
+     * encoded form. The content is forwarded as received, including its length-prefix. The first 4 bytes determine
+     * the protocol: the {@link CompactProtocol}'s hello, or otherwise the first frame of the original protocol.
+     */
+    @SuppressWarnings({"PMD.DoNotUseThreads", "PMD.GodClass", "PMD.TooManyFields", "resource"})
+    private static final class Handler implements Runnable {
+
+        private static final int LENGTH_SIZE = 4;
+
+        private static final int INITIAL_BUFFER_SIZE = 1 << 14;
+
+        private final Registry registry;
+        private final Metrics metrics;
+        private final Address key;
+        private final int handle;
+        private final Socket connection;
+        private final Outbound outbound;
+        private final Admission.Limiter limiter;
+        private final Origin origin;
+        private final Keepalive keepalive;
+        /**
+         * The connection's own address in encoded form, used as sender address of every relayed message.
+         */
+        private final ByteBuffer idFrame;
+        /**
+         * The probe used for looking up the destination address in the routing table.
+         */
+        private final Address probe = new Address();
+        /**
+         * The groups that the connection joined.
+         */
+        private final Set<Address> joined = new HashSet<>();
+        /**
+         * The logical endpoints that the client attached to the connection.
+         */
+        private final Endpoints endpoints;
+        /**
+         * The header of the last parsed frame within a batch.
+         */
+        private final CompactHeader batched = new CompactHeader();
+        /**
+         * The codec of the original protocol.
+         */
+        private final FrameCodec codec;
+        /**
+         * The buffer that frames of the original protocol are read into, in "read" mode. Allocated once the protocol
+         * is determined.
+         */
+        private ByteBuffer buffer;
+        private byte[] address = new byte[64];
+
+        private Handler(@Nonnull final Registry registry, @Nonnull final Metrics metrics, @Nonnull final String id,
+                final int handle, @Nonnull final Socket connection, @Nonnull final Outbound outbound,
+                @Nonnull final Admission.Limiter limiter, @Nonnull final Origin origin,
+                @Nonnull final Keepalive keepalive) {
+            this.registry = requireNonNull(registry);
+            this.metrics = requireNonNull(metrics);
+            this.key = Address.of(id);
+            this.handle = handle;
+            this.connection = requireNonNull(connection);
+            this.outbound = requireNonNull(outbound);
+            this.limiter = requireNonNull(limiter);
+            this.origin = requireNonNull(origin);
+            this.keepalive = requireNonNull(keepalive);
+            this.idFrame = ByteBuffer.wrap(encodeValue(id));
+            this.endpoints = new Endpoints(registry, id, outbound);
+            this.codec = new FrameCodec(outbound.compression());
+        }
+
+        @Override
+        public void run() {
+            final Events.SessionFinished session = Events.sessionFinished();
+            Events.SessionRegistered.record(this.key);
+            LOGGER.log(Level.INFO, "Session {0} registered.", this.key);
+            this.keepalive.start();
+            try (this.connection; DataInputStream in = new DataInputStream(this.connection.getInputStream())) {
+                serve(in);
+                LOGGER.log(Level.INFO, "Session {0} finished.", this.key);
+            } catch (final EOFException e) {
+                LOGGER.log(Level.INFO, "Session {0} finished.", this.key);
+            } catch (final ProtocolException e) {
+                this.metrics.decodeError();
+                LOGGER.log(Level.WARNING, "Invalid data in client connection: {0}", new Object[]{e.getMessage()});
+            } catch (final IOException e) {
+                LOGGER.log(Level.WARNING, "Failure in client connection: {0}", new Object[]{e.getMessage()});
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOGGER.log(Level.INFO, "Session {0} interrupted.", this.key);
+            } finally {
+                this.keepalive.stop();
+                this.limiter.release();
+                this.metrics.release(this.origin);
+                this.endpoints.detachAll();
+                this.registry.leaveAll(this.outbound, this.joined);
+                this.registry.unregister(this.key, this.handle, this.outbound);
+                this.outbound.close();
+                this.metrics.closed();
+                session.complete(this.key);
+            }
+        }
+
+        /**
+         * Pause reading while the connection exceeds its rate limits. The client is pushed back by TCP flow-control.
+         *
+         * @param delayNanos the delay in nanoseconds
+         * @throws InterruptedException In case the thread is interrupted.
+         */
+        private static void throttle(final long delayNanos) throws InterruptedException {
+            if (delayNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(delayNanos);
+            }
+        }
+
+        /**
+         * Read and relay frames until the connection is closed.
+         *
+         * @param in the inputstream
+         * @throws IOException          In case of failure to read a frame.
+         * @throws InterruptedException In case the thread is interrupted.
+         */
+        private void serve(@Nonnull final DataInputStream in) throws IOException, InterruptedException {
+            final int prefix = in.readInt();
+            if (CompactProtocol.isHello(prefix)) {
+                int size = negotiate(prefix);
+                while (pace(size)) {
+                    size = relayCompact(in);
+                }
+            } else {
+                this.buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE).putInt(prefix).flip();
+                int size;
+                do {
+                    size = relay(in);
+                } while (pace(size));
+            }
+        }
+
+        /**
+         * Account for a received frame, and pause reading while the connection exceeds its rate limits.
+         *
+         * @param size the size of the frame in bytes
+         * @return Returns true if reading should continue, or false if the connection is closed.
+         * @throws InterruptedException In case the thread is interrupted.
+         */
+        private boolean pace(final int size) throws InterruptedException {
+            this.keepalive.received();
+            throttle(this.limiter.reserve(size));
+            return !this.connection.isClosed();
+        }
+
+        /**
+         * Negotiate the compact protocol, and queue the server's hello.
+         *
+         * @param hello the client's hello
+         * @return Returns the size of the hello in bytes.
+         * @throws ProtocolException In case of an unsupported protocol version.
+         */
+        private int negotiate(final int hello) throws ProtocolException {
+            final int requested = CompactProtocol.version(hello);
+            if (requested < CompactProtocol.VERSION) {
+                throw new ProtocolException("Unsupported protocol version: " + requested);
+            }
+            this.outbound.deliver(Encoder.hello(CompactProtocol.VERSION, this.handle, this.key.toString()));
+            LOGGER.log(Level.FINE, "Session {0} negotiated protocol version {1}.",
+                    new Object[]{this.key, CompactProtocol.VERSION});
+            return LENGTH_SIZE;
+        }
+
+        /**
+         * Read and relay a single frame of the original protocol. The frame is decoded by the {@link FrameCodec}, which
+         * may read ahead into the buffer, such that small frames do not cost a read each.
+         *
+         * @param in the inputstream
+         * @return Returns the size of the frame in bytes.
+         * @throws IOException In case of failure to read a frame.
+         */
+        private int relay(@Nonnull final DataInputStream in) throws IOException {
+            final Events.FrameReceived event = Events.frameReceived();
+            final FrameCodec frame = this.codec;
+            this.buffer = frame.read(in, this.buffer);
+            final Address target = this.probe.wrap(this.buffer.array(), frame.addressIndex(), frame.addressLength());
+            final ByteBuffer encoded = frame.encodedContent();
+            final byte[] content = new byte[encoded.remaining()];
+            encoded.get(content);
+            frame.skip(this.buffer);
+            event.complete(this.key, target, frame.contentLength());
+            route(target, frame.compressed(), content, null);
+            return frame.size();
+        }
+
+        /**
+         * Read and relay a single frame of the compact protocol.
+         *
+         * @param in the inputstream
+         * @return Returns the size of the frame in bytes.
+         * @throws IOException In case of failure to read a frame.
+         */
+        private int relayCompact(@Nonnull final DataInputStream in) throws IOException {
+            final int type = in.readUnsignedByte();
+            final int kind = type & CompactProtocol.TYPE_MASK;
+            if (kind == CompactProtocol.BATCH) {
+                return relayBatch(in, type);
+            }
+            if (kind != CompactProtocol.MESSAGE && kind != CompactProtocol.ADDRESSED) {
+                throw new ProtocolException("Unknown frame type: " + type);
+            }
+            final boolean compressed = (type & CompactProtocol.COMPRESSED) != 0;
+            if (compressed && !this.outbound.compression().accepted()) {
+                throw new ProtocolException("Compressed content requires negotiated compression.");
+            }
+            final Events.FrameReceived event = Events.frameReceived();
+            final int header;
+            final Address target;
+            if (kind == CompactProtocol.MESSAGE) {
+                final int addressLength = requireValidLength(Varint.read(in));
+                target = readAddress(in, addressLength);
+                header = 1 + Varint.size(addressLength) + addressLength;
+            } else {
+                final int destination = Varint.read(in);
+                target = this.registry.address(destination);
+                header = 1 + Varint.size(destination);
+            }
+            final int contentLength = requireValidLength(Varint.read(in));
+            final byte[] content = readContent(in, compressed ? Compression.COMPRESSED | contentLength : contentLength,
+                    contentLength);
+            if (target == null) {
+                unknownHandle();
+            } else {
+                event.complete(this.key, target, contentLength);
+                route(target, compressed, content, null);
+            }
+            return header + Varint.size(contentLength) + contentLength;
+        }
+
+        /**
+         * Read and relay a batch in one pass. Frames are grouped per destination, and each group is delivered at once,
+         * after the whole batch is routed. Control messages in the batch take effect immediately.
+         *
+         * @param in   the inputstream
+         * @param type the type, including flags
+         * @return Returns the size of the batch in bytes.
+         * @throws IOException In case of failure to read the batch, or invalid frames.
+         */
+        private int relayBatch(@Nonnull final DataInputStream in, final int type) throws IOException {
+            if ((type & CompactProtocol.COMPRESSED) != 0) {
+                throw new ProtocolException("Batches must not be compressed.");
+            }
+            final int length = requireValidLength(Varint.read(in));
+            final byte[] batch = new byte[length];
+            in.readFully(batch);
+            final ByteBuffer buffer = ByteBuffer.wrap(batch);
+            final Map<Destination, List<Frame>> groups = new LinkedHashMap<>();
+            int position = 0;
+            while (position < length) {
+                final int size = this.batched.parse(buffer, position);
+                if (size > length - position || this.batched.type == CompactProtocol.BATCH) {
+                    throw new ProtocolException("Invalid frame in batch.");
+                }
+                relayBatched(batch, groups);
+                position += size;
+            }
+            for (final Map.Entry<Destination, List<Frame>> group : groups.entrySet()) {
+                group.getKey().deliver(group.getValue());
+            }
+            return 1 + Varint.size(length) + length;
+        }
+
+        private void relayBatched(@Nonnull final byte[] batch, @Nonnull final Map<Destination, List<Frame>> groups)
+                throws ProtocolException {
+            final CompactHeader frame = this.batched;
+            if (frame.compressed && !this.outbound.compression().accepted()) {
+                throw new ProtocolException("Compressed content requires negotiated compression.");
+            }
+            final Address target = frame.type == CompactProtocol.ADDRESSED ? this.registry.address(frame.handle)
+                    : this.probe.wrap(batch, frame.addressStart, frame.addressLength);
+            final byte[] content = new byte[LENGTH_SIZE + frame.contentLength];
+            ByteBuffer.wrap(content).putInt(frame.compressed ? Compression.COMPRESSED | frame.contentLength
+                    : frame.contentLength);
+            System.arraycopy(batch, frame.contentStart, content, LENGTH_SIZE, frame.contentLength);
+            if (target == null) {
+                unknownHandle();
+                return;
+            }
+            Events.frameReceived().complete(this.key, target, frame.contentLength);
+            route(target, frame.compressed, content, groups);
+        }
+
+        private void unknownHandle() {
+            this.metrics.droppedUnknownDestination();
+            Events.MessageDropped.record(this.key, Events.MessageDropped.UNKNOWN_DESTINATION);
+            LOGGER.log(Level.INFO, "Dropping message because the destination's handle is not available.");
+        }
+
+        @Nonnull
+        private Address readAddress(@Nonnull final DataInputStream in, final int addressLength) throws IOException {
+            if (this.address.length < addressLength) {
+                this.address = new byte[addressLength];
+            }
+            in.readFully(this.address, 0, addressLength);
+            return this.probe.wrap(this.address, 0, addressLength);
+        }
+
+        private static int requireValidLength(final int length) throws ProtocolException {
+            if (length > CompactProtocol.MAX_LENGTH) {
+                throw new ProtocolException("Length exceeds maximum: " + length);
+            }
+            return length;
+        }
+
+        @Nonnull
+        private static byte[] readContent(@Nonnull final DataInputStream in, final int prefix, final int length)
+                throws IOException {
+            final byte[] content = new byte[LENGTH_SIZE + length];
+            ByteBuffer.wrap(content).putInt(prefix);
+            in.readFully(content, LENGTH_SIZE, length);
+            return content;
+        }
+
+        /**
+         * Route a received frame: determine the sending endpoint, if any, and process the frame as control message or
+         * forward it to its destination.
+         *
+         * @param target     the frame's address (may be a reused probe)
+         * @param compressed indicates that the content is compressed
+         * @param content    the content, including its length-prefix
+         * @param groups     the frames per destination, if part of a batch, or null to deliver immediately
+         * @throws ProtocolException In case of compressed control messages.
+         */
+        private void route(@Nonnull final Address target, final boolean compressed, @Nonnull final byte[] content,
+                @Nullable final Map<Destination, List<Frame>> groups) throws ProtocolException {
+            final Endpoint endpoint = this.endpoints.sender(target);
+            final Address destination = endpoint == null ? target : this.endpoints.destination();
+            if (destination.isEmpty()) {
+                control(endpoint, compressed, content);
+            } else {
+                forward(endpoint, destination, content, groups);
+            }
+        }
+
+        private void control(@Nullable final Endpoint endpoint, final boolean compressed,
+                @Nonnull final byte[] content) throws ProtocolException {
+            if (compressed) {
+                throw new ProtocolException("Control messages must not be compressed.");
+            }
+            final String command = new String(content, LENGTH_SIZE, content.length - LENGTH_SIZE, UTF_8);
+            if (endpoint != null) {
+                this.registry.control(endpoint, endpoint.joined, command);
+            } else if (!this.keepalive.pong(command) && !this.endpoints.control(command)) {
+                this.registry.control(this.outbound, this.joined, command);
+            }
+        }
+
+        private void forward(@Nullable final Endpoint endpoint, @Nonnull final Address target,
+                @Nonnull final byte[] content, @Nullable final Map<Destination, List<Frame>> groups) {
+            final Destination destination = this.registry.lookup(target);
+            final Frame frame = endpoint == null
+                    ? new Frame(this.origin, this.idFrame.duplicate(), ByteBuffer.wrap(content), this.handle)
+                    : new Frame(this.origin, endpoint.sender(), ByteBuffer.wrap(content), endpoint.handle);
+            if (destination == null) {
+                undeliverable(target, frame);
+                return;
+            }
+            LOGGER.log(Level.FINE, "Relaying {0} => {1}: {2} bytes",
+                    new Object[]{this.key, target, content.length - LENGTH_SIZE});
+            if (groups == null) {
+                destination.deliver(frame);
+            } else {
+                groups.computeIfAbsent(destination, d -> new ArrayList<>()).add(frame);
+            }
+        }
+
+        private void undeliverable(@Nonnull final Address target, @Nonnull final Frame frame) {
+            if (this.registry.store(target, frame)) {
+                LOGGER.log(Level.FINE, "Spooled message because destination {0} is not available.", target);
+                return;
+            }
+            this.metrics.droppedUnknownDestination();
+            Events.MessageDropped.record(target, Events.MessageDropped.UNKNOWN_DESTINATION);
+            LOGGER.log(Level.INFO, "Dropping message because destination is not available.");
+        }
+    }
+}
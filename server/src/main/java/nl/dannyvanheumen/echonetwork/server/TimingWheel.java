@@ -0,0 +1,177 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * TimingWheel is a hashed timing wheel: a ring of buckets, each covering one tick. A timeout is put in the bucket of its
+ * deadline, such that scheduling and cancelling take constant time regardless of the number of timeouts. A timeout
+ * further away than a single revolution remains in its bucket for additional revolutions.
+ * <p>
+ * A single thread advances the wheel and runs expired timeouts. Timeouts therefore must not block. Timeouts expire at
+ * most one tick late.
+ */
+@SuppressWarnings("PMD.DoNotUseThreads")
+final class TimingWheel implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(TimingWheel.class.getName());
+
+    private static final int BUCKETS = 512;
+
+    private final long tickNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final List<ArrayDeque<Timeout>> buckets = new ArrayList<>(BUCKETS);
+
+    /**
+     * The current tick. (Guarded by lock.)
+     */
+    private long tick;
+
+    @Nullable
+    private volatile Thread thread;
+
+    /**
+     * Constructor for TimingWheel.
+     *
+     * @param tickNanos the duration of a single tick in nanoseconds
+     */
+    TimingWheel(final long tickNanos) {
+        this.tickNanos = tickNanos;
+        for (int i = 0; i < BUCKETS; i++) {
+            this.buckets.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Start the thread that advances the wheel.
+     */
+    void start() {
+        final Thread thread = new Thread(this, "TimingWheel");
+        thread.setDaemon(true);
+        this.thread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stop the thread that advances the wheel, if started. Pending timeouts do not run.
+     */
+    void close() {
+        final Thread current = this.thread;
+        if (current != null) {
+            current.interrupt();
+        }
+    }
+
+    /**
+     * Schedule a task. (Thread-safe)
+     *
+     * @param task       the task
+     * @param delayNanos the delay in nanoseconds
+     * @return Returns the timeout, which can be cancelled.
+     */
+    @Nonnull
+    Timeout schedule(@Nonnull final Runnable task, final long delayNanos) {
+        final long ticks = Math.max(1, (delayNanos + this.tickNanos - 1) / this.tickNanos);
+        this.lock.lock();
+        try {
+            final Timeout timeout = new Timeout(task, this.tick + ticks);
+            this.buckets.get((int) (timeout.deadline % BUCKETS)).add(timeout);
+            return timeout;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        final List<Timeout> expired = new ArrayList<>();
+        long next = System.nanoTime() + this.tickNanos;
+        try {
+            while (true) {
+                TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
+                next += this.tickNanos;
+                advance(expired);
+                for (final Timeout timeout : expired) {
+                    if (!timeout.cancelled) {
+                        expire(timeout);
+                    }
+                }
+                expired.clear();
+            }
+        } catch (final InterruptedException e) {
+            LOGGER.log(Level.INFO, "Timing wheel stopped.");
+        }
+    }
+
+    /**
+     * Run the task of an expired timeout. A failing task is logged, such that it does not stop the wheel and thereby
+     * all other timeouts.
+     *
+     * @param timeout the expired timeout
+     */
+    @SuppressWarnings("PMD.AvoidCatchingGenericException")
+    private static void expire(@Nonnull final Timeout timeout) {
+        try {
+            timeout.task.run();
+        } catch (final RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Timeout task failed: {0}", new Object[]{e.toString()});
+        }
+    }
+
+    private void advance(@Nonnull final List<Timeout> expired) {
+        this.lock.lock();
+        try {
+            this.tick++;
+            final Iterator<Timeout> it = this.buckets.get((int) (this.tick % BUCKETS)).iterator();
+            while (it.hasNext()) {
+                final Timeout timeout = it.next();
+                if (timeout.cancelled) {
+                    it.remove();
+                } else if (timeout.deadline <= this.tick) {
+                    it.remove();
+                    expired.add(timeout);
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Timeout is a task scheduled on the wheel.
+     */
+    static final class Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+        private volatile boolean cancelled;
+
+        private Timeout(@Nonnull final Runnable task, final long deadline) {
+            this.task = requireNonNull(task);
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timeout. The task does not run, unless it is already running. (Thread-safe)
+         */
+        void cancel() {
+            this.cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import javax.annotation.Nonnull;
+import javax.net.ServerSocketFactory;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * Tls is the server's TLS configuration: the key material, and the session cache that is shared by all connections.
+ * <p>
+ * A client that reconnects within the session timeout resumes its session, i.e. skips the full handshake with its
+ * key exchange and certificate verification. With TLS 1.3, sessions are resumed through stateless session tickets. With
+ * TLS 1.2, through the server-side session cache.
+ */
+final class Tls {
+
+    /**
+     * The number of TLS records that fit in a single network buffer.
+     */
+    private static final int RECORDS_PER_BUFFER = 4;
+
+    /**
+     * The maximum number of free network buffers kept per event-loop.
+     */
+    private static final int RETAINED_BUFFERS = 64;
+
+    private final SSLContext context;
+
+    /**
+     * Constructor for Tls.
+     *
+     * @param keystore         the keystore (PKCS12 or JKS) with the server's private key and certificate chain
+     * @param password         the password of the keystore and the private key
+     * @param sessionCacheSize the maximum number of cached sessions (0 for unlimited)
+     * @param sessionTimeout   the lifetime of sessions in seconds
+     * @throws IOException In case of failure to load the key material.
+     */
+    Tls(@Nonnull final Path keystore, @Nonnull final char[] password, final int sessionCacheSize,
+            final int sessionTimeout) throws IOException {
+        try {
+            final KeyStore store = KeyStore.getInstance(keystore.toFile(), password);
+            final KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(store, password);
+            this.context = SSLContext.getInstance("TLS");
+            this.context.init(keys.getKeyManagers(), null, null);
+        } catch (final GeneralSecurityException e) {
+            throw new IOException("Failed to load TLS key material: " + e.getMessage(), e);
+        }
+        final SSLSessionContext sessions = this.context.getServerSessionContext();
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeout);
+    }
+
+    /**
+     * The factory for the listening socket in the thread-per-connection modes.
+     *
+     * @return Returns the server socket factory.
+     */
+    @Nonnull
+    ServerSocketFactory serverSocketFactory() {
+        return this.context.getServerSocketFactory();
+    }
+
+    /**
+     * Create the pool of network buffers for an event-loop.
+     *
+     * @return Returns the buffer pool.
+     */
+    @Nonnull
+    BufferPool pool() {
+        return new BufferPool(RECORDS_PER_BUFFER * engine().getSession().getPacketBufferSize(), RETAINED_BUFFERS);
+    }
+
+    /**
+     * Create the transport for an accepted channel in the non-blocking mode.
+     *
+     * @param channel the channel
+     * @param pool    the event-loop's pool of network buffers
+     * @return Returns the transport.
+     */
+    @Nonnull
+    Transport transport(@Nonnull final SocketChannel channel, @Nonnull final BufferPool pool) {
+        return new TlsTransport(channel, engine(), pool);
+    }
+
+    private SSLEngine engine() {
+        final SSLEngine engine = this.context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import javax.annotation.Nonnull;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * TlsTransport is TLS on top of a non-blocking channel, using an {@link SSLEngine}.
+ * <p>
+ * Application data is decrypted directly into the connection's receive buffer, and encrypted directly from the frames
+ * being written. The network buffers, holding encrypted records, are taken from the event-loop's {@link BufferPool}
+ * only while they hold data, such that idle connections do not hold any. The handshake's delegated tasks run on the
+ * event-loop.
+ */
+final class TlsTransport implements Transport {
+
+    private static final Logger LOGGER = Logger.getLogger(TlsTransport.class.getName());
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+
+    private final SSLEngine engine;
+
+    private final BufferPool pool;
+
+    /**
+     * Received records, in "write" mode. (Null while empty.)
+     */
+    private ByteBuffer netIn;
+
+    /**
+     * Records waiting to be sent, in "write" mode. (Null while empty.)
+     */
+    private ByteBuffer netOut;
+
+    /**
+     * Indicates that the received records end with an incomplete record.
+     */
+    private boolean underflow;
+
+    TlsTransport(@Nonnull final SocketChannel channel, @Nonnull final SSLEngine engine,
+            @Nonnull final BufferPool pool) {
+        this.channel = requireNonNull(channel);
+        this.engine = requireNonNull(engine);
+        this.pool = requireNonNull(pool);
+    }
+
+    @Override
+    public int read(@Nonnull final ByteBuffer dst) throws IOException {
+        if (this.netIn == null) {
+            this.netIn = this.pool.acquire();
+        }
+        final int received = this.channel.read(this.netIn);
+        this.netIn.flip();
+        final int produced;
+        try {
+            produced = unwrap(dst);
+        } finally {
+            this.netIn.compact();
+            if (this.netIn.position() == 0) {
+                this.pool.release(this.netIn);
+                this.netIn = null;
+            }
+        }
+        if (produced == 0 && (received < 0 || this.engine.isInboundDone())) {
+            return -1;
+        }
+        return produced;
+    }
+
+    /**
+     * Decrypt received records until the records are exhausted or the destination is full, processing the handshake
+     * along the way.
+     *
+     * @param dst the destination buffer
+     * @return Returns the number of bytes of application data.
+     * @throws IOException In case of failure in the TLS protocol or in writing handshake messages.
+     */
+    private int unwrap(@Nonnull final ByteBuffer dst) throws IOException {
+        int produced = 0;
+        while (true) {
+            final SSLEngineResult result = this.engine.unwrap(this.netIn, dst);
+            produced += result.bytesProduced();
+            this.underflow = result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW;
+            if (result.getStatus() != SSLEngineResult.Status.OK || result.bytesConsumed() == 0) {
+                // Nothing is consumed while handshake messages wait for the send-buffer.
+                return produced;
+            }
+            handshake(result.getHandshakeStatus());
+            if (!this.netIn.hasRemaining()) {
+                return produced;
+            }
+        }
+    }
+
+    private void handshake(@Nonnull final HandshakeStatus initial) throws IOException {
+        HandshakeStatus status = initial;
+        while (true) {
+            if (status == HandshakeStatus.NEED_TASK) {
+                for (Runnable task = this.engine.getDelegatedTask(); task != null;
+                        task = this.engine.getDelegatedTask()) {
+                    task.run();
+                }
+            } else if (status != HandshakeStatus.NEED_WRAP || !wrapHandshake()) {
+                return;
+            }
+            status = this.engine.getHandshakeStatus();
+        }
+    }
+
+    /**
+     * Produce and send handshake messages.
+     *
+     * @return Returns true if progress was made, false if the send-buffer is full or the connection is closed.
+     * @throws IOException In case of failure in the TLS protocol or in writing to the channel.
+     */
+    private boolean wrapHandshake() throws IOException {
+        if (this.netOut == null) {
+            this.netOut = this.pool.acquire();
+        }
+        final SSLEngineResult result = this.engine.wrap(EMPTY, this.netOut);
+        switch (result.getStatus()) {
+        case OK:
+            send();
+            return true;
+        case BUFFER_OVERFLOW:
+            return send();
+        default:
+            send();
+            return false;
+        }
+    }
+
+    @Override
+    public long write(@Nonnull final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+        flush();
+        if (this.netOut != null || !ready()) {
+            return 0;
+        }
+        long remaining = 0;
+        for (int i = offset; i < offset + length; i++) {
+            remaining += srcs[i].remaining();
+        }
+        long consumed = 0;
+        while (consumed < remaining) {
+            if (this.netOut == null) {
+                this.netOut = this.pool.acquire();
+            }
+            final SSLEngineResult result = this.engine.wrap(srcs, offset, length, this.netOut);
+            consumed += result.bytesConsumed();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS connection is closed.");
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && !send()) {
+                // The channel's send-buffer is full.
+                return consumed;
+            }
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                break;
+            }
+        }
+        send();
+        return consumed;
+    }
+
+    /**
+     * Send pending records, and continue the handshake if it waits for records to be sent.
+     *
+     * @throws IOException In case of failure in the TLS protocol or in writing to the channel.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (send()) {
+            handshake(this.engine.getHandshakeStatus());
+        }
+    }
+
+    /**
+     * Send pending records, as far as the channel accepts them.
+     *
+     * @return Returns true if all records are sent.
+     * @throws IOException In case of failure to write to the channel.
+     */
+    private boolean send() throws IOException {
+        if (this.netOut == null) {
+            return true;
+        }
+        this.netOut.flip();
+        this.channel.write(this.netOut);
+        this.netOut.compact();
+        if (this.netOut.position() > 0) {
+            return false;
+        }
+        this.pool.release(this.netOut);
+        this.netOut = null;
+        return true;
+    }
+
+    @Override
+    public int readSpace() {
+        return this.engine.getSession().getApplicationBufferSize();
+    }
+
+    @Override
+    public boolean pending() {
+        return this.netOut != null;
+    }
+
+    @Override
+    public boolean buffered() {
+        return this.netIn != null && !this.underflow && !this.engine.isInboundDone()
+                && this.engine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP;
+    }
+
+    @Override
+    public boolean ready() {
+        return this.engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    /**
+     * Close the transport. The close-notify alert is sent on a best-effort basis, i.e. only if the channel accepts it
+     * immediately.
+     */
+    @Override
+    public void close() {
+        this.engine.closeOutbound();
+        try {
+            if (this.netOut == null) {
+                this.netOut = this.pool.acquire();
+            }
+            this.engine.wrap(EMPTY, this.netOut);
+            this.netOut.flip();
+            this.channel.write(this.netOut);
+        } catch (final IOException e) {
+            LOGGER.log(Level.FINE, "Failed to send close-notify: {0}", new Object[]{e.getMessage()});
+        }
+        if (this.netIn != null) {
+            this.pool.release(this.netIn);
+            this.netIn = null;
+        }
+        this.pool.release(this.netOut);
+        this.netOut = null;
+        EventLoop.closeQuietly(this.channel);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static nl.dannyvanheumen.echonetwork.utils.Integers.requireAtLeast;
+
+/**
+ * TokenBucket limits a rate, such as frames or bytes per second. The bucket holds at most one second worth of tokens.
+ * <p>
+ * Tokens are reserved rather than taken: a reservation always succeeds, possibly bringing the bucket into debt. The
+ * caller is told how long to wait until the debt is paid off. This allows a frame to be reserved after it was read,
+ * even if it is larger than the bucket.
+ */
+final class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long rate;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private double tokens;
+
+    private long refilled;
+
+    /**
+     * Constructor for TokenBucket. The bucket starts out full.
+     *
+     * @param rate the number of tokens per second
+     */
+    TokenBucket(final int rate) {
+        this.rate = requireAtLeast(1, rate);
+        this.tokens = rate;
+        this.refilled = System.nanoTime();
+    }
+
+    /**
+     * Reserve tokens. (Thread-safe)
+     *
+     * @param amount the number of tokens
+     * @return Returns the time (in nanoseconds) to wait until the bucket is out of debt, or 0 if not in debt.
+     */
+    long reserve(final long amount) {
+        this.lock.lock();
+        try {
+            final long now = System.nanoTime();
+            this.tokens = Math.min(this.rate, this.tokens + (double) (now - this.refilled) * this.rate
+                    / NANOS_PER_SECOND);
+            this.refilled = now;
+            this.tokens -= amount;
+            return this.tokens >= 0 ? 0 : (long) Math.ceil(-this.tokens * NANOS_PER_SECOND / this.rate);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * server, the echonetwork (relay) server.
+ * SPDX-License-Identifier: GPL-3.0-only
+ */
+package nl.dannyvanheumen.echonetwork.server;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport is the byte-stream of a client connection in the non-blocking server mode: either the plain channel, or
+ * TLS on top of the channel. All methods must be called from the owning event-loop's thread.
+ */
+interface Transport {
+
+    /**
+     * Read application data.
+     *
+     * @param dst the destination buffer, with at least {@link #readSpace()} bytes remaining
+     * @return Returns the number of bytes read, or -1 at the end of the stream.
+     * @throws IOException In case of failure to read.
+     */
+    int read(@Nonnull ByteBuffer dst) throws IOException;
+
+    /**
+     * Write application data, as much as possible without blocking.
+     *
+     * @param srcs   the source buffers
+     * @param offset the offset of the first buffer
+     * @param length the number of buffers
+     * @return Returns the number of bytes of application data written.
+     * @throws IOException In case of failure to write.
+     */
+    long write(@Nonnull ByteBuffer[] srcs, int offset, int length) throws IOException;
+
+    /**
+     * Write data that is pending in the transport itself, as much as possible without blocking.
+     *
+     * @throws IOException In case of failure to write.
+     */
+    void flush() throws IOException;
+
+    /**
+     * The space that the destination buffer must have remaining for {@link #read(ByteBuffer)} to make progress.
+     *
+     * @return Returns the number of bytes.
+     */
+    int readSpace();
+
+    /**
+     * Indicates that data is pending in the transport itself, waiting for the channel to become writable.
+     *
+     * @return Returns true if data is pending.
+     */
+    boolean pending();
+
+    /**
+     * Indicates that received data is buffered in the transport itself, such that {@link #read(ByteBuffer)} makes
+     * progress without the channel becoming readable.
+     *
+     * @return Returns true if data is buffered.
+     */
+    boolean buffered();
+
+    /**
+     * Indicates that the transport accepts application data, i.e. is not waiting for the peer to complete a handshake.
+     *
+     * @return Returns true if ready.
+     */
+    boolean ready();
+
+    /**
+     * Close the transport, including its channel.
+     */
+    void close();
+}